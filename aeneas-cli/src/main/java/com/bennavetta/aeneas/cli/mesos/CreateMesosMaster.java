@@ -15,6 +15,9 @@
  */
 package com.bennavetta.aeneas.cli.mesos;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import io.airlift.airline.Arguments;
 import io.airlift.airline.Command;
 import io.airlift.airline.Option;
@@ -28,8 +31,11 @@ public class CreateMesosMaster extends AeneasCommand
 	@Option(name = "-i", description = "Docker image to create container from")
 	public String imageName = "mesos-master";
 	
-	@Option(name = "-q", description = "Minimum number of quorum members")
-	public int quorum = 1;
+	@Option(name = "-q", description = "Minimum number of quorum members (default: a majority of the masters given by -n)")
+	public Integer quorum;
+
+	@Option(name = "-n", description = "Number of masters to wait for before sizing the quorum")
+	public Integer masters;
 	
 	@Option(name = "-p", description = "Port to expose the master API and UI on")
 	public int port = 5050;
@@ -40,9 +46,27 @@ public class CreateMesosMaster extends AeneasCommand
 	@Override
 	protected int execute()
 	{
+		if(quorum == null && masters == null)
+		{
+			// A quorum sized from whichever masters happen to be registered could be too small
+			System.err.println("Either a quorum (-q) or the number of masters (-n) is required");
+			return 1;
+		}
+
+		List<String> env = new ArrayList<>();
+		env.add("MESOS_port=" + port);
+		if(quorum != null)
+		{
+			env.add("MESOS_quorum=" + quorum);
+		}
+		if(masters != null)
+		{
+			env.add("EXPECTED_MASTERS=" + masters);
+		}
+
 		String id = dockerClient.createContainerCmd(imageName)
 			.withName(containerName)
-			.withEnv("MESOS_quorum=" + quorum, "MESOS_port=" + port)
+			.withEnv(env.toArray(new String[env.size()]))
 			.withExposedPorts(ExposedPort.tcp(port))
 			.exec().getId();
 		System.out.println(id);
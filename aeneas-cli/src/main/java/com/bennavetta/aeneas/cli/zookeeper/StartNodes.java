@@ -17,10 +17,15 @@ package com.bennavetta.aeneas.cli.zookeeper;
 
 import io.airlift.airline.Arguments;
 import io.airlift.airline.Command;
+import io.airlift.airline.Option;
 
 import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 import com.bennavetta.aeneas.cli.AeneasCommand;
+import com.bennavetta.aeneas.zookeeper.ZkException;
+import com.bennavetta.aeneas.zookeeper.ZkServer;
 import com.github.dockerjava.api.NotFoundException;
 import com.github.dockerjava.api.NotModifiedException;
 import com.github.dockerjava.api.command.InspectContainerResponse;
@@ -33,32 +38,53 @@ public class StartNodes extends AeneasCommand
 	/*
 	 * Spawning a cluster:
 	 * 
-	 * 1. Start three nodes, one after another, allowing time for each to register itself before starting the next. Otherwise, they
-	 *    won't connect to each other and configuring the quorum will fail.
+	 * 1. Start three nodes, one after another. Nodes configure themselves from the registered nodes and only register
+	 *    once they are ready, so this command waits for each node to register before starting the next.
 	 * 2. Start the manager
 	 * 3. Start any number of other nodes
 	 * 
 	 * TODO: create a command for this
 	 */
 	
+	/**
+	 * The client port of nodes created without {@code CLIENT_PORT}.
+	 */
+	private static final int DEFAULT_CLIENT_PORT = 2181;
+
 	@Arguments(description = "Container nodes to start")
 	public List<String> nodes;
+
+	@Option(name = "-w", description = "Seconds to wait for each node to register before starting the next (0 to not wait)")
+	public int waitSeconds = 300;
 	
 	@Override
 	protected int execute()
 	{		
 		for(String node : nodes)
 		{
+			List<ZkServer> registered;
+			try
+			{
+				registered = zookeeperRegistry.getServers();
+			}
+			catch(ZkException e)
+			{
+				System.err.println("Unable to list registered nodes");
+				e.printStackTrace();
+				return 1;
+			}
+
+			int clientPort;
 			try
 			{
-				start(node);
+				clientPort = start(node);
 			}
 			catch(NotFoundException | NotModifiedException e)
 			{
 				int id = Integer.parseInt(node);
 				try
 				{
-					start(ZooKeeperNodes.containerName(id));
+					clientPort = start(ZooKeeperNodes.containerName(id));
 				}
 				catch(Exception er)
 				{
@@ -73,11 +99,61 @@ public class StartNodes extends AeneasCommand
 				e.printStackTrace();
 				return 1;
 			}
+
+			if(waitSeconds > 0 && !awaitRegistration(clientPort, registered))
+			{
+				System.err.println("Node " + node + " did not register within " + waitSeconds + " seconds");
+				return 1;
+			}
 		}
 		return 0;
 	}
+
+	/**
+	 * Wait for the node with the given client port to register. Nodes get their server id once started, so the node is
+	 * found by its client port, which is unique since nodes share the host's network. Registrations that were already
+	 * present before the node started do not count, so other nodes registering in the meantime are not mistaken for it.
+	 */
+	private boolean awaitRegistration(int clientPort, List<ZkServer> previouslyRegistered)
+	{
+		long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(waitSeconds);
+		while(System.currentTimeMillis() < deadline)
+		{
+			try
+			{
+				Optional<ZkServer> registered = zookeeperRegistry.getServers().stream()
+						.filter(server -> server.getClientPort() == clientPort)
+						.filter(server -> !previouslyRegistered.contains(server))
+						.findFirst();
+				if(registered.isPresent())
+				{
+					System.out.println("Node registered as server " + registered.get().getId());
+					return true;
+				}
+			}
+			catch(ZkException e)
+			{
+				System.err.println("Unable to list registered nodes: " + e.getMessage());
+			}
+
+			try
+			{
+				Thread.sleep(1000);
+			}
+			catch(InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return false;
+	}
 	
-	private void start(String node)
+	/**
+	 * Start a node container.
+	 * @return the node's client port
+	 */
+	private int start(String node)
 	{
 		InspectContainerResponse containerInfo = dockerClient.inspectContainerCmd(node).exec();
 		
@@ -92,6 +168,19 @@ public class StartNodes extends AeneasCommand
 			.withNetworkMode("host")
 			.withPortBindings(ports)
 			.exec();
+
+		String[] env = containerInfo.getConfig().getEnv();
+		if(env != null)
+		{
+			for(String variable : env)
+			{
+				if(variable.startsWith("CLIENT_PORT="))
+				{
+					return Integer.parseInt(variable.substring("CLIENT_PORT=".length()));
+				}
+			}
+		}
+		return DEFAULT_CLIENT_PORT;
 	}
 
 }
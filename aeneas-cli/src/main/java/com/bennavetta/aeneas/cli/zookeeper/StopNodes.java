@@ -19,6 +19,7 @@ import java.util.List;
 
 import io.airlift.airline.Arguments;
 import io.airlift.airline.Command;
+import io.airlift.airline.Option;
 
 import com.bennavetta.aeneas.cli.AeneasCommand;
 import com.github.dockerjava.api.NotFoundException;
@@ -29,6 +30,9 @@ public class StopNodes extends AeneasCommand
 {
 	@Arguments(description = "Container nodes to stop")
 	public List<String> nodes;
+
+	@Option(name = "-t", description = "Seconds to let each node leave the quorum before it is killed")
+	public int timeoutSeconds = 30;
 	
 	@Override
 	protected int execute()
@@ -65,7 +69,7 @@ public class StopNodes extends AeneasCommand
 
 	private void stop(String node)
 	{
-		dockerClient.stopContainerCmd(node).exec();
+		dockerClient.stopContainerCmd(node).withTimeout(timeoutSeconds).exec();
 	}
 
 }
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2015 Benjamin Navetta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.aeneas;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Publishes simple metrics as JMX attributes, under the {@code com.bennavetta.aeneas} domain. Each metric is an MBean
+ * with a single {@code Value} attribute.
+ */
+public final class Metrics
+{
+	private static final Logger LOG = LoggerFactory.getLogger(Metrics.class);
+
+	private static final String DOMAIN = "com.bennavetta.aeneas";
+
+	private static final Map<String, AtomicLong> VALUES = new ConcurrentHashMap<>();
+
+	private Metrics() {}
+
+	/**
+	 * Publish a metric whose value is computed when it is read.
+	 * @param name the metric name, like {@code zookeeper.timeToReady}
+	 * @param value supplies the current value
+	 */
+	public static void gauge(String name, Supplier<? extends Number> value)
+	{
+		Preconditions.checkNotNull(value);
+		register(name, () -> value.get());
+	}
+
+	/**
+	 * Set the value of a metric, publishing it if this is the first value.
+	 * @param name the metric name, like {@code zookeeper.timeToReady}
+	 * @param value the new value
+	 */
+	public static void record(String name, long value)
+	{
+		LOG.debug("Metric {} = {}", name, value);
+		VALUES.computeIfAbsent(name, key -> {
+			AtomicLong holder = new AtomicLong();
+			register(key, holder::get);
+			return holder;
+		}).set(value);
+	}
+
+	private static void register(String name, GaugeMBean gauge)
+	{
+		Preconditions.checkNotNull(name);
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try
+		{
+			ObjectName objectName = new ObjectName(DOMAIN, "name", ObjectName.quote(name));
+			if(server.isRegistered(objectName))
+			{
+				server.unregisterMBean(objectName);
+			}
+			server.registerMBean(new StandardMBean(gauge, GaugeMBean.class), objectName);
+		}
+		catch (JMException e)
+		{
+			// Metrics are informational, so failing to publish one should not fail the caller
+			LOG.warn("Unable to register metric {}", name, e);
+		}
+	}
+
+	/**
+	 * JMX interface of a published metric.
+	 */
+	public static interface GaugeMBean
+	{
+		public Object getValue();
+	}
+}
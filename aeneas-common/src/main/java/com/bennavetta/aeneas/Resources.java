@@ -0,0 +1,169 @@
+/**
+ * Copyright 2015 Benjamin Navetta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.aeneas;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Optional;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+
+/**
+ * Determines the resources available to this container. Limits are read from the cgroup filesystem (both the v1 and
+ * unified hierarchies are supported) and fall back to the host's resources when no limit is set.
+ */
+public final class Resources
+{
+	private static final Logger LOG = LoggerFactory.getLogger(Resources.class);
+
+	private static final Path CGROUP_ROOT = Paths.get("/sys/fs/cgroup");
+
+	/**
+	 * cgroup v1 reports an unlimited memory limit as a very large number rather than a marker value.
+	 */
+	private static final long UNLIMITED_THRESHOLD = Long.MAX_VALUE / 2;
+
+	private Resources() {}
+
+	/**
+	 * Returns the memory available to this container, in bytes. This is the smaller of the cgroup memory limit and
+	 * the host's physical memory.
+	 */
+	public static long memoryLimit()
+	{
+		long physical = physicalMemory();
+		Optional<Long> limit = readLong(CGROUP_ROOT.resolve("memory.max"));
+		if(!limit.isPresent())
+		{
+			limit = readLong(CGROUP_ROOT.resolve("memory/memory.limit_in_bytes"));
+		}
+
+		if(limit.isPresent() && limit.get() > 0 && limit.get() < UNLIMITED_THRESHOLD)
+		{
+			LOG.debug("cgroup memory limit: {} bytes", limit.get());
+			return physical > 0 ? Math.min(limit.get(), physical) : limit.get();
+		}
+		return physical > 0 ? physical : Runtime.getRuntime().maxMemory();
+	}
+
+	/**
+	 * Returns the number of CPUs available to this container. This may be fractional if the container has a CPU quota.
+	 */
+	public static double cpuLimit()
+	{
+		int processors = Runtime.getRuntime().availableProcessors();
+
+		// Unified hierarchy: "<quota> <period>" or "max <period>"
+		Optional<String> cpuMax = read(CGROUP_ROOT.resolve("cpu.max"));
+		if(cpuMax.isPresent())
+		{
+			List<String> parts = Splitter.on(' ').omitEmptyStrings().splitToList(cpuMax.get());
+			if(parts.size() == 2 && !"max".equals(parts.get(0)))
+			{
+				return quota(Long.parseLong(parts.get(0)), Long.parseLong(parts.get(1)), processors);
+			}
+			return processors;
+		}
+
+		Optional<Long> quota = readLong(CGROUP_ROOT.resolve("cpu/cpu.cfs_quota_us"));
+		Optional<Long> period = readLong(CGROUP_ROOT.resolve("cpu/cpu.cfs_period_us"));
+		if(quota.isPresent() && period.isPresent() && quota.get() > 0)
+		{
+			return quota(quota.get(), period.get(), processors);
+		}
+		return processors;
+	}
+
+	/**
+	 * Returns the total size of the filesystem containing a path, in bytes. If the path does not exist yet, the
+	 * filesystem of its closest existing parent is used.
+	 * @param path a file or directory
+	 * @return the filesystem size
+	 * @throws IOException if unable to determine the size
+	 */
+	public static long totalSpace(Path path) throws IOException
+	{
+		Path existing = path.toAbsolutePath();
+		while(existing != null && !Files.exists(existing))
+		{
+			existing = existing.getParent();
+		}
+		if(existing == null)
+		{
+			throw new IOException("No existing parent of " + path);
+		}
+		return Files.getFileStore(existing).getTotalSpace();
+	}
+
+	private static double quota(long quota, long period, int processors)
+	{
+		double cpus = (double) quota / period;
+		LOG.debug("cgroup CPU quota: {} CPUs", cpus);
+		return Math.min(cpus, processors);
+	}
+
+	@SuppressWarnings("restriction")
+	private static long physicalMemory()
+	{
+		OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+		if(os instanceof com.sun.management.OperatingSystemMXBean)
+		{
+			return ((com.sun.management.OperatingSystemMXBean) os).getTotalPhysicalMemorySize();
+		}
+		return -1;
+	}
+
+	private static Optional<String> read(Path file)
+	{
+		if(!Files.isReadable(file))
+		{
+			return Optional.empty();
+		}
+
+		try
+		{
+			return Optional.of(new String(Files.readAllBytes(file), Charsets.US_ASCII).trim());
+		}
+		catch (IOException e)
+		{
+			LOG.debug("Unable to read {}", file, e);
+			return Optional.empty();
+		}
+	}
+
+	private static Optional<Long> readLong(Path file)
+	{
+		Optional<String> contents = read(file);
+		try
+		{
+			return contents.map(Long::parseLong);
+		}
+		catch (NumberFormatException e)
+		{
+			// "max" in the unified hierarchy
+			return Optional.empty();
+		}
+	}
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright 2015 Benjamin Navetta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.aeneas.process;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+
+/**
+ * Launches a Mesos daemon, passing its options as {@code MESOS_} environment variables, and supervises it as a
+ * {@link SupervisedProcess}. The daemon is ready once it accepts connections on its port.
+ * @see <a href="http://mesos.apache.org/documentation/latest/configuration/">Mesos Configuration</a>
+ */
+public abstract class MesosProcess
+{
+	private static final Logger LOG = LoggerFactory.getLogger(MesosProcess.class);
+
+	private static final Duration READY_TIMEOUT = Duration.ofMinutes(2);
+	private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+
+	/**
+	 * Variables set by the Docker images that are not Mesos options.
+	 */
+	private static final ImmutableSet<String> IGNORED_KEYS = ImmutableSet.of("version", "download_sha1", "download_url");
+
+	private final Map<String, String> configuration = Maps.newHashMap();
+	private final String role;
+	private final Path executable;
+	private final int defaultPort;
+
+	private RestartPolicy restartPolicy = RestartPolicy.never();
+	private SupervisedProcess process;
+
+	/**
+	 * Create a handler for a Mesos daemon.
+	 * @param role the kind of daemon, like {@code master}, used in logs and as part of the process name
+	 * @param executable the path to the daemon executable
+	 * @param defaultPort the port the daemon listens on if none is set
+	 */
+	protected MesosProcess(String role, Path executable, int defaultPort)
+	{
+		this.role = Preconditions.checkNotNull(role);
+		this.executable = Preconditions.checkNotNull(executable);
+		this.defaultPort = defaultPort;
+	}
+
+	/**
+	 * Set how the daemon is restarted if it exits without being killed. By default, it is never restarted.
+	 * @param restartPolicy the restart policy
+	 */
+	public void setRestartPolicy(RestartPolicy restartPolicy)
+	{
+		this.restartPolicy = Preconditions.checkNotNull(restartPolicy);
+	}
+
+	public void setOption(String name, String value)
+	{
+		configuration.put(name, value);
+	}
+
+	/**
+	 * Returns the value of an option, or an empty value if it is not set.
+	 * @param name the option name, like {@code work_dir}
+	 */
+	public Optional<String> getOption(String name)
+	{
+		return Optional.ofNullable(configuration.get(name));
+	}
+
+	/**
+	 * IP address to listen on
+	 * @param ip an IP address
+	 */
+	public void setIp(String ip)
+	{
+		setOption("ip", ip);
+	}
+
+	/**
+	 * Port to listen on (master default: 5050 and slave default: 5051)
+	 * @param port a port number
+	 */
+	public void setPort(int port)
+	{
+		setOption("port", String.valueOf(port));
+	}
+
+	public void configureFromEnvironment()
+	{
+		System.getenv().forEach((key, value) -> {
+			if(key.startsWith("MESOS_"))
+			{
+				String argName = key.substring(6).toLowerCase();
+				if(!IGNORED_KEYS.contains(argName))
+				{
+					setOption(argName, value);
+				}
+			}
+		});
+	}
+
+	public void launch() throws IOException
+	{
+		Preconditions.checkState(process == null, "Mesos %s already running", role);
+
+		ImmutableMap.Builder<String, String> environment = ImmutableMap.<String, String>builder();
+		configuration.forEach((key, value) -> environment.put("MESOS_" + key.toUpperCase(), value));
+		environment.put("MESOS_VERSION", "false"); // Mesos interprets the Dockerfile environment variable as the '--version' flag
+
+		LOG.info("Starting Mesos {} '{}' with configuration {}", role, executable, environment.build());
+		process = new SupervisedProcess("mesos." + role, ImmutableList.of(executable.toAbsolutePath().toString()));
+		process.setEnvironment(environment.build());
+		process.setRestartPolicy(restartPolicy);
+		process.setReadinessCheck(this::isListening, READY_TIMEOUT);
+		process.start();
+	}
+
+	public void kill()
+	{
+		Preconditions.checkState(process != null, "Mesos %s not running", role);
+		process.stop();
+	}
+
+	public int waitFor() throws InterruptedException
+	{
+		Preconditions.checkState(process != null, "Mesos %s not running", role);
+		return process.waitFor();
+	}
+
+	/**
+	 * Returns a future completed with the exit code once the daemon has exited and will not be restarted.
+	 */
+	public CompletableFuture<Integer> onExit()
+	{
+		Preconditions.checkState(process != null, "Mesos %s not running", role);
+		return process.onExit();
+	}
+
+	private boolean isListening()
+	{
+		String ip = configuration.getOrDefault("ip", "127.0.0.1");
+		int port = Integer.parseInt(configuration.getOrDefault("port", String.valueOf(defaultPort)));
+		try (Socket socket = new Socket())
+		{
+			socket.connect(new InetSocketAddress(ip, port), CONNECT_TIMEOUT_MILLIS);
+			return true;
+		}
+		catch (IOException e)
+		{
+			return false;
+		}
+	}
+}
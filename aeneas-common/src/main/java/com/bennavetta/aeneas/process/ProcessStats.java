@@ -0,0 +1,182 @@
+/**
+ * Copyright 2015 Benjamin Navetta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.aeneas.process;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+import com.google.common.collect.Maps;
+
+/**
+ * Resource usage of a process and all of its descendants, read from {@code /proc}. Wrapper scripts usually start the
+ * real server as a child, so the whole tree is counted.
+ */
+public final class ProcessStats
+{
+	private static final Path PROC = Paths.get("/proc");
+
+	/**
+	 * Linux reports CPU times in clock ticks, which are 1/100 of a second on every common architecture.
+	 */
+	private static final double TICKS_PER_SECOND = 100;
+
+	private final double cpuSeconds;
+	private final long rssBytes;
+	private final int processes;
+
+	private ProcessStats(double cpuSeconds, long rssBytes, int processes)
+	{
+		this.cpuSeconds = cpuSeconds;
+		this.rssBytes = rssBytes;
+		this.processes = processes;
+	}
+
+	/**
+	 * Sample the resource usage of a process tree.
+	 * @param pid the root of the tree
+	 * @return the usage, or an empty value if the process does not exist or {@code /proc} is not available
+	 */
+	public static Optional<ProcessStats> sample(int pid)
+	{
+		Map<Integer, Stat> stats = Maps.newHashMap();
+		ListMultimap<Integer, Integer> children = ArrayListMultimap.create();
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(PROC, p -> p.getFileName().toString().matches("\\d+")))
+		{
+			for(Path entry : entries)
+			{
+				Optional<Stat> stat = Stat.read(entry);
+				if(stat.isPresent())
+				{
+					stats.put(stat.get().pid, stat.get());
+					children.put(stat.get().ppid, stat.get().pid);
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			return Optional.empty();
+		}
+
+		if(!stats.containsKey(pid))
+		{
+			return Optional.empty();
+		}
+
+		long ticks = 0;
+		long rss = 0;
+		int processes = 0;
+		Deque<Integer> pending = new ArrayDeque<>();
+		pending.add(pid);
+		while(!pending.isEmpty())
+		{
+			Stat stat = stats.get(pending.remove());
+			if(stat == null)
+			{
+				continue;
+			}
+			ticks += stat.cpuTicks;
+			rss += stat.rssBytes;
+			processes++;
+			pending.addAll(children.get(stat.pid));
+		}
+		return Optional.of(new ProcessStats(ticks / TICKS_PER_SECOND, rss, processes));
+	}
+
+	/**
+	 * Returns the CPU time used, in seconds.
+	 */
+	public double getCpuSeconds()
+	{
+		return cpuSeconds;
+	}
+
+	/**
+	 * Returns the resident memory, in bytes.
+	 */
+	public long getRssBytes()
+	{
+		return rssBytes;
+	}
+
+	/**
+	 * Returns the number of processes in the tree.
+	 */
+	public int getProcesses()
+	{
+		return processes;
+	}
+
+	private static final class Stat
+	{
+		private final int pid;
+		private final int ppid;
+		private final long cpuTicks;
+		private final long rssBytes;
+
+		private Stat(int pid, int ppid, long cpuTicks, long rssBytes)
+		{
+			this.pid = pid;
+			this.ppid = ppid;
+			this.cpuTicks = cpuTicks;
+			this.rssBytes = rssBytes;
+		}
+
+		private static Optional<Stat> read(Path processDir)
+		{
+			try
+			{
+				String stat = new String(Files.readAllBytes(processDir.resolve("stat")), Charsets.US_ASCII);
+				// The command name is in parentheses and may contain spaces, so fields are counted from after it
+				List<String> fields = Splitter.on(' ').omitEmptyStrings().trimResults()
+				                              .splitToList(stat.substring(stat.lastIndexOf(')') + 1));
+				int pid = Integer.parseInt(processDir.getFileName().toString());
+				int ppid = Integer.parseInt(fields.get(1));
+				long cpuTicks = Long.parseLong(fields.get(11)) + Long.parseLong(fields.get(12)); // utime + stime
+				return Optional.of(new Stat(pid, ppid, cpuTicks, readRss(processDir)));
+			}
+			catch (IOException | RuntimeException e)
+			{
+				// The process exited while being read
+				return Optional.empty();
+			}
+		}
+
+		private static long readRss(Path processDir) throws IOException
+		{
+			for(String line : Files.readAllLines(processDir.resolve("status"), Charsets.US_ASCII))
+			{
+				if(line.startsWith("VmRSS:"))
+				{
+					List<String> parts = Splitter.on(' ').omitEmptyStrings().splitToList(line.substring(6).trim());
+					return Long.parseLong(parts.get(0)) * 1024; // reported in kB
+				}
+			}
+			return 0; // kernel threads and zombies have no memory
+		}
+	}
+}
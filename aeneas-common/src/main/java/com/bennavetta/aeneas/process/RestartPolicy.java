@@ -0,0 +1,122 @@
+/**
+ * Copyright 2015 Benjamin Navetta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.aeneas.process;
+
+import java.time.Duration;
+import java.util.Optional;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+
+/**
+ * Decides whether and when an exited process is restarted. Restarts are delayed by an exponential backoff, and the
+ * process is given up on after too many consecutive failures. A run that lasts at least the maximum backoff is
+ * considered stable and resets the failure count.
+ */
+public final class RestartPolicy
+{
+	private static final RestartPolicy NEVER = new RestartPolicy(false, 0, Duration.ofSeconds(1), Duration.ofSeconds(1));
+
+	private final boolean restartOnSuccess;
+	private final int maxRestarts;
+	private final Duration initialBackoff;
+	private final Duration maxBackoff;
+
+	private RestartPolicy(boolean restartOnSuccess, int maxRestarts, Duration initialBackoff, Duration maxBackoff)
+	{
+		Preconditions.checkArgument(maxRestarts >= 0, "Maximum restarts must not be negative");
+		Preconditions.checkArgument(!initialBackoff.isNegative() && !initialBackoff.isZero(),
+		                            "Initial backoff must be positive");
+		Preconditions.checkArgument(maxBackoff.compareTo(initialBackoff) >= 0,
+		                            "Maximum backoff must be at least the initial backoff");
+		this.restartOnSuccess = restartOnSuccess;
+		this.maxRestarts = maxRestarts;
+		this.initialBackoff = initialBackoff;
+		this.maxBackoff = maxBackoff;
+	}
+
+	/**
+	 * Never restart the process.
+	 */
+	public static RestartPolicy never()
+	{
+		return NEVER;
+	}
+
+	/**
+	 * Restart the process if it exits with a non-zero code.
+	 * @param maxRestarts the number of consecutive failures to restart after before giving up
+	 * @param initialBackoff the delay before the first restart
+	 * @param maxBackoff the maximum delay before a restart
+	 */
+	public static RestartPolicy onFailure(int maxRestarts, Duration initialBackoff, Duration maxBackoff)
+	{
+		return new RestartPolicy(false, maxRestarts, initialBackoff, maxBackoff);
+	}
+
+	/**
+	 * Restart the process whenever it exits without being stopped, since it is never expected to exit on its own.
+	 * @param maxRestarts the number of consecutive exits to restart after before giving up
+	 * @param initialBackoff the delay before the first restart
+	 * @param maxBackoff the maximum delay before a restart
+	 */
+	public static RestartPolicy always(int maxRestarts, Duration initialBackoff, Duration maxBackoff)
+	{
+		return new RestartPolicy(true, maxRestarts, initialBackoff, maxBackoff);
+	}
+
+	/**
+	 * Returns the delay before restarting an exited process, or an empty value if it should not be restarted.
+	 * @param exitCode the exit code of the process
+	 * @param failures the number of consecutive failures, including this one
+	 */
+	public Optional<Duration> restartDelay(int exitCode, int failures)
+	{
+		if((exitCode == 0 && !restartOnSuccess) || failures > maxRestarts)
+		{
+			return Optional.empty();
+		}
+
+		// Cap the shift so the multiplication cannot overflow
+		Duration backoff = initialBackoff.multipliedBy(1L << Math.min(Math.max(failures - 1, 0), 20));
+		return Optional.of(backoff.compareTo(maxBackoff) > 0 ? maxBackoff : backoff);
+	}
+
+	/**
+	 * Returns {@code true} if a run of the given length resets the failure count.
+	 * @param uptime how long the process ran
+	 */
+	public boolean isStable(Duration uptime)
+	{
+		return uptime.compareTo(maxBackoff) >= 0;
+	}
+
+	public int getMaxRestarts()
+	{
+		return maxRestarts;
+	}
+
+	@Override
+	public String toString()
+	{
+		return MoreObjects.toStringHelper(this)
+				.add("restartOnSuccess", restartOnSuccess)
+				.add("maxRestarts", maxRestarts)
+				.add("initialBackoff", initialBackoff)
+				.add("maxBackoff", maxBackoff)
+				.toString();
+	}
+}
@@ -0,0 +1,367 @@
+/**
+ * Copyright 2015 Benjamin Navetta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.aeneas.process;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalInt;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.zeroturnaround.exec.ProcessExecutor;
+import org.zeroturnaround.exec.stream.LogOutputStream;
+
+import com.bennavetta.aeneas.Metrics;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Runs an external process, restarting it according to a {@link RestartPolicy}. The time from each launch until the
+ * process is ready, its exit codes, its restarts, and the CPU and memory used by its process tree are published as
+ * metrics under the process name.
+ * <p>
+ * Exits are reported through {@link #onExit()} once the process has exited and will not be restarted, either because
+ * it was stopped or because the restart policy gave up on it.
+ */
+public final class SupervisedProcess
+{
+	private static final Logger LOG = LoggerFactory.getLogger(SupervisedProcess.class);
+
+	private static final Duration READY_POLL_INTERVAL = Duration.ofMillis(500);
+
+	private final String name;
+	private final List<String> command;
+	private Map<String, String> environment = ImmutableMap.of();
+	private RestartPolicy restartPolicy = RestartPolicy.never();
+	private Consumer<String> outputListener;
+	private BooleanSupplier readinessCheck;
+	private Duration readyTimeout;
+
+	private final AtomicInteger restarts = new AtomicInteger();
+	private boolean metricsPublished;
+
+	private volatile Process process;
+	private volatile boolean stopping;
+	private volatile CompletableFuture<Integer> exit;
+
+	/**
+	 * Create a supervised process.
+	 * @param name the name used in logs, thread names, and metrics, like {@code mesos.master}
+	 * @param command the executable and its arguments
+	 */
+	public SupervisedProcess(String name, List<String> command)
+	{
+		this.name = Preconditions.checkNotNull(name);
+		this.command = ImmutableList.copyOf(command);
+		Preconditions.checkArgument(!this.command.isEmpty(), "Must specify a command");
+	}
+
+	/**
+	 * Set additional environment variables for the process. This takes effect on the next launch.
+	 * @param environment variables added to this JVM's environment
+	 */
+	public void setEnvironment(Map<String, String> environment)
+	{
+		this.environment = ImmutableMap.copyOf(environment);
+	}
+
+	/**
+	 * Set how the process is restarted when it exits without being stopped. By default, it is never restarted.
+	 * @param restartPolicy the restart policy
+	 */
+	public void setRestartPolicy(RestartPolicy restartPolicy)
+	{
+		this.restartPolicy = Preconditions.checkNotNull(restartPolicy);
+	}
+
+	/**
+	 * Receive each line of the process' standard output, which is still copied to this JVM's output. This takes
+	 * effect on the next launch.
+	 * @param listener called with each line of output
+	 */
+	public void setOutputListener(Consumer<String> listener)
+	{
+		this.outputListener = listener;
+	}
+
+	/**
+	 * Check whether each launch of the process becomes ready. The check is polled until it succeeds, and the time it
+	 * took is recorded. A launch that does not become ready in time is killed, which counts as a failure for the
+	 * restart policy. Without a check, processes are considered ready as soon as they are launched.
+	 * @param check returns {@code true} once the process is ready
+	 * @param timeout the maximum time to wait for each launch to become ready
+	 */
+	public void setReadinessCheck(BooleanSupplier check, Duration timeout)
+	{
+		this.readinessCheck = Preconditions.checkNotNull(check);
+		this.readyTimeout = Preconditions.checkNotNull(timeout);
+	}
+
+	/**
+	 * Launch the process and start supervising it. A process whose supervision has ended can be started again.
+	 * @throws IOException if unable to launch the process
+	 */
+	public synchronized void start() throws IOException
+	{
+		Preconditions.checkState(exit == null || exit.isDone(), "%s already running", name);
+		publishMetrics();
+
+		stopping = false;
+		restarts.set(0);
+		launch();
+
+		CompletableFuture<Integer> result = new CompletableFuture<>();
+		exit = result;
+		Thread supervisor = new Thread(() -> supervise(result), name + "-supervisor");
+		supervisor.setDaemon(true);
+		supervisor.start();
+	}
+
+	/**
+	 * Stop the process without restarting it. This does not wait for it to exit.
+	 */
+	public synchronized void stop()
+	{
+		Preconditions.checkState(exit != null, "%s not started", name);
+		stopping = true;
+		Process current = process;
+		if(current != null)
+		{
+			current.destroy();
+		}
+	}
+
+	/**
+	 * Returns a future completed with the final exit code once the process has exited and will not be restarted.
+	 */
+	public CompletableFuture<Integer> onExit()
+	{
+		Preconditions.checkState(exit != null, "%s not started", name);
+		return exit;
+	}
+
+	/**
+	 * Wait for the process to exit without being restarted.
+	 * @return the final exit code
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public int waitFor() throws InterruptedException
+	{
+		try
+		{
+			return onExit().get();
+		}
+		catch (ExecutionException e)
+		{
+			// The supervisor always completes normally
+			throw new IllegalStateException(e.getCause());
+		}
+	}
+
+	/**
+	 * Returns {@code true} if the process is currently running. This is {@code false} while waiting to restart it.
+	 */
+	public boolean isRunning()
+	{
+		Process current = process;
+		return current != null && current.isAlive();
+	}
+
+	/**
+	 * Returns the operating system's id for the running process, or an empty value if it is not running or the id is
+	 * not available.
+	 */
+	public OptionalInt getPid()
+	{
+		Process current = process;
+		if(current == null || !current.isAlive())
+		{
+			return OptionalInt.empty();
+		}
+		return pid(current);
+	}
+
+	/**
+	 * Returns the CPU and memory used by the process and its descendants, or an empty value if it is not running.
+	 */
+	public Optional<ProcessStats> getStats()
+	{
+		OptionalInt pid = getPid();
+		return pid.isPresent() ? ProcessStats.sample(pid.getAsInt()) : Optional.empty();
+	}
+
+	private void publishMetrics()
+	{
+		if(!metricsPublished)
+		{
+			Metrics.gauge(name + ".cpuSeconds", () -> getStats().map(ProcessStats::getCpuSeconds).orElse(0.0));
+			Metrics.gauge(name + ".rssBytes", () -> getStats().map(ProcessStats::getRssBytes).orElse(0L));
+			Metrics.gauge(name + ".restarts", restarts::get);
+			metricsPublished = true;
+		}
+	}
+
+	private void launch() throws IOException
+	{
+		OutputStream output = outputListener == null ? System.out : new LogOutputStream()
+		{
+			@Override
+			protected void processLine(String line)
+			{
+				System.out.println(line);
+				outputListener.accept(line);
+			}
+		};
+
+		process = new ProcessExecutor()
+				.command(command)
+				.environment(environment)
+				.redirectError(System.err)
+				.redirectOutput(output)
+				.destroyOnExit()
+				.start().getProcess();
+		LOG.debug("Launched {} as pid {}", name, pid(process));
+	}
+
+	private void supervise(CompletableFuture<Integer> result)
+	{
+		int failures = 0;
+		int code = -1;
+		try
+		{
+			while(true)
+			{
+				long launched = System.nanoTime();
+				boolean ready = process != null && awaitReady(process, launched);
+				code = process == null ? -1 : process.waitFor();
+				Metrics.record(name + ".lastExitCode", code);
+				if(stopping)
+				{
+					break;
+				}
+
+				Duration uptime = Duration.ofNanos(System.nanoTime() - launched);
+				if(ready && restartPolicy.isStable(uptime))
+				{
+					failures = 0;
+				}
+				failures++;
+
+				Optional<Duration> delay = restartPolicy.restartDelay(code, failures);
+				if(!delay.isPresent())
+				{
+					LOG.info("{} exited with code {} after {}, not restarting", name, code, uptime);
+					break;
+				}
+
+				LOG.warn("{} exited with code {} after {}, restarting in {}", name, code, uptime, delay.get());
+				Thread.sleep(delay.get().toMillis());
+
+				synchronized (this)
+				{
+					if(stopping)
+					{
+						break;
+					}
+					restarts.incrementAndGet();
+					try
+					{
+						launch();
+					}
+					catch (IOException e)
+					{
+						LOG.error("Unable to restart {}", name, e);
+						process = null;
+					}
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			LOG.warn("Interrupted while supervising {}", name);
+			Thread.currentThread().interrupt();
+		}
+		result.complete(code);
+	}
+
+	private boolean awaitReady(Process current, long launched) throws InterruptedException
+	{
+		if(readinessCheck == null)
+		{
+			return true;
+		}
+
+		long deadline = launched + readyTimeout.toNanos();
+		while(current.isAlive() && !stopping)
+		{
+			if(readinessCheck.getAsBoolean())
+			{
+				long millis = Duration.ofNanos(System.nanoTime() - launched).toMillis();
+				Metrics.record(name + ".timeToReadyMillis", millis);
+				LOG.info("{} ready after {} ms", name, millis);
+				return true;
+			}
+			if(System.nanoTime() >= deadline)
+			{
+				LOG.error("{} did not become ready within {}, killing it", name, readyTimeout);
+				current.destroy();
+				return false;
+			}
+			Thread.sleep(READY_POLL_INTERVAL.toMillis());
+		}
+		return false;
+	}
+
+	/**
+	 * Java 8 has no public way to get a process id, so use {@code Process.pid()} where it exists and fall back to the
+	 * UNIX implementation's private field.
+	 */
+	private static OptionalInt pid(Process process)
+	{
+		try
+		{
+			Method pid = Process.class.getMethod("pid");
+			return OptionalInt.of(((Long) pid.invoke(process)).intValue());
+		}
+		catch (ReflectiveOperationException e)
+		{
+			// Not available before Java 9
+		}
+
+		try
+		{
+			Field pid = process.getClass().getDeclaredField("pid");
+			pid.setAccessible(true);
+			return OptionalInt.of(pid.getInt(process));
+		}
+		catch (ReflectiveOperationException | RuntimeException e)
+		{
+			return OptionalInt.empty();
+		}
+	}
+}
@@ -18,6 +18,10 @@ package com.bennavetta.aeneas.mesos.master;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import mousio.etcd4j.EtcdClient;
 
@@ -26,23 +30,39 @@ import org.slf4j.LoggerFactory;
 
 import com.bennavetta.aeneas.Etcd;
 import com.bennavetta.aeneas.Networking;
+import com.bennavetta.aeneas.process.RestartPolicy;
+import com.bennavetta.aeneas.zookeeper.Backend;
+import com.bennavetta.aeneas.zookeeper.ConnectionStringFile;
 import com.bennavetta.aeneas.zookeeper.ServerRegistry;
-import com.bennavetta.aeneas.zookeeper.Servers;
 import com.bennavetta.aeneas.zookeeper.ZkException;
-import com.bennavetta.aeneas.zookeeper.impl.etcd.EtcdServerRegistry;
+import com.google.common.net.HostAndPort;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 public final class Main
 {
 	private static final Logger LOG = LoggerFactory.getLogger(Main.class);
 
+	private static final Duration MASTER_POLL_INTERVAL = Duration.ofSeconds(2);
+
 	public static void main(String[] args) throws IOException
 	{
+		Backend backend = Backend.fromEnvironment(0);
+		ServerRegistry registry = backend.getRegistry();
+
+		// Mesos only reads the file when it starts, so this only keeps restarts on the current servers
+		ConnectionStringFile zkFile = new ConnectionStringFile(registry, Paths.get(
+				System.getenv().getOrDefault("ZK_CONNECTION_FILE", "/etc/mesos/zk")), "aeneas/mesos");
+
+		// Masters always register in etcd, whichever backend holds the ZooKeeper registry
+		int registrationTtl = Integer.parseInt(System.getenv().getOrDefault("REGISTRATION_TTL", "30"));
 		EtcdClient etcd = Etcd.createClient();
-		LOG.info("Connected to etcd - {}", etcd.getVersion());
+		MasterRegistry masters = new MasterRegistry(etcd, registrationTtl);
+		ScheduledExecutorService heartbeat = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("master-heartbeat-%d").build());
 
 		try
 		{
-			ServerRegistry registry = new EtcdServerRegistry(etcd);
+			zkFile.start();
 
 			Path mesosPrefix = Paths.get(System.getenv().getOrDefault("MESOS_PREFIX", "/usr/local"));
 			Path masterExecutable = mesosPrefix.resolve("sbin/mesos-master");
@@ -52,10 +72,73 @@ public final class Main
 			master.setIp(Networking.getLocalAddress().getHostAddress());
 			master.setPort(5050);
 			master.setWorkDir("/var/lib/mesos/master");
-			master.setZk(Servers.toConnectionString(true, registry.getServers(), "aeneas/mesos"));
+			master.setZk(zkFile.toUrl());
 			master.configureFromEnvironment();
 
-			LOG.info("Starting Mesos master");
+			// Not MESOS_ variables, since those are all passed to Mesos
+			int maxRestarts = Integer.parseInt(System.getenv().getOrDefault("MAX_RESTARTS", "5"));
+			long maxBackoff = Long.parseLong(System.getenv().getOrDefault("RESTART_BACKOFF_MAX", "60"));
+			master.setRestartPolicy(RestartPolicy.always(maxRestarts, Duration.ofSeconds(1), Duration.ofSeconds(maxBackoff)));
+
+			// Mesos fixes the quorum at startup, so sizing it from the masters that happen to be registered so far could
+			// leave early masters with a quorum that is not a majority of the final set
+			String expectedMasters = System.getenv("EXPECTED_MASTERS");
+			if(!master.getOption("quorum").isPresent() && expectedMasters == null)
+			{
+				LOG.error("Either MESOS_QUORUM or EXPECTED_MASTERS must be set to size the replicated log quorum");
+				System.exit(1);
+			}
+
+			HostAndPort self = HostAndPort.fromParts(master.getOption("ip").get(),
+			                                         Integer.parseInt(master.getOption("port").get()));
+			masters.register(self);
+			if(registrationTtl > 0)
+			{
+				heartbeat.scheduleWithFixedDelay(() -> {
+					try
+					{
+						masters.register(self);
+					}
+					catch (IOException e)
+					{
+						LOG.warn("Unable to refresh master registration", e);
+					}
+				}, registrationTtl / 3, Math.max(registrationTtl / 3, 1), TimeUnit.SECONDS);
+			}
+			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+				try
+				{
+					masters.deregister(self);
+					etcd.close();
+				}
+				catch (IOException e)
+				{
+					LOG.error("Error deregistering Mesos master", e);
+				}
+			}));
+
+			// An explicit quorum implies enough masters for it to be a majority, so that masters can start one at a time
+			int expected = master.getOption("quorum").map(quorum -> 2 * Integer.parseInt(quorum) - 1).orElseGet(
+					() -> Integer.parseInt(expectedMasters));
+			Duration masterWait = Duration.ofSeconds(Long.parseLong(System.getenv().getOrDefault("MASTER_WAIT", "60")));
+			int masterCount = Math.max(awaitMasters(masters, expected, masterWait), expected);
+
+			if(!master.getOption("quorum").isPresent())
+			{
+				master.setQuorumSize(MasterRegistry.quorumSize(masterCount));
+			}
+			try
+			{
+				master.validate(masterCount);
+			}
+			catch (IllegalStateException e)
+			{
+				LOG.error("Invalid replicated log configuration: {}", e.getMessage());
+				System.exit(1);
+			}
+
+			LOG.info("Starting Mesos master with {} masters and a quorum of {}", masterCount,
+			         master.getOption("quorum").orElse("none"));
 			master.launch();
 			int result = master.waitFor();
 			LOG.info("Mesos exited with value {}", result);
@@ -71,10 +154,31 @@ public final class Main
 		}
 		finally
 		{
-			if(etcd != null)
-			{
-				etcd.close();
-			}
+			heartbeat.shutdownNow();
+			zkFile.stop();
+			backend.close();
+		}
+	}
+
+	/**
+	 * Wait for masters started alongside this one to register.
+	 * @return the number of registered masters
+	 */
+	private static int awaitMasters(MasterRegistry masters, int expected, Duration timeout)
+			throws IOException, InterruptedException
+	{
+		long deadline = System.nanoTime() + timeout.toNanos();
+		int registered = masters.getMasters().size();
+		while(registered < expected && System.nanoTime() < deadline)
+		{
+			LOG.info("Waiting for masters to register ({} of {})", registered, expected);
+			Thread.sleep(MASTER_POLL_INTERVAL.toMillis());
+			registered = masters.getMasters().size();
+		}
+		if(registered < expected)
+		{
+			LOG.warn("Only {} of {} masters registered, sizing the quorum for {}", registered, expected, expected);
 		}
+		return registered;
 	}
 }
@@ -0,0 +1,166 @@
+/**
+ * Copyright 2015 Benjamin Navetta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.aeneas.mesos.master;
+
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+
+import mousio.etcd4j.EtcdClient;
+import mousio.etcd4j.requests.EtcdKeyPutRequest;
+import mousio.etcd4j.responses.EtcdException;
+import mousio.etcd4j.responses.EtcdKeysResponse;
+import mousio.etcd4j.responses.EtcdKeysResponse.EtcdNode;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.net.HostAndPort;
+
+/**
+ * Registry of Mesos masters, stored in etcd. Masters register themselves when they launch so that the replicated log
+ * quorum can be sized from the number of masters instead of being configured by hand. Registrations can be given a
+ * TTL, in which case etcd expires the entries of masters that stop refreshing them.
+ */
+public final class MasterRegistry
+{
+	public static final String REGISTRY_DIR = "aeneas/mesos/masters";
+
+	private static final Logger LOG = LoggerFactory.getLogger(MasterRegistry.class);
+
+	private final EtcdClient etcd;
+	private final int ttl;
+
+	/**
+	 * Create a master registry.
+	 * @param etcd the etcd client
+	 * @param ttl the time-to-live of registrations, in seconds, or {@code 0} for registrations that never expire
+	 */
+	public MasterRegistry(EtcdClient etcd, int ttl)
+	{
+		Preconditions.checkArgument(ttl >= 0, "TTL must not be negative");
+		this.etcd = Preconditions.checkNotNull(etcd);
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Returns the quorum size for a number of masters, which is the smallest majority of them.
+	 * @param masters the number of masters
+	 * @return the quorum size
+	 */
+	public static int quorumSize(int masters)
+	{
+		Preconditions.checkArgument(masters > 0, "Must have at least one master");
+		return masters / 2 + 1;
+	}
+
+	/**
+	 * Register a master, or refresh its registration if it is already registered. A master that restarts with the
+	 * same address keeps its entry.
+	 * @param master the address of the master
+	 * @throws IOException if unable to write the registration
+	 */
+	public void register(HostAndPort master) throws IOException
+	{
+		LOG.trace("Registering master {}", master);
+		EtcdKeyPutRequest request = etcd.put(key(master), master.toString());
+		send(ttl > 0 ? request.ttl(ttl) : request, "register master " + master);
+	}
+
+	/**
+	 * Remove a master from the registry. Masters that are not registered are ignored.
+	 * @param master the address of the master
+	 * @throws IOException if unable to remove the registration
+	 */
+	public void deregister(HostAndPort master) throws IOException
+	{
+		LOG.debug("Deregistering master {}", master);
+		try
+		{
+			etcd.delete(key(master)).send().get();
+		}
+		catch (EtcdException e)
+		{
+			if(e.errorCode != 100) // not found - already expired
+			{
+				throw new IOException("Etcd error deregistering master " + master, e);
+			}
+		}
+		catch (TimeoutException e)
+		{
+			throw new IOException("Timed out deregistering master " + master, e);
+		}
+	}
+
+	/**
+	 * Returns the registered masters.
+	 * @throws IOException if unable to read the registry
+	 */
+	public ImmutableList<HostAndPort> getMasters() throws IOException
+	{
+		EtcdKeysResponse listing;
+		try
+		{
+			listing = etcd.getDir(REGISTRY_DIR).send().get();
+		}
+		catch (EtcdException e)
+		{
+			if(e.errorCode == 100) // not found - no masters registered
+			{
+				return ImmutableList.of();
+			}
+			throw new IOException("Etcd error obtaining master listing", e);
+		}
+		catch (TimeoutException e)
+		{
+			throw new IOException("Timed out obtaining master listing", e);
+		}
+
+		if(listing.node.nodes == null)
+		{
+			return ImmutableList.of();
+		}
+
+		ImmutableList.Builder<HostAndPort> masters = ImmutableList.builder();
+		for(EtcdNode node : listing.node.nodes)
+		{
+			masters.add(HostAndPort.fromString(node.value));
+		}
+		return masters.build();
+	}
+
+	private static String key(HostAndPort master)
+	{
+		return REGISTRY_DIR + "/" + master.getHostText() + ":" + master.getPort();
+	}
+
+	private static void send(EtcdKeyPutRequest request, String description) throws IOException
+	{
+		try
+		{
+			request.send().get();
+		}
+		catch (EtcdException e)
+		{
+			throw new IOException("Etcd error trying to " + description, e);
+		}
+		catch (TimeoutException e)
+		{
+			throw new IOException("Timed out trying to " + description, e);
+		}
+	}
+}
@@ -17,37 +17,23 @@ package com.bennavetta.aeneas.mesos.master;
 
 import java.io.IOException;
 import java.nio.file.Path;
-import java.util.Map;
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import org.zeroturnaround.exec.ProcessExecutor;
 
+import com.bennavetta.aeneas.process.MesosProcess;
 import com.google.common.base.Preconditions;
-import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Maps;
 
 /**
  *  Launch a Mesos master instance
  *  @see <a href="http://mesos.apache.org/documentation/latest/configuration/">Mesos Configuration</a>
  */
-public final class MesosMaster
+public final class MesosMaster extends MesosProcess
 {
-	private static final Logger LOG = LoggerFactory.getLogger(MesosMaster.class);
-
-	private final Map<String, String> configuration = Maps.newHashMap();
-	private final Path masterExecutable;
-
-	private Process process;
-
 	/**
 	 * Create a new Mesos master handler that will run the given {@code mesos-master} executable.
 	 * @param masterExecutable the path to {@code mesos-master}
 	 */
 	public MesosMaster(Path masterExecutable)
 	{
-		this.masterExecutable = Preconditions.checkNotNull(masterExecutable);
+		super("master", masterExecutable, 5050);
 	}
 
 	/**
@@ -55,6 +41,7 @@ public final class MesosMaster
 	 * value to be a majority of masters i.e., quorum > (number of masters)/2.
 	 *
 	 * @param size the quorum size
+	 * @see MasterRegistry#quorumSize(int)
 	 */
 	public void setQuorumSize(int size)
 	{
@@ -70,24 +57,6 @@ public final class MesosMaster
 		setOption("work_dir", workDir);
 	}
 
-	/**
-	 * IP address to listen on
-	 * @param ip an IP address
-	 */
-	public void setIp(String ip)
-	{
-		setOption("ip", ip);
-	}
-
-	/**
-	 * Port to listen on (master default: 5050 and slave default: 5051)
-	 * @param port a port number
-	 */
-	public void setPort(int port)
-	{
-		setOption("port", String.valueOf(port));
-	}
-
 	/**
 	 * ZooKeeper URL (used for leader election amongst masters) May be one of:
 	 * <ul>
@@ -102,54 +71,48 @@ public final class MesosMaster
 		setOption("zk", connection);
 	}
 
-	public void setOption(String name, String value)
-	{
-		configuration.put(name, value);
-	}
-
-	public void configureFromEnvironment()
+	/**
+	 * Check the replicated log settings against the number of masters. A quorum that is not a majority lets two
+	 * groups of masters both accept writes, and a quorum larger than the number of masters means no write can
+	 * succeed. Masters using the in-memory registry are not checked.
+	 * @param masters the number of masters sharing the replicated log
+	 * @throws IllegalStateException if the settings are invalid
+	 */
+	public void validate(int masters)
 	{
-		final ImmutableSet<String> ignoredKeys = ImmutableSet.of("version", "download_sha1", "download_url");
-
-		System.getenv().forEach((key, value) -> {
-			if(key.startsWith("MESOS_"))
-			{
-				String argName = key.substring(6).toLowerCase();
-				if(!ignoredKeys.contains(argName))
-				{
-					setOption(argName, value);
-				}
-			}
-		});
+		if(isInMemory())
+		{
+			return;
+		}
+
+		Preconditions.checkState(getOption("work_dir").isPresent(), "The replicated log requires a work directory");
+		String quorumOption = getOption("quorum").orElseThrow(
+				() -> new IllegalStateException("The replicated log requires a quorum size"));
+		int quorum;
+		try
+		{
+			quorum = Integer.parseInt(quorumOption);
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IllegalStateException("Invalid quorum size: " + quorumOption, e);
+		}
+		Preconditions.checkState(quorum > masters / 2,
+		                         "Quorum of %s is not a majority of %s masters, which risks split brain", quorum, masters);
+		Preconditions.checkState(quorum <= masters,
+		                         "Quorum of %s is larger than the %s masters, so the registry cannot be written",
+		                         quorum, masters);
 	}
 
+	@Override
 	public void launch() throws IOException
 	{
-		Preconditions.checkState(process == null, "Mesos master already running");
-
-		ImmutableMap.Builder<String, String> environment = ImmutableMap.<String, String>builder();
-		configuration.forEach((key, value) -> environment.put("MESOS_" + key.toUpperCase(), value));
-		environment.put("MESOS_VERSION", "false"); // Mesos interprets the Dockerfile environment variable as the '--version' flag
-
-		LOG.info("Starting Mesos master '{}' with configuration {}", masterExecutable, environment.build());
-		process = new ProcessExecutor()
-	        .command(masterExecutable.toAbsolutePath().toString())
-	        .redirectError(System.err)
-	        .redirectOutput(System.out)
-	        .environment(environment.build())
-	        .destroyOnExit()
-	        .start().getProcess();
-	}
-
-	public void kill()
-	{
-		Preconditions.checkState(process != null, "Mesos master not running");
-		process.destroy();
+		Preconditions.checkState(getOption("quorum").isPresent() || isInMemory(), "Quorum size not set");
+		super.launch();
 	}
 
-	public int waitFor() throws InterruptedException
+	private boolean isInMemory()
 	{
-		Preconditions.checkState(process != null, "Mesos master not running");
-		return process.waitFor();
+		return getOption("registry").filter("in_memory"::equals).isPresent();
 	}
 }
@@ -18,19 +18,18 @@ package com.bennavetta.aeneas.mesos.slave;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-
-import mousio.etcd4j.EtcdClient;
+import java.time.Duration;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.bennavetta.aeneas.Etcd;
 import com.bennavetta.aeneas.Networking;
 import com.bennavetta.aeneas.mesos.slave.docker.Docker;
+import com.bennavetta.aeneas.process.RestartPolicy;
+import com.bennavetta.aeneas.zookeeper.Backend;
+import com.bennavetta.aeneas.zookeeper.ConnectionStringFile;
 import com.bennavetta.aeneas.zookeeper.ServerRegistry;
-import com.bennavetta.aeneas.zookeeper.Servers;
 import com.bennavetta.aeneas.zookeeper.ZkException;
-import com.bennavetta.aeneas.zookeeper.impl.etcd.EtcdServerRegistry;
 
 public class Main
 {
@@ -38,12 +37,16 @@ public class Main
 	
 	public static void main(String[] args) throws IOException
 	{
-		EtcdClient etcd = Etcd.createClient();
-		LOG.info("Connected to etcd - {}", etcd.getVersion());
+		Backend backend = Backend.fromEnvironment(0);
+		ServerRegistry registry = backend.getRegistry();
+
+		// Mesos only reads the file when it starts, so this only keeps restarts on the current servers
+		ConnectionStringFile zkFile = new ConnectionStringFile(registry, Paths.get(
+				System.getenv().getOrDefault("ZK_CONNECTION_FILE", "/etc/mesos/zk")), "aeneas/mesos");
 
 		try
 		{
-			ServerRegistry registry = new EtcdServerRegistry(etcd);
+			zkFile.start();
 
 			Path mesosPrefix = Paths.get(System.getenv().getOrDefault("MESOS_PREFIX", "/usr/local"));
 			Path executable = mesosPrefix.resolve("sbin/mesos-slave");
@@ -51,14 +54,27 @@ public class Main
 			MesosSlave slave = new MesosSlave(executable);
 			slave.setIp(Networking.getLocalAddress().getHostAddress());
 			slave.setPort(5051);
-			slave.setMaster(Servers.toConnectionString(true, registry.getServers(), "aeneas/mesos"));
+			slave.setMaster(zkFile.toUrl());
 			slave.configureFromEnvironment();
 
-			if(Docker.startDocker())
+			// Not MESOS_ variables, since those are all passed to Mesos
+			int maxRestarts = Integer.parseInt(System.getenv().getOrDefault("MAX_RESTARTS", "5"));
+			long maxBackoff = Long.parseLong(System.getenv().getOrDefault("RESTART_BACKOFF_MAX", "60"));
+			slave.setRestartPolicy(RestartPolicy.always(maxRestarts, Duration.ofSeconds(1), Duration.ofSeconds(maxBackoff)));
+
+			boolean docker = Docker.startDocker();
+			if(docker)
 			{
 				slave.setContainerizers("docker", "mesos");
 			}
 
+			// Resources set with MESOS_RESOURCES are left alone
+			if(!slave.getOption("resources").isPresent())
+			{
+				Path workDir = Paths.get(slave.getOption("work_dir").orElse("/tmp/mesos")); // the Mesos default
+				slave.setResources(SlaveResources.detect(workDir, docker));
+			}
+
 			LOG.info("Starting Mesos slave");
 			slave.launch();
 			int result = slave.waitFor();
@@ -74,10 +90,8 @@ public class Main
 		}
 		finally
 		{
-			if(etcd != null)
-			{
-				etcd.close();
-			}
+			zkFile.stop();
+			backend.close();
 		}
 	}
 }
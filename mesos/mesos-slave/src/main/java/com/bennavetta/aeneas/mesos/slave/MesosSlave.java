@@ -15,60 +15,30 @@
  */
 package com.bennavetta.aeneas.mesos.slave;
 
+import com.bennavetta.aeneas.process.MesosProcess;
 import com.google.common.base.Joiner;
-import com.google.common.base.Preconditions;
-import com.google.common.collect.ImmutableMap;
-import com.google.common.collect.ImmutableSet;
-import com.google.common.collect.Maps;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import org.zeroturnaround.exec.ProcessExecutor;
 
-import java.io.IOException;
 import java.nio.file.Path;
-import java.util.Map;
 
 /**
  * Launch a Mesos slave instance
  */
-public class MesosSlave
+public class MesosSlave extends MesosProcess
 {
-	// TODO: reduce code duplication between this and MesosMaster
-
-	private static final Logger LOG = LoggerFactory.getLogger(MesosSlave.class);
-
-	private final Map<String, String> configuration = Maps.newHashMap();
-	private final Path executable;
-	private Process process;
-
 	public MesosSlave(Path executable)
 	{
-		this.executable = Preconditions.checkNotNull(executable);
-	}
-
-	public void setOption(String name, String value)
-	{
-		configuration.put(name, value);
-	}
-
-	/**
-	 * IP address to listen on
-	 *
-	 * @param ip an IP address
-	 */
-	public void setIp(String ip)
-	{
-		setOption("ip", ip);
+		super("slave", executable, 5051);
 	}
 
 	/**
-	 * Port to listen on (master default: 5050 and slave default: 5051)
+	 * Set the resources offered to frameworks, like {@code cpus:2;mem:3840;disk:20480;ports:[31000-32000]}.
 	 *
-	 * @param port a port number
+	 * @param resources a resource specification
+	 * @see SlaveResources#detect(Path, boolean)
 	 */
-	public void setPort(int port)
+	public void setResources(String resources)
 	{
-		setOption("port", String.valueOf(port));
+		setOption("resources", resources);
 	}
 
 	/**
@@ -95,50 +65,4 @@ public class MesosSlave
 	{
 		setOption("containerizers", Joiner.on(',').join(containerizers));
 	}
-
-	public void configureFromEnvironment()
-	{
-		final ImmutableSet<String> ignoredKeys = ImmutableSet.of("version", "download_sha1", "download_url");
-
-		System.getenv().forEach((key, value) -> {
-			if(key.startsWith("MESOS_"))
-			{
-				String argName = key.substring(6).toLowerCase();
-				if(!ignoredKeys.contains(argName))
-				{
-					setOption(argName, value);
-				}
-			}
-		});
-	}
-
-	public void launch() throws IOException
-	{
-		Preconditions.checkState(process == null, "Mesos slave already running");
-
-		ImmutableMap.Builder<String, String> environment = ImmutableMap.<String, String>builder();
-		configuration.forEach((key, value) -> environment.put("MESOS_" + key.toUpperCase(), value));
-		environment.put("MESOS_VERSION", "false"); // Mesos interprets the Dockerfile environment variable as the '--version' flag
-
-		LOG.info("Starting Mesos slave '{}' with configuration {}", executable, environment.build());
-		process = new ProcessExecutor()
-				.command(executable.toAbsolutePath().toString())
-				.redirectError(System.err)
-				.redirectOutput(System.out)
-				.environment(environment.build())
-				.destroyOnExit()
-				.start().getProcess();
-	}
-
-	public void kill()
-	{
-		Preconditions.checkState(process != null, "Mesos slave not running");
-		process.destroy();
-	}
-
-	public int waitFor() throws InterruptedException
-	{
-		Preconditions.checkState(process != null, "Mesos slave not running");
-		return process.waitFor();
-	}
 }
@@ -0,0 +1,124 @@
+/**
+ * Copyright 2015 Benjamin Navetta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.aeneas.mesos.slave;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Locale;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bennavetta.aeneas.Resources;
+import com.google.common.base.Charsets;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ContiguousSet;
+import com.google.common.collect.DiscreteDomain;
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.TreeRangeSet;
+
+/**
+ * Determines the resources a slave advertises to Mesos. Mesos' own detection looks at the whole host, so inside a
+ * container it offers CPUs and memory that the container's cgroup does not allow it to use. Instead, CPUs and memory
+ * come from the cgroup limits, disk from the filesystem holding the work directory, and ports from Mesos' default range
+ * minus the kernel's ephemeral ports. Some of each is held back for this wrapper and for the Docker daemon, which run
+ * in the same container as the slave.
+ */
+public final class SlaveResources
+{
+	private static final Logger LOG = LoggerFactory.getLogger(SlaveResources.class);
+
+	private static final long MB = 1024 * 1024;
+
+	private static final double WRAPPER_CPUS = 0.1;
+	private static final long WRAPPER_OVERHEAD_MB = 64; // beyond the heap: metaspace, thread stacks, buffers
+	private static final double DOCKER_CPUS = 0.25;
+	private static final long DOCKER_MB = 256;
+
+	private static final double MIN_CPUS = 0.1;
+	private static final long MIN_MEM_MB = 32;
+
+	/**
+	 * Mesos reserves this much disk for itself on large filesystems and half of smaller ones.
+	 */
+	private static final long DISK_RESERVE_MB = 5 * 1024;
+
+	private static final Range<Integer> DEFAULT_PORTS = Range.closed(31000, 32000);
+	private static final Path EPHEMERAL_PORTS = Paths.get("/proc/sys/net/ipv4/ip_local_port_range");
+
+	private SlaveResources() {}
+
+	/**
+	 * Compute a resource specification for {@code --resources}, like {@code cpus:2;mem:3840;disk:20480;ports:[31000-32000]}.
+	 * @param workDir the slave's work directory, where sandboxes are stored
+	 * @param docker whether a Docker daemon is running alongside the slave
+	 * @return the resource specification
+	 * @throws IOException if unable to determine the size of the work directory's filesystem
+	 */
+	public static String detect(Path workDir, boolean docker) throws IOException
+	{
+		double reservedCpus = WRAPPER_CPUS + (docker ? DOCKER_CPUS : 0);
+		long reservedMem = Runtime.getRuntime().maxMemory() / MB + WRAPPER_OVERHEAD_MB + (docker ? DOCKER_MB : 0);
+
+		double cpus = Math.max(Resources.cpuLimit() - reservedCpus, MIN_CPUS);
+		long mem = Math.max(Resources.memoryLimit() / MB - reservedMem, MIN_MEM_MB);
+		long totalDisk = Resources.totalSpace(workDir) / MB;
+		long disk = totalDisk > 2 * DISK_RESERVE_MB ? totalDisk - DISK_RESERVE_MB : totalDisk / 2;
+
+		StringBuilder spec = new StringBuilder()
+				.append(String.format(Locale.ROOT, "cpus:%.2f;mem:%d;disk:%d", cpus, mem, disk));
+		String ports = ports();
+		if(!ports.isEmpty())
+		{
+			spec.append(";ports:[").append(ports).append(']');
+		}
+
+		LOG.info("Detected slave resources {} (reserved {} CPUs and {} MB for this process{})", spec, reservedCpus,
+		         reservedMem, docker ? " and Docker" : "");
+		return spec.toString();
+	}
+
+	/**
+	 * Returns the port ranges to offer, as {@code low-high} pairs separated by commas. Ports the kernel may hand out
+	 * for outgoing connections are excluded, so tasks are not offered ports that are already in use.
+	 */
+	private static String ports()
+	{
+		RangeSet<Integer> ports = TreeRangeSet.create();
+		ports.add(DEFAULT_PORTS);
+		try
+		{
+			List<String> bounds = Splitter.on('\t').trimResults().omitEmptyStrings().splitToList(
+					new String(Files.readAllBytes(EPHEMERAL_PORTS), Charsets.US_ASCII).trim().replace(' ', '\t'));
+			ports.remove(Range.closed(Integer.parseInt(bounds.get(0)), Integer.parseInt(bounds.get(1))));
+		}
+		catch (IOException | RuntimeException e)
+		{
+			LOG.debug("Unable to read ephemeral port range", e);
+		}
+
+		return ports.asRanges().stream()
+		            .map(range -> ContiguousSet.create(range, DiscreteDomain.integers()))
+		            .filter(range -> !range.isEmpty())
+		            .map(range -> range.first() + "-" + range.last())
+		            .collect(Collectors.joining(","));
+	}
+}
@@ -18,10 +18,15 @@ package com.bennavetta.aeneas.mesos.slave.docker;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.zeroturnaround.exec.ProcessExecutor;
 
+import com.bennavetta.aeneas.Metrics;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 
@@ -32,6 +37,9 @@ public final class Docker
 {
 	private static final Logger LOG = LoggerFactory.getLogger(Docker.class);
 
+	private static final Duration POLL_INTERVAL = Duration.ofMillis(250);
+	private static final Duration PING_TIMEOUT = Duration.ofSeconds(5);
+
 	private Docker() {}
 
 	private static boolean socketExists()
@@ -40,7 +48,74 @@ public final class Docker
 	}
 
 	/**
-	 * If necessary, attempt to launch a Docker daemon.
+	 * Check whether the daemon answers requests. Java 8 cannot open Unix sockets, so the Docker client is used to make
+	 * the request.
+	 */
+	private static boolean ping() throws InterruptedException
+	{
+		try
+		{
+			return new ProcessExecutor("docker", "info")
+					.readOutput(true)
+					.exitValueAny()
+					.timeout(PING_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS)
+					.execute()
+					.getExitValue() == 0;
+		}
+		catch (IOException | TimeoutException e)
+		{
+			LOG.trace("Docker ping failed", e);
+			return false;
+		}
+	}
+
+	/**
+	 * Wait for a newly launched daemon to create its socket and answer requests.
+	 * @param daemon the daemon process
+	 * @param timeout the maximum time to wait
+	 * @return {@code true} if the daemon is ready, {@code false} if it exited or did not become ready in time
+	 */
+	private static boolean awaitDaemon(Process daemon, Duration timeout) throws InterruptedException
+	{
+		long started = System.nanoTime();
+		long deadline = started + timeout.toNanos();
+		boolean socketSeen = false;
+
+		while(System.nanoTime() < deadline)
+		{
+			if(!daemon.isAlive())
+			{
+				LOG.error("Docker daemon exited with code {} during startup, see the DockerDaemon log for details",
+				          daemon.exitValue());
+				return false;
+			}
+
+			if(!socketSeen && socketExists())
+			{
+				socketSeen = true;
+				LOG.debug("Docker socket created after {} ms", Duration.ofNanos(System.nanoTime() - started).toMillis());
+			}
+
+			if(socketSeen && ping())
+			{
+				long millis = Duration.ofNanos(System.nanoTime() - started).toMillis();
+				Metrics.record("docker.startupMillis", millis);
+				LOG.info("Docker daemon ready after {} ms", millis);
+				return true;
+			}
+
+			Thread.sleep(POLL_INTERVAL.toMillis());
+		}
+
+		LOG.error("Docker daemon not ready after {} ({}), stopping it", timeout,
+		          socketSeen ? "socket exists but the daemon does not answer" : "socket was never created");
+		daemon.destroy();
+		return false;
+	}
+
+	/**
+	 * If necessary, attempt to launch a Docker daemon. A launched daemon is given {@code DOCKER_START_TIMEOUT}
+	 * seconds (60 by default) to become ready.
 	 * @return {@code true} if a Docker daemon exists or was started, {@code false} if no Docker daemon could be obtained
 	 */
 	public static boolean startDocker()
@@ -54,10 +129,12 @@ public final class Docker
 			try
 			{
 				LOG.debug("Launching Docker daemon");
-				Daemon.launchDaemon(ImmutableList.of());
+				Process daemon = Daemon.launchDaemon(ImmutableList.of());
 
-				LOG.debug("Waiting for daemon to start");
-				Thread.sleep(15000);
+				Duration timeout = Duration.ofSeconds(
+						Long.parseLong(System.getenv().getOrDefault("DOCKER_START_TIMEOUT", "60")));
+				LOG.debug("Waiting up to {} for daemon to start", timeout);
+				return awaitDaemon(daemon, timeout);
 			}
 			catch (IOException e)
 			{
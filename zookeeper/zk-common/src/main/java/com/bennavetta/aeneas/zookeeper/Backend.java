@@ -0,0 +1,150 @@
+/**
+ * Copyright 2015 Benjamin Navetta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.aeneas.zookeeper;
+
+import com.bennavetta.aeneas.Etcd;
+import com.bennavetta.aeneas.zookeeper.impl.etcd.EtcdBlockIdGenerator;
+import com.bennavetta.aeneas.zookeeper.impl.etcd.EtcdIdGenerator;
+import com.bennavetta.aeneas.zookeeper.impl.etcd.EtcdServerRegistry;
+import com.bennavetta.aeneas.zookeeper.impl.file.FileIdGenerator;
+import com.bennavetta.aeneas.zookeeper.impl.file.FileServerRegistry;
+import com.bennavetta.aeneas.zookeeper.impl.zk.ZooKeeperConnection;
+import com.bennavetta.aeneas.zookeeper.impl.zk.ZooKeeperIdGenerator;
+import com.bennavetta.aeneas.zookeeper.impl.zk.ZooKeeperServerRegistry;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import mousio.etcd4j.EtcdClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * The store that holds the server registry and allocates ids, along with the client connected to it. The store is
+ * chosen with the {@code REGISTRY_BACKEND} environment variable:
+ *
+ * <ul>
+ *     <li>{@code etcd} (the default) uses etcd, found as described in {@link Etcd#getEtcdHost()}. Ids are allocated
+ *     sequentially, or in blocks that reuse released ids if {@code ID_GENERATOR} is {@code block}, with
+ *     {@code ID_BLOCK_SIZE} ids reserved at a time. Each node only needs one id, and the sequential generator never
+ *     conflicts, so the block generator is only worth using when released ids must be reused.</li>
+ *     <li>{@code zookeeper} uses a seed ZooKeeper ensemble, given as a connection string in {@code REGISTRY_ZK}, with
+ *     a session timeout of {@code REGISTRY_ZK_SESSION_TIMEOUT} milliseconds.</li>
+ *     <li>{@code file} keeps servers as files in the {@code REGISTRY_DIR} directory, which must be shared by every
+ *     process in the cluster. This is only suitable when they all run on one host. Registrations do not expire.</li>
+ * </ul>
+ */
+public final class Backend implements Closeable
+{
+	private static final Logger LOG = LoggerFactory.getLogger(Backend.class);
+
+	private final ServerRegistry registry;
+	private final IdGenerator idGenerator;
+	private final Closeable client;
+
+	private Backend(ServerRegistry registry, IdGenerator idGenerator, Closeable client)
+	{
+		this.registry = registry;
+		this.idGenerator = idGenerator;
+		this.client = client;
+	}
+
+	/**
+	 * Connect to the store configured in the environment.
+	 * @param registrationTtl if positive, registrations are removed once the registering process stops refreshing
+	 *                        them for this many seconds, or, with ZooKeeper, once its session ends
+	 * @return the configured backend
+	 */
+	public static Backend fromEnvironment(int registrationTtl)
+	{
+		String backend = System.getenv().getOrDefault("REGISTRY_BACKEND", "etcd");
+		switch(backend)
+		{
+			case "etcd":
+			{
+				EtcdClient etcd = Etcd.createClient();
+				LOG.info("Connected to etcd - {}", etcd.getVersion());
+
+				IdGenerator idGenerator = "block".equals(System.getenv().getOrDefault("ID_GENERATOR", "sequential"))
+				                          ? new EtcdBlockIdGenerator(etcd, Integer.parseInt(
+						                          System.getenv().getOrDefault("ID_BLOCK_SIZE", "1")))
+				                          : new EtcdIdGenerator(etcd);
+				return new Backend(new EtcdServerRegistry(etcd, registrationTtl), idGenerator, etcd);
+			}
+			case "zookeeper":
+			{
+				String connectString = System.getenv("REGISTRY_ZK");
+				if(connectString == null)
+				{
+					throw new IllegalStateException("REGISTRY_ZK must be set to use the ZooKeeper registry");
+				}
+				ZooKeeperConnection connection = new ZooKeeperConnection(connectString, Integer.parseInt(
+						System.getenv().getOrDefault("REGISTRY_ZK_SESSION_TIMEOUT", "10000")));
+				LOG.info("Using ZooKeeper registry at {}", connectString);
+
+				return new Backend(new ZooKeeperServerRegistry(connection, new ObjectMapper(), registrationTtl > 0),
+				                   new ZooKeeperIdGenerator(connection), connection);
+			}
+			case "file":
+			{
+				String directory = System.getenv("REGISTRY_DIR");
+				if(directory == null)
+				{
+					throw new IllegalStateException("REGISTRY_DIR must be set to use the file registry");
+				}
+				Path root = Paths.get(directory);
+				LOG.info("Using file registry in {}", root);
+
+				return new Backend(new FileServerRegistry(root.resolve("servers")),
+				                   new FileIdGenerator(root.resolve("last-id")), () -> {});
+			}
+			default:
+				throw new IllegalArgumentException("Unknown registry backend: " + backend);
+		}
+	}
+
+	public ServerRegistry getRegistry()
+	{
+		return registry;
+	}
+
+	public IdGenerator getIdGenerator()
+	{
+		return idGenerator;
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			if(idGenerator instanceof EtcdBlockIdGenerator)
+			{
+				((EtcdBlockIdGenerator) idGenerator).close();
+			}
+		}
+		catch (ZkException e)
+		{
+			LOG.warn("Unable to release reserved ids", e);
+		}
+		finally
+		{
+			client.close();
+		}
+	}
+}
@@ -0,0 +1,298 @@
+/**
+ * Copyright 2015 Benjamin Navetta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.aeneas.zookeeper;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Server registry decorator that answers {@link #getServers()} from memory. The cache is loaded from the listing the
+ * registry watcher starts from, and then kept current from the changes the watcher delivers after that listing, so
+ * no change can fall between the two and reads never go over the network. Like the underlying registry, the cached
+ * listing may briefly lag behind the actual membership, including after writes made through this registry.
+ * <p>
+ * If the change stream fails, the cache is discarded and reads fall through to the underlying registry.
+ */
+public class CachingServerRegistry implements ServerRegistry, ServerRegistryWatcher.Listener
+{
+	private static final Logger LOG = LoggerFactory.getLogger(CachingServerRegistry.class);
+
+	/**
+	 * How long {@link #start()} waits for the watcher's initial listing.
+	 */
+	private static final Duration LOAD_TIMEOUT = Duration.ofSeconds(30);
+
+	private final ServerRegistry delegate;
+	private final ExecutorService watchExecutor;
+
+	/**
+	 * The current listing, replaced wholesale on every change. {@code null} if the cache is not usable.
+	 */
+	private volatile ImmutableMap<Integer, ZkServer> servers;
+
+	/**
+	 * Completed once the watcher has delivered its initial listing, or failed if the watch stopped first.
+	 */
+	private final CompletableFuture<Void> loaded = new CompletableFuture<>();
+
+	/**
+	 * Whether the change stream is still running. A listing is only usable while it is.
+	 */
+	private boolean watching;
+
+	private ServerRegistryWatcher watcher;
+
+	public CachingServerRegistry(ServerRegistry delegate)
+	{
+		this.delegate = Preconditions.checkNotNull(delegate);
+		this.watchExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+				                                                       .setNameFormat("registry-cache-%d")
+				                                                       .setDaemon(true)
+				                                                       .build());
+	}
+
+	/**
+	 * Start watching the underlying registry and wait for the initial listing.
+	 * @throws ZkException if unable to load the listing
+	 */
+	public void start() throws ZkException
+	{
+		Preconditions.checkState(watcher == null, "Cache already started");
+
+		synchronized (this)
+		{
+			watching = true;
+		}
+
+		watcher = delegate.watch(this);
+		watchExecutor.execute(() -> {
+			try
+			{
+				watcher.watch();
+			}
+			catch (ZkException e)
+			{
+				LOG.error("Registry watch failed, disabling server cache", e);
+				loaded.completeExceptionally(e);
+			}
+			finally
+			{
+				invalidate();
+			}
+		});
+
+		try
+		{
+			loaded.get(LOAD_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			stop();
+			Thread.currentThread().interrupt();
+			throw new ZkException("Interrupted loading server cache", e);
+		}
+		catch (ExecutionException e)
+		{
+			stop();
+			throw e.getCause() instanceof ZkException
+			      ? (ZkException) e.getCause()
+			      : new ZkException("Unable to load server cache", e.getCause());
+		}
+		catch (TimeoutException e)
+		{
+			stop();
+			throw new ZkException("Timed out loading server cache", e);
+		}
+
+		LOG.debug("Loaded {} servers into cache", servers == null ? 0 : servers.size());
+	}
+
+	/**
+	 * Stop watching the underlying registry. Reads fall through to the underlying registry afterwards.
+	 */
+	public void stop()
+	{
+		if(watcher != null)
+		{
+			watcher.stopWatching();
+		}
+		watchExecutor.shutdownNow();
+		invalidate();
+	}
+
+	/**
+	 * Returns {@code true} if reads are currently answered from the cache.
+	 */
+	public boolean isCaching()
+	{
+		return servers != null;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CompletableFuture<Void> registerAsync(ZkServer server)
+	{
+		return delegate.registerAsync(server);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CompletableFuture<Void> deregisterAsync(ZkServer server)
+	{
+		return delegate.deregisterAsync(server);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CompletableFuture<Void> refreshAsync(ZkServer server)
+	{
+		return delegate.refreshAsync(server);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CompletableFuture<Void> updateAsync(ZkServer server)
+	{
+		return delegate.updateAsync(server);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean expiresRegistrations()
+	{
+		return delegate.expiresRegistrations();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CompletableFuture<Void> registerAllAsync(Collection<ZkServer> servers)
+	{
+		return delegate.registerAllAsync(servers);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CompletableFuture<Void> deregisterAllAsync(Collection<ZkServer> servers)
+	{
+		return delegate.deregisterAllAsync(servers);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public ImmutableList<ZkServer> getServers() throws ZkException
+	{
+		ImmutableMap<Integer, ZkServer> current = servers;
+		if(current == null)
+		{
+			return delegate.getServers();
+		}
+		return current.values().asList();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CompletableFuture<ImmutableList<ZkServer>> getServersAsync()
+	{
+		ImmutableMap<Integer, ZkServer> current = servers;
+		if(current == null)
+		{
+			return delegate.getServersAsync();
+		}
+		return CompletableFuture.completedFuture(current.values().asList());
+	}
+
+	@Override
+	public ServerRegistryWatcher watch(ServerRegistryWatcher.Listener listener, WatchCheckpoint checkpoint)
+	{
+		return delegate.watch(listener, checkpoint);
+	}
+
+	@Override
+	public void serverAdded(ZkServer server)
+	{
+		serversChanged(ImmutableList.of(server), ImmutableList.of());
+	}
+
+	@Override
+	public void serverRemoved(int serverId)
+	{
+		serversChanged(ImmutableList.of(), ImmutableList.of(serverId));
+	}
+
+	@Override
+	public synchronized void serversListed(Collection<ZkServer> listed)
+	{
+		if(watching)
+		{
+			Map<Integer, ZkServer> initial = Maps.newLinkedHashMap();
+			listed.forEach(server -> initial.put(server.getId(), server));
+			servers = ImmutableMap.copyOf(initial);
+		}
+		loaded.complete(null);
+	}
+
+	@Override
+	public synchronized void serversChanged(Collection<ZkServer> added, Collection<Integer> removed)
+	{
+		if(servers != null)
+		{
+			Map<Integer, ZkServer> updated = Maps.newLinkedHashMap(servers);
+			removed.forEach(updated::remove);
+			added.forEach(server -> updated.put(server.getId(), server));
+			servers = ImmutableMap.copyOf(updated);
+		}
+	}
+
+	private synchronized void invalidate()
+	{
+		watching = false;
+		servers = null;
+		loaded.completeExceptionally(new ZkException("Registry watch stopped"));
+	}
+}
@@ -0,0 +1,185 @@
+/**
+ * Copyright 2015 Benjamin Navetta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.aeneas.zookeeper;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Keeps a ZooKeeper connection string in a file, up to date with the server registry. This is for clients that read
+ * their connection string from a file, such as Mesos with a {@code file://} URL. Mesos only reads the file when it
+ * starts, so a running Mesos process keeps the servers it started with, but one restarted by its restart policy
+ * connects to the current servers rather than the ones registered when the container started.
+ * <p>
+ * The initial listing is read once, and after that the changes delivered by the watcher are applied to it. The file is
+ * replaced atomically and only if the connection string changed. An empty registry leaves the last connection string
+ * in place, since it is more useful than none.
+ */
+public class ConnectionStringFile implements ServerRegistryWatcher.Listener
+{
+	private static final Logger LOG = LoggerFactory.getLogger(ConnectionStringFile.class);
+
+	private final ServerRegistry registry;
+	private final Path file;
+	private final String chroot;
+
+	private final ExecutorService watchExecutor;
+	private ServerRegistryWatcher watcher;
+	private final Map<Integer, ZkServer> servers = Maps.newTreeMap();
+
+	/**
+	 * Create a new connection string file.
+	 * @param registry the registry to watch
+	 * @param file the file to write
+	 * @param chroot the path to append to the connection string, or {@code null} for none
+	 */
+	public ConnectionStringFile(ServerRegistry registry, Path file, String chroot)
+	{
+		this.registry = Preconditions.checkNotNull(registry);
+		this.file = Preconditions.checkNotNull(file).toAbsolutePath();
+		this.chroot = chroot;
+		this.watchExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+				                                                       .setNameFormat("connection-file-%d")
+				                                                       .setDaemon(true)
+				                                                       .build());
+	}
+
+	/**
+	 * Write the current connection string and start keeping it up to date.
+	 * @throws ZkException if unable to write the initial connection string
+	 */
+	public synchronized void start() throws ZkException
+	{
+		Preconditions.checkState(watcher == null, "Already started");
+
+		servers.clear();
+		registry.getServers().forEach(server -> servers.put(server.getId(), server));
+		write();
+
+		watcher = registry.watch(this);
+		watchExecutor.execute(() -> {
+			try
+			{
+				watcher.watch();
+			}
+			catch (ZkException e)
+			{
+				LOG.error("Registry watch failed, no longer updating {}", file, e);
+			}
+		});
+	}
+
+	public synchronized void stop()
+	{
+		if(watcher != null)
+		{
+			watcher.stopWatching();
+		}
+		watchExecutor.shutdownNow();
+	}
+
+	/**
+	 * Returns a {@code file://} URL for the connection string file.
+	 */
+	public String toUrl()
+	{
+		return "file://" + file;
+	}
+
+	@Override
+	public void serverAdded(ZkServer server)
+	{
+		serversChanged(ImmutableList.of(server), ImmutableList.of());
+	}
+
+	@Override
+	public void serverRemoved(int serverId)
+	{
+		serversChanged(ImmutableList.of(), ImmutableList.of(serverId));
+	}
+
+	@Override
+	public synchronized void serversListed(Collection<ZkServer> listed)
+	{
+		// Replaces the listing from start(), which may have missed changes made before the watch began
+		servers.clear();
+		listed.forEach(server -> servers.put(server.getId(), server));
+		update();
+	}
+
+	@Override
+	public synchronized void serversChanged(Collection<ZkServer> added, Collection<Integer> removed)
+	{
+		removed.forEach(servers::remove);
+		added.forEach(server -> servers.put(server.getId(), server));
+		update();
+	}
+
+	private void update()
+	{
+		try
+		{
+			write();
+		}
+		catch (ZkException e)
+		{
+			LOG.warn("Unable to update {}", file, e);
+		}
+	}
+
+	private void write() throws ZkException
+	{
+		if(servers.isEmpty() && Files.exists(file))
+		{
+			LOG.warn("No servers registered, keeping the connection string in {}", file);
+			return;
+		}
+
+		byte[] contents = Servers.toConnectionString(true, servers.values(), chroot).getBytes(Charsets.UTF_8);
+		try
+		{
+			if(Files.exists(file) && Arrays.equals(Files.readAllBytes(file), contents))
+			{
+				return;
+			}
+
+			Files.createDirectories(file.getParent());
+			Path temp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+			Files.write(temp, contents);
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			LOG.info("Updated {} with {} servers", file, servers.size());
+		}
+		catch (IOException e)
+		{
+			throw new ZkException("Unable to write connection string to " + file, e);
+		}
+	}
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright 2015 Benjamin Navetta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.aeneas.zookeeper;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Optional;
+
+/**
+ * Watch checkpoint stored as JSON in a file, so that it survives restarts. The file is replaced atomically on every
+ * save, so a crash never leaves a partially-written checkpoint behind.
+ */
+public class FileWatchCheckpoint implements WatchCheckpoint
+{
+	private final Path file;
+	private final ObjectMapper objectMapper;
+
+	public FileWatchCheckpoint(Path file)
+	{
+		this(file, new ObjectMapper());
+	}
+
+	public FileWatchCheckpoint(Path file, ObjectMapper objectMapper)
+	{
+		this.file = Preconditions.checkNotNull(file);
+		this.objectMapper = Preconditions.checkNotNull(objectMapper);
+	}
+
+	@Override
+	public Optional<Position> load() throws ZkException
+	{
+		try
+		{
+			return Optional.of(objectMapper.readValue(Files.readAllBytes(file), Position.class));
+		}
+		catch (NoSuchFileException e)
+		{
+			return Optional.empty();
+		}
+		catch (IOException e)
+		{
+			throw new ZkException("Unable to read watch checkpoint from " + file, e);
+		}
+	}
+
+	@Override
+	public void save(Position position) throws ZkException
+	{
+		try
+		{
+			Path parent = file.toAbsolutePath().getParent();
+			Files.createDirectories(parent);
+			Path temp = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+			objectMapper.writeValue(temp.toFile(), position);
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException e)
+		{
+			throw new ZkException("Unable to save watch checkpoint to " + file, e);
+		}
+	}
+}
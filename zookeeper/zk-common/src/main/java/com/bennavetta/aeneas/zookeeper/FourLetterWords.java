@@ -0,0 +1,113 @@
+/**
+ * Copyright 2015 Benjamin Navetta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.aeneas.zookeeper;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
+import com.google.common.net.HostAndPort;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.Map;
+
+/**
+ * Sends ZooKeeper's <a href="https://zookeeper.apache.org/doc/r3.5.0-alpha/zookeeperAdmin.html#sc_zkCommands">four
+ * letter word</a> commands over a plain socket. ZooKeeper has its own client for these, but it depends on log4j.
+ */
+public final class FourLetterWords
+{
+	private FourLetterWords()
+	{
+
+	}
+
+	/**
+	 * Send a command to a server and return its response.
+	 * @param server the server's client address
+	 * @param command the four letter command, like {@code ruok} or {@code srvr}
+	 * @param timeout how long to wait for the connection and the response
+	 * @return the response text
+	 * @throws IOException if unable to communicate with the server
+	 */
+	public static String send(HostAndPort server, String command, Duration timeout) throws IOException
+	{
+		Preconditions.checkArgument(command.length() == 4, "Not a four letter word: %s", command);
+		try(Socket socket = new Socket())
+		{
+			socket.connect(new InetSocketAddress(server.getHostText(), server.getPort()), (int) timeout.toMillis());
+			socket.setSoTimeout((int) timeout.toMillis());
+
+			OutputStream out = socket.getOutputStream();
+			out.write(command.getBytes(Charsets.US_ASCII));
+			out.flush();
+			socket.shutdownOutput();
+
+			return new String(ByteStreams.toByteArray(socket.getInputStream()), Charsets.US_ASCII);
+		}
+	}
+
+	/**
+	 * Obtain a server's status with the {@code srvr} command.
+	 * @param server the server's client address
+	 * @param timeout how long to wait for the connection and the response
+	 * @return the status fields, such as {@code Mode} and {@code Zxid}. Lines that are not fields are skipped, and if
+	 *         a field is repeated, its first value is used.
+	 * @throws IOException if unable to communicate with the server
+	 */
+	public static Map<String, String> status(HostAndPort server, Duration timeout) throws IOException
+	{
+		Map<String, String> fields = Maps.newLinkedHashMap();
+		for(String line : send(server, "srvr", timeout).split("\n"))
+		{
+			int colon = line.indexOf(':');
+			if(colon > 0)
+			{
+				fields.putIfAbsent(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+			}
+		}
+		return ImmutableMap.copyOf(fields);
+	}
+
+	/**
+	 * Obtain the last zxid a server has seen.
+	 * @param server the server's client address
+	 * @param timeout how long to wait for the connection and the response
+	 * @return the server's zxid
+	 * @throws IOException if unable to communicate with the server or it did not report a valid zxid
+	 */
+	public static long zxid(HostAndPort server, Duration timeout) throws IOException
+	{
+		String zxid = status(server, timeout).get("Zxid");
+		if(zxid == null)
+		{
+			throw new IOException("Server " + server + " did not report a zxid");
+		}
+		try
+		{
+			return Long.decode(zxid);
+		}
+		catch (NumberFormatException e)
+		{
+			throw new IOException("Server " + server + " reported an invalid zxid: " + zxid, e);
+		}
+	}
+}
@@ -15,6 +15,8 @@
  */
 package com.bennavetta.aeneas.zookeeper;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * A service for generating new ZooKeeper ids. A server should generate a new id whenever it has a new data directory
  * and reuse its existing id where possible.
@@ -28,5 +30,37 @@ public interface IdGenerator
 	 * @return a ZooKeeper id
 	 * @throws ZkException if unable to generate the id
 	 */
-	public int generateId() throws ZkException;
+	public default int generateId() throws ZkException
+	{
+		return ZkFutures.await(generateIdAsync());
+	}
+
+	/**
+	 * Asynchronously allocate a new ZooKeeper id.
+	 * @return a future that completes with a ZooKeeper id, or fails with a {@link ZkException}
+	 * @see #generateId()
+	 */
+	public CompletableFuture<Integer> generateIdAsync();
+
+	/**
+	 * Return an id that no server uses anymore, so that it can be allocated again. This must only be called once the
+	 * server's data directory, and with it the {@code myid} file, is gone. Generators that never reuse ids ignore it.
+	 * @param id the id to release
+	 * @throws ZkException if unable to release the id
+	 */
+	public default void releaseId(int id) throws ZkException
+	{
+		ZkFutures.await(releaseIdAsync(id));
+	}
+
+	/**
+	 * Asynchronously release an id.
+	 * @param id the id to release
+	 * @return a future that completes once the id is released, or fails with a {@link ZkException}
+	 * @see #releaseId(int)
+	 */
+	public default CompletableFuture<Void> releaseIdAsync(int id)
+	{
+		return CompletableFuture.completedFuture(null);
+	}
 }
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2015 Benjamin Navetta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.aeneas.zookeeper;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * A parsed ZooKeeper dynamic configuration, as stored in the {@code /zookeeper/config} node and returned by
+ * reconfiguration.
+ */
+public final class QuorumConfig
+{
+	private final ImmutableMap<Integer, ZkServer> servers;
+	private final long version;
+
+	public QuorumConfig(ImmutableMap<Integer, ZkServer> servers, long version)
+	{
+		this.servers = Preconditions.checkNotNull(servers);
+		this.version = version;
+	}
+
+	/**
+	 * Parse a dynamic configuration. Lines other than server specifications and the version are ignored.
+	 * @param config the configuration data
+	 * @return the parsed configuration
+	 * @throws IllegalArgumentException if a server specification is malformed
+	 */
+	public static QuorumConfig parse(byte[] config)
+	{
+		return parse(new String(config, Charsets.US_ASCII));
+	}
+
+	/**
+	 * Parse a dynamic configuration. Lines other than server specifications and the version are ignored.
+	 * @param config the configuration text
+	 * @return the parsed configuration
+	 * @throws IllegalArgumentException if a server specification is malformed
+	 */
+	public static QuorumConfig parse(String config)
+	{
+		ImmutableMap.Builder<Integer, ZkServer> servers = ImmutableMap.builder();
+		long version = -1;
+
+		for(String line : Splitter.on('\n').trimResults().omitEmptyStrings().split(config))
+		{
+			if(line.startsWith("server."))
+			{
+				ZkServer server = Servers.parseServerSpec(line);
+				servers.put(server.getId(), server);
+			}
+			else if(line.startsWith("version="))
+			{
+				version = Long.parseLong(line.substring("version=".length()), 16);
+			}
+		}
+
+		return new QuorumConfig(servers.build(), version);
+	}
+
+	/**
+	 * Returns the servers in the configuration, keyed by id.
+	 */
+	public ImmutableMap<Integer, ZkServer> getServers()
+	{
+		return servers;
+	}
+
+	/**
+	 * Returns the configuration version, which is the zxid that created it, or {@code -1} if the configuration did not
+	 * include one. This is the value to pass as {@code fromConfig} when reconfiguring.
+	 */
+	public long getVersion()
+	{
+		return version;
+	}
+
+	@Override
+	public String toString()
+	{
+		return MoreObjects.toStringHelper(this)
+				.add("version", Long.toHexString(version))
+				.add("servers", servers.values())
+				.toString();
+	}
+}
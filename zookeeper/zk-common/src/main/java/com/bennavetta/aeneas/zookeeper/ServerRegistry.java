@@ -17,8 +17,15 @@ package com.bennavetta.aeneas.zookeeper;
 
 import com.google.common.collect.ImmutableList;
 
+import java.util.Collection;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
 /**
  * Provides access to a shared registry of ZooKeeper servers in a cluster.
+ * <p>
+ * Each operation has an asynchronous variant that returns immediately. The blocking methods wait for the asynchronous
+ * ones. Futures may be completed on the registry's I/O thread, so callbacks attached to them should not block.
  */
 public interface ServerRegistry
 {
@@ -28,7 +35,18 @@ public interface ServerRegistry
 	 * @param server the server to register
 	 * @throws ZkException if unable to register the server
 	 */
-	public void register(ZkServer server) throws ZkException;
+	public default void register(ZkServer server) throws ZkException
+	{
+		ZkFutures.await(registerAsync(server));
+	}
+
+	/**
+	 * Asynchronously add a server to the list of available nodes.
+	 * @param server the server to register
+	 * @return a future that completes once the server is registered, or fails with a {@link ZkException}
+	 * @see #register(ZkServer)
+	 */
+	public CompletableFuture<Void> registerAsync(ZkServer server);
 
 	/**
 	 * Remove a server from the list of available nodes. The server need not be immediately terminated, but it will be
@@ -36,7 +54,113 @@ public interface ServerRegistry
 	 * @param server the server to deregister
 	 * @throws ZkException if unable to deregister the server
 	 */
-	public void deregister(ZkServer server) throws ZkException;
+	public default void deregister(ZkServer server) throws ZkException
+	{
+		ZkFutures.await(deregisterAsync(server));
+	}
+
+	/**
+	 * Asynchronously remove a server from the list of available nodes.
+	 * @param server the server to deregister
+	 * @return a future that completes once the server is deregistered, or fails with a {@link ZkException}
+	 * @see #deregister(ZkServer)
+	 */
+	public CompletableFuture<Void> deregisterAsync(ZkServer server);
+
+	/**
+	 * Renew a server's registration. Registries may let registrations expire so that servers which die without
+	 * deregistering are removed eventually, in which case this must be called periodically while the server runs.
+	 * The registry entry is rewritten with the given information, and if it has already expired, the server is
+	 * registered again.
+	 * @param server the server to renew
+	 * @throws ZkException if unable to renew the registration
+	 */
+	public default void refresh(ZkServer server) throws ZkException
+	{
+		ZkFutures.await(refreshAsync(server));
+	}
+
+	/**
+	 * Asynchronously renew a server's registration. This is {@link #updateAsync(ZkServer)}, followed by
+	 * {@link #registerAsync(ZkServer)} if the server is no longer registered.
+	 * @param server the server to renew
+	 * @return a future that completes once the registration is renewed, or fails with a {@link ZkException}
+	 * @see #refresh(ZkServer)
+	 */
+	public default CompletableFuture<Void> refreshAsync(ZkServer server)
+	{
+		return updateAsync(server).<CompletableFuture<Void>>handle((result, error) -> {
+			if(error == null)
+			{
+				return CompletableFuture.completedFuture(null);
+			}
+			Throwable cause = ZkFutures.unwrap(error);
+			if(cause instanceof IllegalStateException)
+			{
+				return registerAsync(server);
+			}
+			return ZkFutures.failed(cause);
+		}).thenCompose(Function.identity());
+	}
+
+	/**
+	 * Asynchronously renew an existing registration, rewriting it with the given information. Unlike
+	 * {@link #refreshAsync(ZkServer)}, a server that is no longer registered is not registered again, so this is
+	 * safe to race with deregistration.
+	 * @param server the server to renew
+	 * @return a future that completes once the registration is renewed, or fails with an
+	 *         {@link IllegalStateException} if the server is not registered or a {@link ZkException}
+	 */
+	public CompletableFuture<Void> updateAsync(ZkServer server);
+
+	/**
+	 * Returns {@code true} if registrations expire unless they are refreshed periodically.
+	 */
+	public default boolean expiresRegistrations()
+	{
+		return false;
+	}
+
+	/**
+	 * Register several servers as one membership change. Watchers see the whole batch as a single change set where
+	 * the underlying store allows it. Only registries that say so write the batch atomically; otherwise, if a
+	 * registration fails, those that succeeded are removed again on a best-effort basis, and readers and watchers
+	 * may observe part of the batch in the meantime.
+	 * @param servers the servers to register
+	 * @throws ZkException if unable to register the servers
+	 */
+	public default void registerAll(Collection<ZkServer> servers) throws ZkException
+	{
+		ZkFutures.await(registerAllAsync(servers));
+	}
+
+	/**
+	 * Asynchronously register several servers as one membership change, with the same guarantees as
+	 * {@link #registerAll(Collection)}.
+	 * @param servers the servers to register
+	 * @return a future that completes once all servers are registered, or fails with a {@link ZkException}
+	 * @see #registerAll(Collection)
+	 */
+	public CompletableFuture<Void> registerAllAsync(Collection<ZkServer> servers);
+
+	/**
+	 * Deregister several servers as one membership change. Deregistration is attempted for every server even if some
+	 * fail, since the servers are leaving regardless.
+	 * @param servers the servers to deregister
+	 * @throws ZkException if unable to deregister any of the servers
+	 */
+	public default void deregisterAll(Collection<ZkServer> servers) throws ZkException
+	{
+		ZkFutures.await(deregisterAllAsync(servers));
+	}
+
+	/**
+	 * Asynchronously deregister several servers as one membership change.
+	 * @param servers the servers to deregister
+	 * @return a future that completes once all servers are deregistered, or fails with a {@link ZkException}
+	 * @see #deregisterAll(Collection)
+	 */
+	public CompletableFuture<Void> deregisterAllAsync(Collection<ZkServer> servers);
 
 	/**
 	 * Returns the current server list. This is not necessarily obtained from the ZooKeeper quorum, so it may be briefly
@@ -45,12 +169,37 @@ public interface ServerRegistry
 	 * @return a list of servers
 	 * @throws ZkException if unable to obtain a server listing
 	 */
-	public ImmutableList<ZkServer> getServers() throws ZkException;
+	public default ImmutableList<ZkServer> getServers() throws ZkException
+	{
+		return ZkFutures.await(getServersAsync());
+	}
+
+	/**
+	 * Asynchronously obtain the current server list.
+	 * @return a future that completes with a list of servers, or fails with a {@link ZkException}
+	 * @see #getServers()
+	 */
+	public CompletableFuture<ImmutableList<ZkServer>> getServersAsync();
+
+	/**
+	 * Create a new watcher that will monitor the ZooKeeper server registry for changes. The watcher starts from the
+	 * registry contents at the time it is started.
+	 * @param listener the listener that will be called when the registry is modified
+	 * @return an unstarted watcher
+	 */
+	public default ServerRegistryWatcher watch(ServerRegistryWatcher.Listener listener)
+	{
+		return watch(listener, WatchCheckpoint.inMemory());
+	}
 
 	/**
-	 * Create a new watcher that will monitor the ZooKeeper server registry for changes.
+	 * Create a new watcher that resumes from a checkpoint. If the checkpoint has been saved, the listener is only
+	 * notified of changes made after it, and the watcher saves a new checkpoint after every change set it delivers.
+	 * If the changes since the checkpoint are no longer available, the watcher compares the current registry contents
+	 * with what it last saw and delivers the difference instead.
 	 * @param listener the listener that will be called when the registry is modified
+	 * @param checkpoint where the watcher's position is saved
 	 * @return an unstarted watcher
 	 */
-	public ServerRegistryWatcher watch(ServerRegistryWatcher.Listener listener);
+	public ServerRegistryWatcher watch(ServerRegistryWatcher.Listener listener, WatchCheckpoint checkpoint);
 }
@@ -15,6 +15,8 @@
  */
 package com.bennavetta.aeneas.zookeeper;
 
+import java.util.Collection;
+
 /**
  * Monitors the server registry for changes.
  */
@@ -41,5 +43,28 @@ public interface ServerRegistryWatcher
 		public void serverAdded(ZkServer server);
 
 		public void serverRemoved(int serverId);
+
+		/**
+		 * Called with the whole registry when the watcher starts from a listing rather than a checkpoint, before any
+		 * change made after that listing is delivered. By default, this does nothing.
+		 * @param servers the servers in the listing
+		 */
+		public default void serversListed(Collection<ZkServer> servers)
+		{
+
+		}
+
+		/**
+		 * Called with a group of changes that were made to the registry together, such as a batch registration. By
+		 * default, this calls {@link #serverRemoved(int)} and {@link #serverAdded(ZkServer)} for each change.
+		 * Listeners that can apply a whole membership change at once should override it.
+		 * @param added servers that were added or updated
+		 * @param removed ids of servers that were removed
+		 */
+		public default void serversChanged(Collection<ZkServer> added, Collection<Integer> removed)
+		{
+			removed.forEach(this::serverRemoved);
+			added.forEach(this::serverAdded);
+		}
 	}
 }
@@ -17,10 +17,15 @@ package com.bennavetta.aeneas.zookeeper;
 
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
 import com.google.common.net.HostAndPort;
+import com.google.common.net.HostSpecifier;
 
+import java.text.ParseException;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.stream.Collectors;
 
@@ -58,6 +63,50 @@ public final class Servers
 		return servers.stream().collect(Collectors.toMap(s -> "server." + s.getId(), ZkServer::toConnectionSpec));
 	}
 
+	/**
+	 * Parses a server keyword specification, the inverse of {@link ZkServer#toServerSpec()}. The specification may
+	 * include a client address as well as a client port, as ZooKeeper writes it in its dynamic configuration, and the
+	 * role may be omitted, in which case the server is a participant.
+	 * @param spec a specification of the form {@code server.<id>=<address>:<port1>:<port2>[:role];[<client address>:]<client port>}
+	 * @return the server described by the specification
+	 * @throws IllegalArgumentException if the specification is malformed
+	 */
+	public static ZkServer parseServerSpec(String spec)
+	{
+		Preconditions.checkNotNull(spec);
+		int equals = spec.indexOf('=');
+		Preconditions.checkArgument(spec.startsWith("server.") && equals > 0, "Not a server specification: %s", spec);
+
+		try
+		{
+			int id = Integer.parseInt(spec.substring("server.".length(), equals).trim());
+
+			String connection = spec.substring(equals + 1).trim();
+			int semicolon = connection.indexOf(';');
+			Preconditions.checkArgument(semicolon > 0, "Server specification has no client port: %s", spec);
+
+			List<String> peer = Splitter.on(':').splitToList(connection.substring(0, semicolon));
+			Preconditions.checkArgument(peer.size() == 3 || peer.size() == 4, "Invalid server address: %s", spec);
+			ZkServer.Role role = peer.size() == 4
+			                     ? ZkServer.Role.valueOf(peer.get(3).toUpperCase(Locale.ROOT))
+			                     : ZkServer.Role.defaultRole();
+
+			String client = connection.substring(semicolon + 1);
+			int clientPort = Integer.parseInt(client.substring(client.lastIndexOf(':') + 1));
+
+			return new ZkServer(id,
+			                    HostSpecifier.from(peer.get(0)),
+			                    role,
+			                    Integer.parseInt(peer.get(1)),
+			                    Integer.parseInt(peer.get(2)),
+			                    clientPort);
+		}
+		catch (ParseException | NumberFormatException e)
+		{
+			throw new IllegalArgumentException("Invalid server specification: " + spec, e);
+		}
+	}
+
 	/**
 	 * Builds a client connection string from several servers. The basic format is comma-separated host:port pairs.
 	 * The {@code zk://} protocol specifier can also be added, since some non-ZooKeeper applications require it (the
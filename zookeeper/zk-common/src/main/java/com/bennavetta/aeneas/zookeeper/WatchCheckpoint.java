@@ -0,0 +1,105 @@
+/**
+ * Copyright 2015 Benjamin Navetta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.aeneas.zookeeper;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableList;
+
+import java.util.Collection;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Records how far a {@link ServerRegistryWatcher} has read through the registry's change history, so that a restarted
+ * watcher can resume where the previous one stopped instead of starting over.
+ */
+public interface WatchCheckpoint
+{
+	/**
+	 * Returns the last saved position, if there is one.
+	 * @throws ZkException if unable to read the checkpoint
+	 */
+	public Optional<Position> load() throws ZkException;
+
+	/**
+	 * Record that all changes up to and including the given position have been delivered.
+	 * @param position the watcher's position
+	 * @throws ZkException if unable to save the checkpoint
+	 */
+	public void save(Position position) throws ZkException;
+
+	/**
+	 * Returns a checkpoint that is only kept in memory. This lets a watcher resume after being stopped and started
+	 * again in the same process.
+	 */
+	public static WatchCheckpoint inMemory()
+	{
+		AtomicReference<Position> saved = new AtomicReference<>();
+		return new WatchCheckpoint()
+		{
+			@Override
+			public Optional<Position> load()
+			{
+				return Optional.ofNullable(saved.get());
+			}
+
+			@Override
+			public void save(Position position)
+			{
+				saved.set(position);
+			}
+		};
+	}
+
+	/**
+	 * A position in the registry's change history, along with the servers that the listener has been told about up
+	 * to that point. The servers are needed to tell the listener what changed if the history since the position is
+	 * no longer available.
+	 */
+	public static final class Position
+	{
+		private final long index;
+		private final ImmutableList<ZkServer> servers;
+
+		@JsonCreator
+		public Position(@JsonProperty("index") long index, @JsonProperty("servers") Collection<ZkServer> servers)
+		{
+			this.index = index;
+			this.servers = ImmutableList.copyOf(servers);
+		}
+
+		public long getIndex()
+		{
+			return index;
+		}
+
+		public ImmutableList<ZkServer> getServers()
+		{
+			return servers;
+		}
+
+		@Override
+		public String toString()
+		{
+			return MoreObjects.toStringHelper(this)
+					.add("index", index)
+					.add("servers", servers)
+					.toString();
+		}
+	}
+}
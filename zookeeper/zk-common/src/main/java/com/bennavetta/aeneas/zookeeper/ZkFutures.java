@@ -0,0 +1,96 @@
+/**
+ * Copyright 2015 Benjamin Navetta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.aeneas.zookeeper;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Static utility methods for the asynchronous registry APIs.
+ */
+public final class ZkFutures
+{
+	private ZkFutures()
+	{
+
+	}
+
+	/**
+	 * Block until a future completes and return its value. This is how the blocking registry methods are implemented
+	 * on top of the asynchronous ones.
+	 * @param future the future to wait for
+	 * @param <T> the result type
+	 * @return the result of the future
+	 * @throws ZkException if the future failed with a {@link ZkException} or a checked exception, or if the calling
+	 *                     thread is interrupted
+	 */
+	public static <T> T await(CompletableFuture<T> future) throws ZkException
+	{
+		Preconditions.checkNotNull(future);
+		try
+		{
+			return future.get();
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new ZkException("Interrupted waiting for operation to complete", e);
+		}
+		catch (ExecutionException e)
+		{
+			Throwable cause = unwrap(e);
+			if(cause instanceof ZkException)
+			{
+				throw (ZkException) cause;
+			}
+			Throwables.propagateIfPossible(cause);
+			throw new ZkException(cause);
+		}
+	}
+
+	/**
+	 * Create a future that has already failed with the given exception.
+	 * @param error the failure cause
+	 * @param <T> the result type
+	 * @return a completed future
+	 */
+	public static <T> CompletableFuture<T> failed(Throwable error)
+	{
+		CompletableFuture<T> future = new CompletableFuture<>();
+		future.completeExceptionally(error);
+		return future;
+	}
+
+	/**
+	 * Strip the {@link CompletionException} and {@link ExecutionException} wrappers that futures add around the
+	 * actual failure.
+	 * @param error an exception reported by a future
+	 * @return the underlying cause
+	 */
+	public static Throwable unwrap(Throwable error)
+	{
+		Throwable cause = error;
+		while((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null)
+		{
+			cause = cause.getCause();
+		}
+		return cause;
+	}
+}
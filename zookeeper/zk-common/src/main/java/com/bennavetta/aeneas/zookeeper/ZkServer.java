@@ -18,19 +18,29 @@ package com.bennavetta.aeneas.zookeeper;
 import com.bennavetta.aeneas.zookeeper.impl.HostSpecifierSerializer;
 import com.bennavetta.aeneas.zookeeper.impl.HostSpecifierDeserializer;
 import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 import com.google.common.base.MoreObjects;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.net.HostAndPort;
 import com.google.common.net.HostSpecifier;
 
+import java.util.Map;
+import java.util.Objects;
+
 /**
  * Represents a ZooKeeper server node. The information used to represent a server is essentially the same as that in a
  * ZooKeeper server configuration line. However, the client port address is currently unsupported and is assumed to be
  * the same as the server address. Also, the first and second ports specified are referred to as the peer and election
  * ports.
+ * <p>
+ * Servers can also carry free-form attributes, such as health measurements, which are published in the registry but
+ * are not part of the ZooKeeper configuration.
  */
+@JsonIgnoreProperties(ignoreUnknown = true)
 public final class ZkServer
 {
 	private final int id;
@@ -43,13 +53,22 @@ public final class ZkServer
 	private final int electionPort;
 	private final int clientPort;
 
+	@JsonInclude(JsonInclude.Include.NON_EMPTY)
+	private final ImmutableMap<String, String> attributes;
+
+	public ZkServer(int id, HostSpecifier address, Role role, int peerPort, int electionPort, int clientPort)
+	{
+		this(id, address, role, peerPort, electionPort, clientPort, null);
+	}
+
 	@JsonCreator
 	public ZkServer(@JsonProperty("id") int id,
 	                @JsonProperty("address") HostSpecifier address,
 	                @JsonProperty("role") Role role,
 	                @JsonProperty("peerPort") int peerPort,
 	                @JsonProperty("electionPort") int electionPort,
-	                @JsonProperty("clientPort") int clientPort)
+	                @JsonProperty("clientPort") int clientPort,
+	                @JsonProperty("attributes") Map<String, String> attributes)
 	{
 		this.id = id;
 		this.address = address;
@@ -57,6 +76,7 @@ public final class ZkServer
 		this.peerPort = peerPort;
 		this.electionPort = electionPort;
 		this.clientPort = clientPort;
+		this.attributes = attributes == null ? ImmutableMap.of() : ImmutableMap.copyOf(attributes);
 	}
 
 	/**
@@ -70,6 +90,26 @@ public final class ZkServer
 		return String.format("server.%d=%s", id, toConnectionSpec());
 	}
 
+	/**
+	 * Returns a copy of this server with a different role.
+	 * @param role the new role
+	 * @return a server with the same id and addresses
+	 */
+	public ZkServer withRole(Role role)
+	{
+		return new ZkServer(id, address, role, peerPort, electionPort, clientPort, attributes);
+	}
+
+	/**
+	 * Returns a copy of this server with different attributes.
+	 * @param attributes the new attributes
+	 * @return a server with the same id, role, and addresses
+	 */
+	public ZkServer withAttributes(Map<String, String> attributes)
+	{
+		return new ZkServer(id, address, role, peerPort, electionPort, clientPort, attributes);
+	}
+
 	/**
 	 * Returns the connection information for this server. In effect, this is the part of the server specification to
 	 * the right of the equals sign.
@@ -91,6 +131,33 @@ public final class ZkServer
 		return HostAndPort.fromParts(address.toString(), clientPort);
 	}
 
+	@Override
+	public boolean equals(Object o)
+	{
+		if(this == o)
+		{
+			return true;
+		}
+		if(o == null || getClass() != o.getClass())
+		{
+			return false;
+		}
+		ZkServer other = (ZkServer) o;
+		return id == other.id
+				&& peerPort == other.peerPort
+				&& electionPort == other.electionPort
+				&& clientPort == other.clientPort
+				&& Objects.equals(address, other.address)
+				&& role == other.role
+				&& attributes.equals(other.attributes);
+	}
+
+	@Override
+	public int hashCode()
+	{
+		return Objects.hash(id, address, role, peerPort, electionPort, clientPort, attributes);
+	}
+
 	@Override
 	public String toString()
 	{
@@ -101,6 +168,7 @@ public final class ZkServer
 				.add("peerPort", peerPort)
 				.add("electionPort", electionPort)
 				.add("clientPort", clientPort)
+				.add("attributes", attributes)
 				.toString();
 	}
 
@@ -134,6 +202,11 @@ public final class ZkServer
 		return clientPort;
 	}
 
+	public ImmutableMap<String, String> getAttributes()
+	{
+		return attributes;
+	}
+
 	public static enum Role
 	{
 		OBSERVER,
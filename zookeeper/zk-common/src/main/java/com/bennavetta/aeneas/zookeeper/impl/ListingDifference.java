@@ -0,0 +1,82 @@
+/**
+ * Copyright 2015 Benjamin Navetta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.aeneas.zookeeper.impl;
+
+import com.bennavetta.aeneas.zookeeper.ServerRegistryWatcher;
+import com.bennavetta.aeneas.zookeeper.ZkServer;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Static utility methods for registry watchers that find changes by comparing successive listings of the registry.
+ */
+public final class ListingDifference
+{
+	private static final Logger LOG = LoggerFactory.getLogger(ListingDifference.class);
+
+	private ListingDifference()
+	{
+
+	}
+
+	/**
+	 * Index servers by id.
+	 * @param servers the servers in a listing
+	 * @return a mutable map from id to server
+	 */
+	public static Map<Integer, ZkServer> byId(Iterable<ZkServer> servers)
+	{
+		Map<Integer, ZkServer> map = Maps.newHashMap();
+		servers.forEach(server -> map.put(server.getId(), server));
+		return map;
+	}
+
+	/**
+	 * Tell a listener how the registry changed between two listings. Nothing is delivered if they are the same.
+	 * @param known the servers in the previous listing
+	 * @param current the servers in the current listing
+	 * @param listener the listener to notify
+	 */
+	public static void deliver(Map<Integer, ZkServer> known, Map<Integer, ZkServer> current,
+	                           ServerRegistryWatcher.Listener listener)
+	{
+		List<ZkServer> added = Lists.newArrayList();
+		List<Integer> removed = Lists.newArrayList();
+		current.forEach((id, server) -> {
+			if(!server.equals(known.get(id)))
+			{
+				added.add(server);
+			}
+		});
+		known.keySet().forEach(id -> {
+			if(!current.containsKey(id))
+			{
+				removed.add(id);
+			}
+		});
+
+		if(!added.isEmpty() || !removed.isEmpty())
+		{
+			LOG.debug("Registry changed: added or updated {}, removed {}", added, removed);
+			listener.serversChanged(added, removed);
+		}
+	}
+}
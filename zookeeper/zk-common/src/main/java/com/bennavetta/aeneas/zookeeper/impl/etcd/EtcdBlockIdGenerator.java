@@ -0,0 +1,338 @@
+/**
+ * Copyright 2015 Benjamin Navetta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.aeneas.zookeeper.impl.etcd;
+
+import com.bennavetta.aeneas.zookeeper.IdGenerator;
+import com.bennavetta.aeneas.zookeeper.ZkException;
+import com.bennavetta.aeneas.zookeeper.ZkFutures;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.io.BaseEncoding;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import mousio.etcd4j.EtcdClient;
+import mousio.etcd4j.requests.EtcdKeyPutRequest;
+import mousio.etcd4j.responses.EtcdException;
+import mousio.etcd4j.responses.EtcdKeysResponse;
+import mousio.etcd4j.responses.EtcdKeysResponse.EtcdNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Etcd-based {@link IdGenerator} that reserves ids in blocks. A counter key holds the lowest id that has not been
+ * reserved, and is advanced a whole block at a time with a compare-and-swap. The ids in a block are then handed out
+ * without going to etcd. Released ids are kept in a bitmap in a second key and are handed out before new ones, so ids
+ * stay small and dense. Both keys are read with a single request, and once the bitmap has been seen empty, ids left in
+ * the current block are handed out without reading it again. Ids released by other clients are then picked up when
+ * the next block is reserved.
+ * <p>
+ * Conflicting updates are retried until a deadline, after a random delay that grows with each attempt, so that many
+ * clients starting at once all get an id eventually. With a block size of one, every id costs a compare-and-swap on
+ * the counter, so {@link EtcdIdGenerator} is cheaper when released ids do not need to be reused.
+ * <p>
+ * The ids are not related to those produced by {@link EtcdIdGenerator}, so the two must not be used for the same
+ * cluster.
+ */
+public class EtcdBlockIdGenerator implements IdGenerator, AutoCloseable
+{
+	public static final String IDGEN_DIR = "/aeneas/zookeeper/idblocks";
+	public static final String COUNTER_KEY = IDGEN_DIR + "/next";
+	public static final String FREE_KEY = IDGEN_DIR + "/free";
+
+	private static final Logger LOG = LoggerFactory.getLogger(EtcdBlockIdGenerator.class);
+
+	public static final Duration DEFAULT_RETRY_TIMEOUT = Duration.ofMinutes(1);
+
+	private static final long BASE_RETRY_DELAY_MS = 25;
+	private static final int MAX_RETRY_SHIFT = 5;
+
+	private final EtcdClient etcd;
+	private final int blockSize;
+	private final Duration retryTimeout;
+	private final ScheduledExecutorService retryScheduler;
+
+	/**
+	 * Ids reserved by this generator that have not been handed out yet.
+	 */
+	private final Deque<Integer> reserved = new ArrayDeque<>();
+
+	/**
+	 * Whether the released id bitmap was empty when last read.
+	 */
+	private volatile boolean freeKnownEmpty;
+
+	/**
+	 * Create a new generator that retries conflicting updates for up to {@link #DEFAULT_RETRY_TIMEOUT}.
+	 * @param etcd the etcd client
+	 * @param blockSize the number of ids to reserve at a time
+	 */
+	public EtcdBlockIdGenerator(EtcdClient etcd, int blockSize)
+	{
+		this(etcd, blockSize, DEFAULT_RETRY_TIMEOUT);
+	}
+
+	/**
+	 * Create a new generator.
+	 * @param etcd the etcd client
+	 * @param blockSize the number of ids to reserve at a time
+	 * @param retryTimeout how long to keep retrying conflicting updates before giving up
+	 */
+	public EtcdBlockIdGenerator(EtcdClient etcd, int blockSize, Duration retryTimeout)
+	{
+		Preconditions.checkArgument(blockSize > 0, "Block size must be positive");
+		this.etcd = Preconditions.checkNotNull(etcd);
+		this.blockSize = blockSize;
+		this.retryTimeout = Preconditions.checkNotNull(retryTimeout);
+		this.retryScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+				                                                                 .setNameFormat("idgen-retry-%d")
+				                                                                 .setDaemon(true)
+				                                                                 .build());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CompletableFuture<Integer> generateIdAsync()
+	{
+		if(freeKnownEmpty)
+		{
+			Integer id = pollReserved();
+			if(id != null)
+			{
+				return CompletableFuture.completedFuture(id);
+			}
+		}
+
+		return EtcdFutures.translateErrors(withRetry(this::claimId), e -> new ZkException("Etcd error generating id", e));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CompletableFuture<Void> releaseIdAsync(int id)
+	{
+		return releaseAll(ImmutableList.of(id));
+	}
+
+	/**
+	 * Release the ids this generator has reserved but not handed out.
+	 * @throws ZkException if unable to release the ids
+	 */
+	@Override
+	public void close() throws ZkException
+	{
+		List<Integer> unused;
+		synchronized (reserved)
+		{
+			unused = Lists.newArrayList(reserved);
+			reserved.clear();
+		}
+		if(!unused.isEmpty())
+		{
+			ZkFutures.await(releaseAll(unused));
+		}
+		retryScheduler.shutdown();
+	}
+
+	private CompletableFuture<Void> releaseAll(Collection<Integer> ids)
+	{
+		CompletableFuture<Void> released = withRetry(() -> {
+			return EtcdFutures.send(etcd.get(FREE_KEY)).handle((response, error) -> {
+				if(error != null && !isNotFound(error))
+				{
+					return ZkFutures.<Void>failed(error);
+				}
+
+				EtcdNode previous = error == null ? response.node : null;
+				BitSet free = previous == null ? new BitSet() : decode(previous.value);
+				ids.forEach(free::set);
+				freeKnownEmpty = false;
+				return compareAndSet(FREE_KEY, encode(free), previous).thenApply(updated -> (Void) null);
+			}).thenCompose(Function.identity());
+		}).thenRun(() -> LOG.debug("Released ids {}", ids));
+		return EtcdFutures.translateErrors(released, e -> new ZkException("Etcd error releasing ids " + ids, e));
+	}
+
+	/**
+	 * Take the lowest released id if there is one, then an id left in the current block, and otherwise reserve a new
+	 * block.
+	 */
+	private CompletableFuture<Integer> claimId()
+	{
+		return EtcdFutures.send(etcd.getDir(IDGEN_DIR)).handle((response, error) -> {
+			if(error != null && !isNotFound(error))
+			{
+				return ZkFutures.<Integer>failed(error);
+			}
+
+			EtcdNode counter = null;
+			EtcdNode freeNode = null;
+			if(error == null && response.node.nodes != null)
+			{
+				for(EtcdNode node : response.node.nodes)
+				{
+					if(COUNTER_KEY.equals(node.key))
+					{
+						counter = node;
+					}
+					else if(FREE_KEY.equals(node.key))
+					{
+						freeNode = node;
+					}
+				}
+			}
+
+			BitSet free = freeNode == null ? new BitSet() : decode(freeNode.value);
+			int freeId = free.nextSetBit(0);
+			if(freeId >= 0)
+			{
+				free.clear(freeId);
+				return compareAndSet(FREE_KEY, encode(free), freeNode).thenApply(updated -> {
+					LOG.debug("Reusing released id {}", freeId);
+					return freeId;
+				});
+			}
+			freeKnownEmpty = true;
+
+			Integer id = pollReserved();
+			if(id != null)
+			{
+				return CompletableFuture.completedFuture(id);
+			}
+			return reserveBlock(counter);
+		}).thenCompose(Function.identity());
+	}
+
+	private Integer pollReserved()
+	{
+		synchronized (reserved)
+		{
+			return reserved.poll();
+		}
+	}
+
+	/**
+	 * Advance the counter by a block, keeping the rest of the block for later calls.
+	 * @param counter the counter as it was read, or {@code null} if it did not exist
+	 * @return the first id in the block
+	 */
+	private CompletableFuture<Integer> reserveBlock(EtcdNode counter)
+	{
+		// ZooKeeper ids start at 1
+		int start = counter == null ? 1 : Integer.parseInt(counter.value);
+		return compareAndSet(COUNTER_KEY, String.valueOf(start + blockSize), counter).thenApply(updated -> {
+			LOG.debug("Reserved ids {} to {}", start, start + blockSize - 1);
+			synchronized (reserved)
+			{
+				for(int id = start + 1; id < start + blockSize; id++)
+				{
+					reserved.add(id);
+				}
+			}
+			return start;
+		});
+	}
+
+	/**
+	 * Set a key only if it has not changed since it was read.
+	 * @param key the key to set
+	 * @param value the new value
+	 * @param previous the node as it was read, or {@code null} if it did not exist
+	 * @return the response to the update, which fails with an etcd error if the key has changed
+	 */
+	private CompletableFuture<EtcdKeysResponse> compareAndSet(String key, String value, EtcdNode previous)
+	{
+		EtcdKeyPutRequest put = etcd.put(key, value);
+		return EtcdFutures.send(previous == null ? put.prevExist(false) : put.prevIndex(previous.modifiedIndex));
+	}
+
+	/**
+	 * Run a compare-and-swap operation, retrying it if another client changed the key first.
+	 */
+	private <T> CompletableFuture<T> withRetry(Supplier<CompletableFuture<T>> operation)
+	{
+		CompletableFuture<T> result = new CompletableFuture<>();
+		attempt(operation, 1, System.nanoTime() + retryTimeout.toNanos(), result);
+		return result;
+	}
+
+	private <T> void attempt(Supplier<CompletableFuture<T>> operation, int attempt, long deadline,
+	                         CompletableFuture<T> result)
+	{
+		operation.get().whenComplete((value, error) -> {
+			if(error == null)
+			{
+				result.complete(value);
+				return;
+			}
+			if(!isConflict(error))
+			{
+				result.completeExceptionally(ZkFutures.unwrap(error));
+				return;
+			}
+
+			long delay = ThreadLocalRandom.current().nextLong(BASE_RETRY_DELAY_MS << Math.min(attempt, MAX_RETRY_SHIFT));
+			if(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay) > deadline)
+			{
+				result.completeExceptionally(new ZkException("Gave up after " + attempt + " conflicting updates in "
+						                                             + retryTimeout, ZkFutures.unwrap(error)));
+				return;
+			}
+			LOG.debug("Conflicting update on attempt {}, retrying in {} ms", attempt, delay);
+			retryScheduler.schedule(() -> attempt(operation, attempt + 1, deadline, result), delay, TimeUnit.MILLISECONDS);
+		});
+	}
+
+	private static boolean isNotFound(Throwable error)
+	{
+		Throwable cause = ZkFutures.unwrap(error);
+		return cause instanceof EtcdException && ((EtcdException) cause).errorCode == 100; // 100 = key not found
+	}
+
+	private static boolean isConflict(Throwable error)
+	{
+		Throwable cause = ZkFutures.unwrap(error);
+		// 101 = compare failed, 105 = key already exists
+		return cause instanceof EtcdException
+				&& (((EtcdException) cause).errorCode == 101 || ((EtcdException) cause).errorCode == 105);
+	}
+
+	private static BitSet decode(String value)
+	{
+		return value == null || value.isEmpty() ? new BitSet() : BitSet.valueOf(BaseEncoding.base64().decode(value));
+	}
+
+	private static String encode(BitSet bits)
+	{
+		return BaseEncoding.base64().encode(bits.toByteArray());
+	}
+}
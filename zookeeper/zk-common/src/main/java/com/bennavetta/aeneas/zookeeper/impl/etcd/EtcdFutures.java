@@ -0,0 +1,113 @@
+/**
+ * Copyright 2015 Benjamin Navetta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.aeneas.zookeeper.impl.etcd;
+
+import com.bennavetta.aeneas.zookeeper.ZkException;
+import com.bennavetta.aeneas.zookeeper.ZkFutures;
+import mousio.etcd4j.promises.EtcdResponsePromise;
+import mousio.etcd4j.requests.EtcdKeyRequest;
+import mousio.etcd4j.responses.EtcdException;
+import mousio.etcd4j.responses.EtcdKeysResponse;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
+
+/**
+ * Adapts etcd4j's response promises to {@link CompletableFuture}s.
+ */
+final class EtcdFutures
+{
+	private EtcdFutures()
+	{
+
+	}
+
+	/**
+	 * Send a request without waiting for the response.
+	 * @param request the request to send
+	 * @return a future completed from the etcd4j promise
+	 */
+	public static CompletableFuture<EtcdKeysResponse> send(EtcdKeyRequest request)
+	{
+		try
+		{
+			return toFuture(request.send());
+		}
+		catch (IOException e)
+		{
+			return ZkFutures.failed(new ZkException("Unable to communicate with etcd", e));
+		}
+	}
+
+	/**
+	 * Complete a future when an etcd4j promise completes. The future is completed on the etcd client's I/O thread.
+	 * @param promise the promise to adapt
+	 * @param <T> the response type
+	 * @return a future with the same result as the promise
+	 */
+	public static <T> CompletableFuture<T> toFuture(EtcdResponsePromise<T> promise)
+	{
+		CompletableFuture<T> future = new CompletableFuture<>();
+		promise.addListener(completed -> {
+			if(completed.getException() != null)
+			{
+				future.completeExceptionally(completed.getException());
+			}
+			else
+			{
+				future.complete(completed.getNow());
+			}
+		});
+		return future;
+	}
+
+	/**
+	 * Translate the failure of an etcd operation into the exceptions used by the registry interfaces. Etcd errors are
+	 * passed to the given translator, and anything else is treated as a communication failure.
+	 * @param future the etcd operation
+	 * @param etcdError translates etcd error responses
+	 * @param <T> the result type
+	 * @return a future with the same result, but translated failures
+	 */
+	public static <T> CompletableFuture<T> translateErrors(CompletableFuture<T> future,
+	                                                      Function<EtcdException, Throwable> etcdError)
+	{
+		CompletableFuture<T> translated = new CompletableFuture<>();
+		future.whenComplete((result, error) -> {
+			if(error == null)
+			{
+				translated.complete(result);
+				return;
+			}
+
+			Throwable cause = ZkFutures.unwrap(error);
+			if(cause instanceof EtcdException)
+			{
+				translated.completeExceptionally(etcdError.apply((EtcdException) cause));
+			}
+			else if(cause instanceof ZkException || cause instanceof RuntimeException)
+			{
+				translated.completeExceptionally(cause);
+			}
+			else
+			{
+				translated.completeExceptionally(new ZkException("Unable to communicate with etcd", cause));
+			}
+		});
+		return translated;
+	}
+}
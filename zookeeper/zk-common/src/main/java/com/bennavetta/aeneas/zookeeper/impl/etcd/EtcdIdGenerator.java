@@ -17,15 +17,15 @@ package com.bennavetta.aeneas.zookeeper.impl.etcd;
 
 import com.bennavetta.aeneas.zookeeper.IdGenerator;
 import com.bennavetta.aeneas.zookeeper.ZkException;
+import com.bennavetta.aeneas.zookeeper.ZkFutures;
 import com.google.common.base.Preconditions;
 import mousio.etcd4j.EtcdClient;
 import mousio.etcd4j.responses.EtcdException;
-import mousio.etcd4j.responses.EtcdKeysResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
-import java.util.concurrent.TimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 
 /**
  * Etcd-based implementation of the {@link IdGenerator} interface. It uses etcd's
@@ -49,42 +49,41 @@ public class EtcdIdGenerator implements IdGenerator
 	 * {@inheritDoc}
 	 */
 	@Override
-	public int generateId() throws ZkException
+	public CompletableFuture<Integer> generateIdAsync()
 	{
-		try
-		{
-			EtcdKeysResponse response = etcd.post(IDGEN_DIR, "").send().get();
+		CompletableFuture<Integer> id = postId().handle((generated, error) -> {
+			if(error == null)
+			{
+				return CompletableFuture.completedFuture(generated);
+			}
+
+			Throwable cause = ZkFutures.unwrap(error);
+			if(cause instanceof EtcdException && ((EtcdException) cause).errorCode == 100) // 100 = key not found
+			{
+				// The directory only needs to be created once, so retry a single time
+				return createDirectory().thenCompose(created -> postId());
+			}
+			return ZkFutures.<Integer>failed(cause);
+		}).thenCompose(Function.identity());
 
+		return EtcdFutures.translateErrors(id, e -> new ZkException("Etcd error generating id", e));
+	}
+
+	private CompletableFuture<Integer> postId()
+	{
+		return EtcdFutures.send(etcd.post(IDGEN_DIR, "")).thenApply(response -> {
 			String key = response.node.key;
 			String id = key.substring(key.lastIndexOf('/') + 1);
 			LOG.debug("Allocated id {} from etcd", id);
 			return Integer.parseInt(id);
-		}
-		catch (IOException | TimeoutException e)
-		{
-			throw new ZkException("Unable to communicate with etcd", e);
-		}
-		catch (EtcdException e)
-		{
-			if(e.errorCode == 100) // 100 = key not found
-			{
-				createDirectory();
-				return generateId();
-			}
-			throw new ZkException("Etcd error generating id", e);
-		}
+		});
 	}
 
-	private void createDirectory() throws ZkException
+	private CompletableFuture<Void> createDirectory()
 	{
-		try
-		{
-			LOG.debug("Creating id generation directory");
-			etcd.putDir(IDGEN_DIR).send().get();
-		}
-		catch (IOException | EtcdException | TimeoutException e)
-		{
-			throw new ZkException("Unable to create id generation directory", e);
-		}
+		LOG.debug("Creating id generation directory");
+		return EtcdFutures.translateErrors(EtcdFutures.send(etcd.putDir(IDGEN_DIR)),
+		                                   e -> new ZkException("Unable to create id generation directory", e))
+		                  .thenApply(response -> null);
 	}
 }
@@ -18,13 +18,16 @@ package com.bennavetta.aeneas.zookeeper.impl.etcd;
 import com.bennavetta.aeneas.zookeeper.ServerRegistry;
 import com.bennavetta.aeneas.zookeeper.ServerRegistryWatcher;
 import com.bennavetta.aeneas.zookeeper.ServerRegistryWatcher.Listener;
+import com.bennavetta.aeneas.zookeeper.WatchCheckpoint;
 import com.bennavetta.aeneas.zookeeper.ZkException;
+import com.bennavetta.aeneas.zookeeper.ZkFutures;
 import com.bennavetta.aeneas.zookeeper.ZkServer;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import mousio.etcd4j.EtcdClient;
+import mousio.etcd4j.requests.EtcdKeyPutRequest;
 import mousio.etcd4j.responses.EtcdException;
 import mousio.etcd4j.responses.EtcdKeysResponse;
 import mousio.etcd4j.responses.EtcdKeysResponse.EtcdNode;
@@ -32,10 +35,16 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.util.concurrent.TimeoutException;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 /**
- * Server registry implementation based on etcd.
+ * Server registry implementation based on etcd. Registrations can be given a TTL, in which case etcd expires the
+ * entries of servers that stop refreshing them.
  */
 public class EtcdServerRegistry implements ServerRegistry
 {
@@ -45,6 +54,7 @@ public class EtcdServerRegistry implements ServerRegistry
 
 	private EtcdClient etcd;
 	private ObjectMapper objectMapper;
+	private int ttl;
 
 	public EtcdServerRegistry(EtcdClient etcd)
 	{
@@ -53,126 +63,248 @@ public class EtcdServerRegistry implements ServerRegistry
 
 	public EtcdServerRegistry(EtcdClient etcd, ObjectMapper objectMapper)
 	{
+		this(etcd, objectMapper, 0);
+	}
+
+	/**
+	 * Create a registry whose entries expire unless refreshed.
+	 * @param etcd the etcd client
+	 * @param ttl the time-to-live of registrations, in seconds
+	 * @see #refresh(ZkServer)
+	 */
+	public EtcdServerRegistry(EtcdClient etcd, int ttl)
+	{
+		this(etcd, new ObjectMapper(), ttl);
+	}
+
+	/**
+	 * Create a registry whose entries expire unless refreshed.
+	 * @param etcd the etcd client
+	 * @param objectMapper the object mapper used to serialize servers
+	 * @param ttl the time-to-live of registrations, in seconds, or {@code 0} for registrations that never expire
+	 * @see #refresh(ZkServer)
+	 */
+	public EtcdServerRegistry(EtcdClient etcd, ObjectMapper objectMapper, int ttl)
+	{
+		Preconditions.checkArgument(ttl >= 0, "TTL must not be negative");
 		this.etcd = Preconditions.checkNotNull(etcd);
 		this.objectMapper = Preconditions.checkNotNull(objectMapper);
+		this.ttl = ttl;
 	}
 
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
-	public void register(ZkServer server) throws ZkException
+	public CompletableFuture<Void> registerAsync(ZkServer server)
 	{
+		LOG.debug("Registering server {}", server);
+		String key = String.valueOf(server.getId());
+		String value;
 		try
 		{
-			LOG.debug("Registering server {}", server);
-			String key = String.valueOf(server.getId());
-			String value = objectMapper.writeValueAsString(server);
-
-			etcd.put(REGISTRY_DIR + "/" + key, value).prevExist(false).send().get();
+			value = objectMapper.writeValueAsString(server);
 		}
 		catch (JsonProcessingException e)
 		{
-			throw new ZkException("Unable to serialize server", e);
-		}
-		catch (IOException | TimeoutException e)
-		{
-			throw new ZkException("Unable to communicate with etcd", e);
+			return ZkFutures.failed(new ZkException("Unable to serialize server", e));
 		}
-		catch (EtcdException e)
-		{
+
+		CompletableFuture<EtcdKeysResponse> response = EtcdFutures.send(withTtl(etcd.put(REGISTRY_DIR + "/" + key, value))
+				                                                                .prevExist(false));
+		return EtcdFutures.translateErrors(response, e -> {
 			if(e.errorCode == 105) // node exists
 			{
-				throw new IllegalStateException("Server already registered", e);
+				return new IllegalStateException("Server already registered", e);
 			}
 			else
 			{
-				throw new ZkException("Etcd error registering server", e);
+				return new ZkException("Etcd error registering server", e);
 			}
-		}
+		}).thenApply(r -> null);
 	}
 
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
-	public void deregister(ZkServer server) throws ZkException
+	public CompletableFuture<Void> deregisterAsync(ZkServer server)
 	{
-		try
-		{
-			LOG.debug("Deregistering server {}", server);
-			String key = String.valueOf(server.getId());
-			etcd.delete(REGISTRY_DIR + "/" + key).send().get();
-		}
-		catch (IOException | TimeoutException e)
-		{
-			throw new ZkException("Unable to communicate with etcd", e);
-		}
-		catch (EtcdException e)
-		{
+		LOG.debug("Deregistering server {}", server);
+		String key = String.valueOf(server.getId());
+
+		CompletableFuture<EtcdKeysResponse> response = EtcdFutures.send(etcd.delete(REGISTRY_DIR + "/" + key));
+		return EtcdFutures.translateErrors(response, e -> {
 			if(e.errorCode == 100) // not found
 			{
-				throw new IllegalStateException("Server not registered", e);
+				return new IllegalStateException("Server not registered", e);
 			}
 			else
 			{
-				throw new ZkException("Etcd error deregistering server", e);
+				return new ZkException("Etcd error deregistering server", e);
 			}
-		}
-
+		}).thenApply(r -> null);
 	}
 
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
-	public ImmutableList<ZkServer> getServers() throws ZkException
+	public CompletableFuture<Void> updateAsync(ZkServer server)
 	{
+		LOG.trace("Refreshing server {}", server);
+		String key = String.valueOf(server.getId());
+		String value;
 		try
 		{
-			LOG.debug("Retrieving server listing");
-			EtcdKeysResponse response = etcd.getDir(REGISTRY_DIR).send().get();
+			value = objectMapper.writeValueAsString(server);
+		}
+		catch (JsonProcessingException e)
+		{
+			return ZkFutures.failed(new ZkException("Unable to serialize server", e));
+		}
+
+		CompletableFuture<EtcdKeysResponse> response = EtcdFutures.send(withTtl(etcd.put(REGISTRY_DIR + "/" + key, value))
+				                                                                .prevExist(true));
+		return EtcdFutures.translateErrors(response, e -> {
+			if(e.errorCode == 100) // not found - expired or deregistered
+			{
+				return new IllegalStateException("Server not registered", e);
+			}
+			return new ZkException("Etcd error refreshing server", e);
+		}).thenApply(r -> null);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean expiresRegistrations()
+	{
+		return ttl > 0;
+	}
 
-			if(response.node.nodes == null)
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Etcd has no multi-key transactions, so the registrations are written concurrently and any that succeeded are
+	 * removed again if one fails. The batch is not atomic: readers may see part of it, and a failed rollback leaves
+	 * those servers registered. The writes land back to back, so the registry watcher usually delivers them as one
+	 * change set.
+	 */
+	@Override
+	public CompletableFuture<Void> registerAllAsync(Collection<ZkServer> servers)
+	{
+		LOG.debug("Registering servers {}", servers);
+		List<CompletableFuture<ZkServer>> writes = servers.stream()
+		                                                  .map(server -> registerAsync(server).thenApply(v -> server))
+		                                                  .collect(Collectors.toList());
+
+		return allOf(writes).<CompletableFuture<Void>>handle((result, error) -> {
+			if(error == null)
 			{
-				return ImmutableList.of();
+				return CompletableFuture.<Void>completedFuture(null);
 			}
 
-			ImmutableList.Builder<ZkServer> servers = ImmutableList.builder();
+			List<ZkServer> registered = writes.stream()
+			                                  .filter(write -> !write.isCompletedExceptionally())
+			                                  .map(CompletableFuture::join)
+			                                  .collect(Collectors.toList());
+			LOG.warn("Batch registration failed, removing {} registered servers", registered.size());
+
+			return deregisterAllAsync(registered).<Void>handle((rollback, rollbackError) -> {
+				if(rollbackError != null)
+				{
+					LOG.error("Unable to roll back batch registration", rollbackError);
+				}
+				throw new CompletionException(ZkFutures.unwrap(error));
+			});
+		}).thenCompose(Function.identity());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CompletableFuture<Void> deregisterAllAsync(Collection<ZkServer> servers)
+	{
+		LOG.debug("Deregistering servers {}", servers);
+		return allOf(servers.stream().map(this::deregisterAsync).collect(Collectors.toList()));
+	}
+
+	/**
+	 * Combine futures into one that completes once all of them have completed.
+	 */
+	private static CompletableFuture<Void> allOf(List<? extends CompletableFuture<?>> futures)
+	{
+		return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()]));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CompletableFuture<ImmutableList<ZkServer>> getServersAsync()
+	{
+		LOG.debug("Retrieving server listing");
+		CompletableFuture<EtcdKeysResponse> response = EtcdFutures.send(etcd.getDir(REGISTRY_DIR));
 
-			for(EtcdNode node : response.node.nodes)
+		return response.handle((listing, error) -> {
+			if(error != null)
 			{
-				ZkServer server = objectMapper.readValue(node.value, ZkServer.class);
-				LOG.debug("Retrieved server {}", server);
-				servers.add(server);
+				Throwable cause = ZkFutures.unwrap(error);
+				if(cause instanceof EtcdException && ((EtcdException) cause).errorCode == 100) // not found - no servers registered
+				{
+					return ImmutableList.of();
+				}
+				else if(cause instanceof EtcdException)
+				{
+					throw new CompletionException(new ZkException("Etcd error obtaining server listing", cause));
+				}
+				else
+				{
+					throw new CompletionException(new ZkException("Unable to communicate with etcd", cause));
+				}
 			}
 
-			return servers.build();
-		}
-		catch (EtcdException e)
-		{
-			if(e.errorCode == 100) // not found - no servers registered
+			try
 			{
-				return ImmutableList.of();
+				return parseServers(listing.node);
 			}
-			else
+			catch (IOException e)
 			{
-				throw new ZkException("Etcd error obtaining server listing");
+				throw new CompletionException(new ZkException("Unable to deserialize server", e));
 			}
-		}
-		catch (JsonProcessingException e)
+		});
+	}
+
+	private ImmutableList<ZkServer> parseServers(EtcdNode directory) throws IOException
+	{
+		if(directory.nodes == null)
 		{
-			throw new ZkException("Unable to deserialize server", e);
+			return ImmutableList.of();
 		}
-		catch (TimeoutException | IOException e)
+
+		ImmutableList.Builder<ZkServer> servers = ImmutableList.builder();
+
+		for(EtcdNode node : directory.nodes)
 		{
-			throw new ZkException("Unable to communicate with etcd");
+			ZkServer server = objectMapper.readValue(node.value, ZkServer.class);
+			LOG.debug("Retrieved server {}", server);
+			servers.add(server);
 		}
+
+		return servers.build();
+	}
+
+	private EtcdKeyPutRequest withTtl(EtcdKeyPutRequest request)
+	{
+		return ttl > 0 ? request.ttl(ttl) : request;
 	}
 
 	@Override
-	public ServerRegistryWatcher watch(Listener listener)
+	public ServerRegistryWatcher watch(Listener listener, WatchCheckpoint checkpoint)
 	{
-		return new EtcdServerRegistryWatcher(etcd, listener, objectMapper);
+		return new EtcdServerRegistryWatcher(etcd, listener, objectMapper, checkpoint);
 	}
 }
@@ -16,42 +16,73 @@
 package com.bennavetta.aeneas.zookeeper.impl.etcd;
 
 import com.bennavetta.aeneas.zookeeper.ServerRegistryWatcher;
+import com.bennavetta.aeneas.zookeeper.WatchCheckpoint;
+import com.bennavetta.aeneas.zookeeper.WatchCheckpoint.Position;
 import com.bennavetta.aeneas.zookeeper.ZkException;
 import com.bennavetta.aeneas.zookeeper.ZkServer;
-import com.fasterxml.jackson.core.JsonParseException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import mousio.etcd4j.EtcdClient;
-import mousio.etcd4j.requests.EtcdKeyGetRequest;
 import mousio.etcd4j.responses.EtcdException;
 import mousio.etcd4j.responses.EtcdKeysResponse;
+import mousio.etcd4j.responses.EtcdKeysResponse.EtcdNode;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
- * Registry watcher that uses etcd's watch functionality.
+ * Registry watcher that uses etcd's watch functionality. Changes that are already available when one is received are
+ * collected and delivered together as a single change set.
+ * <p>
+ * The watcher saves its position to a checkpoint after each change set and resumes from the checkpoint when started.
+ * Etcd only keeps a limited window of change history, so if the watcher falls too far behind, it lists the registry
+ * and delivers the difference from what the listener was last told.
  */
 public class EtcdServerRegistryWatcher implements ServerRegistryWatcher
 {
 	private static final Logger LOG = LoggerFactory.getLogger(EtcdServerRegistryWatcher.class);
 
+	/**
+	 * Upper bound on the number of changes delivered together, so a constant stream of changes is still delivered.
+	 */
+	private static final int MAX_CHANGE_SET_SIZE = 100;
+
 	private final EtcdClient etcd;
 	private final ObjectMapper objectMapper;
 	private final Listener listener;
+	private final WatchCheckpoint checkpoint;
 
 	private final AtomicBoolean running;
 
+	/**
+	 * The registry contents as delivered to the listener so far.
+	 */
+	private final Map<Integer, ZkServer> known;
+
 	public EtcdServerRegistryWatcher(EtcdClient etcd, Listener listener, ObjectMapper objectMapper)
+	{
+		this(etcd, listener, objectMapper, WatchCheckpoint.inMemory());
+	}
+
+	public EtcdServerRegistryWatcher(EtcdClient etcd, Listener listener, ObjectMapper objectMapper,
+	                                 WatchCheckpoint checkpoint)
 	{
 		this.objectMapper = Preconditions.checkNotNull(objectMapper);
 		this.etcd = Preconditions.checkNotNull(etcd);
 		this.listener = Preconditions.checkNotNull(listener);
+		this.checkpoint = Preconditions.checkNotNull(checkpoint);
 
 		this.running = new AtomicBoolean(false);
+		this.known = Maps.newLinkedHashMap();
 	}
 
 	@Override
@@ -66,7 +97,10 @@ public class EtcdServerRegistryWatcher implements ServerRegistryWatcher
 		{
 			throw new ZkException("Unable to wait for etcd changes", e);
 		}
-
+		finally
+		{
+			running.set(false);
+		}
 	}
 
 	@Override
@@ -75,58 +109,267 @@ public class EtcdServerRegistryWatcher implements ServerRegistryWatcher
 		running.set(false);
 	}
 
-	private void doWatch() throws IOException, TimeoutException, EtcdException
+	private void doWatch() throws IOException, TimeoutException, EtcdException, ZkException
 	{
-		long waitIndex = 0;
+		long waitIndex = resume();
+		long committedIndex = 0; // highest index known to exist, so waiting for it will not block
+		Map<Integer, Optional<ZkServer>> changes = Maps.newLinkedHashMap();
 
 		while(running.get())
 		{
-			EtcdKeysResponse response = etcd.getDir(EtcdServerRegistry.REGISTRY_DIR)
-			                                .recursive()
-			                                .waitForChange(waitIndex)
-			                                .send()
-			                                .get();
+			EtcdKeysResponse response;
+			try
+			{
+				response = etcd.getDir(EtcdServerRegistry.REGISTRY_DIR)
+				               .recursive()
+				               .waitForChange(waitIndex)
+				               .send()
+				               .get();
+			}
+			catch (EtcdException e)
+			{
+				if(e.errorCode != 401) // event index cleared
+				{
+					throw e;
+				}
+				LOG.warn("Registry changes since index {} are no longer available, resynchronizing", waitIndex);
+				// The listing includes everything collected so far, so those changes are superseded by the difference
+				changes.clear();
+				waitIndex = resynchronize();
+				continue;
+			}
 
 			LOG.info("Change {}: {} {}", response.etcdIndex, response.action, response.node.key);
 
 			try
 			{
-				handle(response);
+				record(response, changes);
 			}
 			catch(Throwable t)
 			{
-				LOG.error("Registry watch listener threw an exception", t);
+				LOG.error("Unable to process registry change", t);
 			}
 
 			waitIndex = response.node.modifiedIndex + 1;
+			if(response.etcdIndex != null)
+			{
+				committedIndex = Math.max(committedIndex, response.etcdIndex);
+			}
+			if(waitIndex > committedIndex && !changes.isEmpty())
+			{
+				// A watch that had to wait reports the index from when it started, so check for changes made since
+				committedIndex = Math.max(committedIndex, currentIndex(response.node.key));
+			}
+
+			// Keep collecting while later changes are already available, so a batch is delivered as one change set
+			if(waitIndex > committedIndex || changes.size() >= MAX_CHANGE_SET_SIZE)
+			{
+				deliver(changes);
+				changes.clear();
+				saveCheckpoint(waitIndex - 1);
+			}
+		}
+	}
+
+	/**
+	 * Restore the watcher's position from the checkpoint, or start from the current registry contents if there is no
+	 * checkpoint.
+	 * @return the index to wait for
+	 */
+	private long resume() throws IOException, TimeoutException, EtcdException, ZkException
+	{
+		known.clear();
+
+		Optional<Position> saved = checkpoint.load();
+		if(saved.isPresent())
+		{
+			LOG.info("Resuming registry watch after index {}", saved.get().getIndex());
+			saved.get().getServers().forEach(server -> known.put(server.getId(), server));
+			return saved.get().getIndex() + 1;
+		}
+
+		Listing listing = list();
+		known.putAll(listing.servers);
+		listener.serversListed(ImmutableList.copyOf(listing.servers.values()));
+		LOG.info("Watching registry from index {}", listing.index);
+		return listing.index + 1;
+	}
+
+	/**
+	 * Bring the listener up to date from a listing of the registry, after the changes it missed have been discarded
+	 * by etcd.
+	 * @return the index to wait for
+	 */
+	private long resynchronize() throws IOException, TimeoutException, EtcdException
+	{
+		Listing listing = list();
+
+		Map<Integer, Optional<ZkServer>> difference = Maps.newLinkedHashMap();
+		Sets.difference(known.keySet(), listing.servers.keySet())
+		    .forEach(id -> difference.put(id, Optional.empty()));
+		listing.servers.forEach((id, server) -> difference.put(id, Optional.of(server)));
+
+		LOG.info("Resynchronized registry at index {}", listing.index);
+		deliver(difference);
+		saveCheckpoint(listing.index);
+		return listing.index + 1;
+	}
+
+	private Listing list() throws IOException, TimeoutException, EtcdException
+	{
+		Map<Integer, ZkServer> servers = Maps.newLinkedHashMap();
+		EtcdKeysResponse response;
+		try
+		{
+			response = etcd.getDir(EtcdServerRegistry.REGISTRY_DIR).send().get();
+		}
+		catch (EtcdException e)
+		{
+			if(e.errorCode == 100) // not found - no servers registered
+			{
+				return new Listing(servers, e.index == null ? 0 : e.index);
+			}
+			throw e;
+		}
+
+		if(response.node.nodes != null)
+		{
+			for(EtcdNode node : response.node.nodes)
+			{
+				if(node.dir)
+				{
+					continue;
+				}
+				ZkServer server = objectMapper.readValue(node.value, ZkServer.class);
+				servers.put(server.getId(), server);
+			}
 		}
+		return new Listing(servers, response.etcdIndex == null ? 0 : response.etcdIndex);
 	}
 
-	private void handle(EtcdKeysResponse response) throws IOException
+	private long currentIndex(String key) throws IOException, TimeoutException
 	{
+		try
+		{
+			Long index = etcd.get(key).send().get().etcdIndex;
+			return index == null ? 0 : index;
+		}
+		catch (EtcdException e)
+		{
+			// Error responses, like for a deleted server, include the index as well
+			return e.index == null ? 0 : e.index;
+		}
+	}
+
+	private void record(EtcdKeysResponse response, Map<Integer, Optional<ZkServer>> changes) throws IOException
+	{
+		String key = response.node.key;
+		if(response.node.dir)
+		{
+			LOG.debug("Ignoring change to directory {}", key);
+			return;
+		}
+
+		int serverId;
+		try
+		{
+			serverId = Integer.parseInt(key.substring(key.lastIndexOf('/') + 1));
+		}
+		catch (NumberFormatException e)
+		{
+			LOG.debug("Ignoring change to {}, which is not a server registration", key);
+			return;
+		}
+
 		switch (response.action)
 		{
 			case set:
 			case create:
 			case update:
+			case compareAndSwap:
+				if(response.prevNode != null && Objects.equals(response.prevNode.value, response.node.value))
+				{
+					LOG.trace("Registration for server {} refreshed", serverId);
+					break;
+				}
 				ZkServer server = objectMapper.readValue(response.node.value, ZkServer.class);
 				LOG.debug("Server added: {}", server);
-				listener.serverAdded(server);
+				changes.put(serverId, Optional.of(server));
 				break;
 			case delete:
 			case expire:
-				int serverId = Integer.parseInt(response.node.key.substring(response.node.key.lastIndexOf('/') + 1));
 				LOG.debug("Server removed: {}", serverId);
-				listener.serverRemoved(serverId);
+				changes.put(serverId, Optional.empty());
 				break;
 			default:
 				break;
 		}
 	}
 
+	/**
+	 * Deliver the changes that the listener has not already been told about.
+	 */
+	private void deliver(Map<Integer, Optional<ZkServer>> changes)
+	{
+		ImmutableList.Builder<ZkServer> addedBuilder = ImmutableList.builder();
+		ImmutableList.Builder<Integer> removedBuilder = ImmutableList.builder();
+		changes.forEach((id, server) -> {
+			if(server.isPresent() && !server.get().equals(known.get(id)))
+			{
+				addedBuilder.add(server.get());
+				known.put(id, server.get());
+			}
+			else if(!server.isPresent() && known.remove(id) != null)
+			{
+				removedBuilder.add(id);
+			}
+		});
+
+		ImmutableList<ZkServer> added = addedBuilder.build();
+		ImmutableList<Integer> removed = removedBuilder.build();
+		if(added.isEmpty() && removed.isEmpty())
+		{
+			return;
+		}
+
+		try
+		{
+			listener.serversChanged(added, removed);
+		}
+		catch(Throwable t)
+		{
+			LOG.error("Registry watch listener threw an exception", t);
+		}
+	}
+
+	private void saveCheckpoint(long index)
+	{
+		try
+		{
+			checkpoint.save(new Position(index, known.values()));
+		}
+		catch (ZkException e)
+		{
+			// Not fatal, since resuming from an older checkpoint only repeats changes the listener has seen
+			LOG.warn("Unable to save registry watch checkpoint", e);
+		}
+	}
+
 	@Override
 	public boolean isWatching()
 	{
-		return false;
+		return running.get();
+	}
+
+	private static final class Listing
+	{
+		private final Map<Integer, ZkServer> servers;
+		private final long index;
+
+		private Listing(Map<Integer, ZkServer> servers, long index)
+		{
+			this.servers = servers;
+			this.index = index;
+		}
 	}
 }
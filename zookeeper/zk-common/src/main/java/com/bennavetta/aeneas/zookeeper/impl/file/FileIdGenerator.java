@@ -0,0 +1,102 @@
+/**
+ * Copyright 2015 Benjamin Navetta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.aeneas.zookeeper.impl.file;
+
+import com.bennavetta.aeneas.zookeeper.IdGenerator;
+import com.bennavetta.aeneas.zookeeper.ZkException;
+import com.bennavetta.aeneas.zookeeper.ZkFutures;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * File-based implementation of the {@link IdGenerator} interface, for use with {@link FileServerRegistry}. The last
+ * allocated id is kept in a counter file, which is locked while it is incremented so that processes sharing it never
+ * get the same id. Allocations within one JVM are also serialized, since the file lock does not exclude other threads.
+ */
+public class FileIdGenerator implements IdGenerator
+{
+	private static final Logger LOG = LoggerFactory.getLogger(FileIdGenerator.class);
+
+	/**
+	 * Serializes allocations within this JVM, across all generators.
+	 */
+	private static final Object JVM_LOCK = new Object();
+
+	private final Path counterFile;
+
+	public FileIdGenerator(Path counterFile)
+	{
+		this.counterFile = Preconditions.checkNotNull(counterFile);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CompletableFuture<Integer> generateIdAsync()
+	{
+		// File locks are held by the whole JVM, so locking an already locked file from another thread fails rather
+		// than waiting
+		synchronized (JVM_LOCK)
+		{
+			try
+			{
+				Files.createDirectories(counterFile.toAbsolutePath().getParent());
+				try (FileChannel channel = FileChannel.open(counterFile, StandardOpenOption.CREATE,
+				                                            StandardOpenOption.READ, StandardOpenOption.WRITE))
+				{
+					FileLock lock = channel.lock();
+					try
+					{
+						ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
+						while(buffer.hasRemaining() && channel.read(buffer) >= 0)
+						{
+							// Read the whole counter
+						}
+						String contents = new String(buffer.array(), Charsets.US_ASCII).trim();
+						int id = contents.isEmpty() ? 1 : Integer.parseInt(contents) + 1;
+
+						channel.truncate(0);
+						channel.write(ByteBuffer.wrap(String.valueOf(id).getBytes(Charsets.US_ASCII)), 0);
+						channel.force(true);
+
+						LOG.debug("Allocated id {} from {}", id, counterFile);
+						return CompletableFuture.completedFuture(id);
+					}
+					finally
+					{
+						lock.release();
+					}
+				}
+			}
+			catch (IOException | NumberFormatException e)
+			{
+				return ZkFutures.failed(new ZkException("Unable to allocate id from " + counterFile, e));
+			}
+		}
+	}
+}
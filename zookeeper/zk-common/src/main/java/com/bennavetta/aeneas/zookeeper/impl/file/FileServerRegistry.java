@@ -0,0 +1,265 @@
+/**
+ * Copyright 2015 Benjamin Navetta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.aeneas.zookeeper.impl.file;
+
+import com.bennavetta.aeneas.zookeeper.ServerRegistry;
+import com.bennavetta.aeneas.zookeeper.ServerRegistryWatcher;
+import com.bennavetta.aeneas.zookeeper.ServerRegistryWatcher.Listener;
+import com.bennavetta.aeneas.zookeeper.WatchCheckpoint;
+import com.bennavetta.aeneas.zookeeper.ZkException;
+import com.bennavetta.aeneas.zookeeper.ZkFutures;
+import com.bennavetta.aeneas.zookeeper.ZkServer;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.regex.Pattern;
+
+/**
+ * Server registry implementation that keeps each server as a JSON file in a shared directory. It needs no network
+ * service, so it suits clusters on a single host, such as for local testing and benchmarks.
+ * <p>
+ * Every file is written under a temporary name and then moved into place, so readers never see a partial entry.
+ * Registrations are linked into place instead of moved, which fails if the server is already registered. Operations
+ * are performed on the calling thread, so the returned futures are already complete.
+ */
+public class FileServerRegistry implements ServerRegistry
+{
+	private static final Logger LOG = LoggerFactory.getLogger(FileServerRegistry.class);
+
+	static final Pattern ENTRY_NAME = Pattern.compile("\\d+\\.json");
+
+	private final Path directory;
+	private final ObjectMapper objectMapper;
+
+	public FileServerRegistry(Path directory)
+	{
+		this(directory, new ObjectMapper());
+	}
+
+	public FileServerRegistry(Path directory, ObjectMapper objectMapper)
+	{
+		this.directory = Preconditions.checkNotNull(directory);
+		this.objectMapper = Preconditions.checkNotNull(objectMapper);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CompletableFuture<Void> registerAsync(ZkServer server)
+	{
+		LOG.debug("Registering server {}", server);
+		try
+		{
+			Path temp = writeTemp(server);
+			try
+			{
+				Files.createLink(entry(server.getId()), temp);
+			}
+			finally
+			{
+				Files.delete(temp);
+			}
+			return CompletableFuture.completedFuture(null);
+		}
+		catch (FileAlreadyExistsException e)
+		{
+			return ZkFutures.failed(new IllegalStateException("Server already registered", e));
+		}
+		catch (IOException e)
+		{
+			return ZkFutures.failed(new ZkException("Unable to register server in " + directory, e));
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CompletableFuture<Void> deregisterAsync(ZkServer server)
+	{
+		LOG.debug("Deregistering server {}", server);
+		try
+		{
+			Files.delete(entry(server.getId()));
+			return CompletableFuture.completedFuture(null);
+		}
+		catch (NoSuchFileException e)
+		{
+			return ZkFutures.failed(new IllegalStateException("Server not registered", e));
+		}
+		catch (IOException e)
+		{
+			return ZkFutures.failed(new ZkException("Unable to deregister server in " + directory, e));
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Registrations never expire, so this only updates the server information.
+	 */
+	@Override
+	public CompletableFuture<Void> updateAsync(ZkServer server)
+	{
+		LOG.trace("Refreshing server {}", server);
+		Path entry = entry(server.getId());
+		if(!Files.exists(entry))
+		{
+			return ZkFutures.failed(new IllegalStateException("Server not registered"));
+		}
+		try
+		{
+			Files.move(writeTemp(server), entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return CompletableFuture.completedFuture(null);
+		}
+		catch (IOException e)
+		{
+			return ZkFutures.failed(new ZkException("Unable to refresh server in " + directory, e));
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The servers are registered one at a time, and any that succeeded are removed again if one fails. The batch is
+	 * not atomic, so readers may see part of it.
+	 */
+	@Override
+	public CompletableFuture<Void> registerAllAsync(Collection<ZkServer> servers)
+	{
+		LOG.debug("Registering servers {}", servers);
+		List<ZkServer> registered = Lists.newArrayList();
+		for(ZkServer server : servers)
+		{
+			CompletableFuture<Void> registration = registerAsync(server);
+			if(registration.isCompletedExceptionally())
+			{
+				LOG.warn("Batch registration failed, removing {} registered servers", registered.size());
+				deregisterAllAsync(registered).exceptionally(rollbackError -> {
+					LOG.error("Unable to roll back batch registration", rollbackError);
+					return null;
+				});
+				return registration;
+			}
+			registered.add(server);
+		}
+		return CompletableFuture.completedFuture(null);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CompletableFuture<Void> deregisterAllAsync(Collection<ZkServer> servers)
+	{
+		LOG.debug("Deregistering servers {}", servers);
+		CompletableFuture<Void> result = CompletableFuture.completedFuture(null);
+		for(ZkServer server : servers)
+		{
+			CompletableFuture<Void> deregistration = deregisterAsync(server);
+			if(deregistration.isCompletedExceptionally())
+			{
+				result = deregistration;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CompletableFuture<ImmutableList<ZkServer>> getServersAsync()
+	{
+		LOG.debug("Retrieving server listing");
+		try
+		{
+			return CompletableFuture.completedFuture(readServers());
+		}
+		catch (ZkException e)
+		{
+			return ZkFutures.failed(e);
+		}
+	}
+
+	ImmutableList<ZkServer> readServers() throws ZkException
+	{
+		if(!Files.isDirectory(directory))
+		{
+			return ImmutableList.of();
+		}
+
+		List<ZkServer> servers = Lists.newArrayList();
+		try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory,
+		                                                              p -> ENTRY_NAME.matcher(p.getFileName().toString()).matches()))
+		{
+			for(Path entry : entries)
+			{
+				try
+				{
+					servers.add(objectMapper.readValue(Files.readAllBytes(entry), ZkServer.class));
+				}
+				catch (NoSuchFileException e)
+				{
+					// Deregistered since listing
+				}
+			}
+		}
+		catch (IOException e)
+		{
+			throw new ZkException("Unable to read servers from " + directory, e);
+		}
+
+		servers.sort(Comparator.comparingInt(ZkServer::getId));
+		return ImmutableList.copyOf(servers);
+	}
+
+	@Override
+	public ServerRegistryWatcher watch(Listener listener, WatchCheckpoint checkpoint)
+	{
+		return new FileServerRegistryWatcher(this, directory, listener, checkpoint);
+	}
+
+	private Path entry(int id)
+	{
+		return directory.resolve(id + ".json");
+	}
+
+	private Path writeTemp(ZkServer server) throws IOException
+	{
+		Files.createDirectories(directory);
+		// The temporary name does not match entry names, so listings skip it
+		Path temp = Files.createTempFile(directory, "." + server.getId() + "-", ".tmp");
+		Files.write(temp, objectMapper.writeValueAsBytes(server));
+		return temp;
+	}
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright 2015 Benjamin Navetta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.aeneas.zookeeper.impl.file;
+
+import com.bennavetta.aeneas.zookeeper.ServerRegistryWatcher;
+import com.bennavetta.aeneas.zookeeper.WatchCheckpoint;
+import com.bennavetta.aeneas.zookeeper.ZkException;
+import com.bennavetta.aeneas.zookeeper.ZkServer;
+import com.bennavetta.aeneas.zookeeper.impl.ListingDifference;
+import com.google.common.base.Preconditions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Watches a {@link FileServerRegistry} directory for changes. Watch events are only used as a signal: the directory is
+ * listed again after each batch of events and the difference from the previous listing is delivered, which also
+ * covers events the watch service dropped.
+ * <p>
+ * There is no change history, so resuming from a checkpoint delivers the difference between the checkpointed servers
+ * and the current ones. The checkpoint index is the time of the listing.
+ */
+public class FileServerRegistryWatcher implements ServerRegistryWatcher
+{
+	private static final Logger LOG = LoggerFactory.getLogger(FileServerRegistryWatcher.class);
+
+	private final FileServerRegistry registry;
+	private final Path directory;
+	private final Listener listener;
+	private final WatchCheckpoint checkpoint;
+
+	private final AtomicBoolean running = new AtomicBoolean(false);
+	private volatile WatchService watchService;
+
+	public FileServerRegistryWatcher(FileServerRegistry registry, Path directory, Listener listener,
+	                                 WatchCheckpoint checkpoint)
+	{
+		this.registry = Preconditions.checkNotNull(registry);
+		this.directory = Preconditions.checkNotNull(directory);
+		this.listener = Preconditions.checkNotNull(listener);
+		this.checkpoint = Preconditions.checkNotNull(checkpoint);
+	}
+
+	@Override
+	public void watch() throws ZkException
+	{
+		Preconditions.checkState(running.compareAndSet(false, true), "Already watching");
+
+		Map<Integer, ZkServer> known = null;
+		Optional<WatchCheckpoint.Position> resumed = checkpoint.load();
+		if(resumed.isPresent())
+		{
+			known = ListingDifference.byId(resumed.get().getServers());
+			LOG.debug("Resuming from checkpoint at {}", resumed.get().getIndex());
+		}
+
+		try (WatchService service = directory.getFileSystem().newWatchService())
+		{
+			watchService = service;
+			Files.createDirectories(directory);
+			directory.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE,
+			                   StandardWatchEventKinds.ENTRY_MODIFY);
+
+			while(running.get())
+			{
+				long index = System.currentTimeMillis();
+				Map<Integer, ZkServer> current = ListingDifference.byId(registry.readServers());
+				if(known != null)
+				{
+					ListingDifference.deliver(known, current, listener);
+				}
+				else
+				{
+					listener.serversListed(current.values());
+				}
+				known = current;
+				checkpoint.save(new WatchCheckpoint.Position(index, known.values()));
+
+				WatchKey key = service.take();
+				// Anything else that already happened is covered by the next listing
+				key.pollEvents();
+				WatchKey more;
+				while((more = service.poll()) != null)
+				{
+					more.pollEvents();
+					more.reset();
+				}
+				if(!key.reset())
+				{
+					throw new ZkException("Registry directory " + directory + " is no longer accessible");
+				}
+			}
+		}
+		catch (ClosedWatchServiceException e)
+		{
+			// Stopped
+		}
+		catch (InterruptedException e)
+		{
+			if(running.get())
+			{
+				Thread.currentThread().interrupt();
+				throw new ZkException("Interrupted while watching registry", e);
+			}
+		}
+		catch (IOException e)
+		{
+			throw new ZkException("Unable to watch " + directory, e);
+		}
+		finally
+		{
+			running.set(false);
+			watchService = null;
+		}
+	}
+
+	@Override
+	public void stopWatching()
+	{
+		running.set(false);
+		WatchService service = watchService;
+		if(service != null)
+		{
+			try
+			{
+				service.close();
+			}
+			catch (IOException e)
+			{
+				LOG.warn("Unable to close watch service", e);
+			}
+		}
+	}
+
+	@Override
+	public boolean isWatching()
+	{
+		return running.get();
+	}
+}
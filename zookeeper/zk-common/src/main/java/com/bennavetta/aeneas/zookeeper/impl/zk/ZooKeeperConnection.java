@@ -0,0 +1,104 @@
+/**
+ * Copyright 2015 Benjamin Navetta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.aeneas.zookeeper.impl.zk;
+
+import com.bennavetta.aeneas.zookeeper.ZkException;
+import com.google.common.base.Preconditions;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A ZooKeeper client session that is replaced when it expires. The ZooKeeper client reconnects on its own after a
+ * disconnection, but an expired session can never be used again, and ephemeral nodes created in it are gone. Users
+ * should get the current client for every operation and recreate their ephemeral nodes if they find them missing.
+ */
+public class ZooKeeperConnection implements Watcher, Closeable
+{
+	private static final Logger LOG = LoggerFactory.getLogger(ZooKeeperConnection.class);
+
+	private final String connectString;
+	private final int sessionTimeout;
+
+	private ZooKeeper zk;
+	private boolean closed;
+
+	/**
+	 * Create a connection. The session is established when it is first used.
+	 * @param connectString the ZooKeeper servers to connect to
+	 * @param sessionTimeout the session timeout, in milliseconds
+	 */
+	public ZooKeeperConnection(String connectString, int sessionTimeout)
+	{
+		this.connectString = Preconditions.checkNotNull(connectString);
+		this.sessionTimeout = sessionTimeout;
+	}
+
+	/**
+	 * Returns the client for the current session, starting a new session if there is none.
+	 * @throws ZkException if unable to create the client
+	 */
+	public synchronized ZooKeeper get() throws ZkException
+	{
+		Preconditions.checkState(!closed, "Connection closed");
+		if(zk == null || !zk.getState().isAlive())
+		{
+			try
+			{
+				LOG.debug("Starting ZooKeeper session with {}", connectString);
+				zk = new ZooKeeper(connectString, sessionTimeout, this);
+			}
+			catch (IOException e)
+			{
+				throw new ZkException("Unable to connect to ZooKeeper at " + connectString, e);
+			}
+		}
+		return zk;
+	}
+
+	@Override
+	public void process(WatchedEvent event)
+	{
+		if(event.getState() == Event.KeeperState.Expired)
+		{
+			LOG.warn("ZooKeeper session expired, a new one will be started");
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException
+	{
+		closed = true;
+		if(zk != null)
+		{
+			try
+			{
+				zk.close();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted closing ZooKeeper session", e);
+			}
+			zk = null;
+		}
+	}
+}
@@ -0,0 +1,257 @@
+/**
+ * Copyright 2015 Benjamin Navetta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.aeneas.zookeeper.impl.zk;
+
+import com.bennavetta.aeneas.zookeeper.ZkException;
+import com.bennavetta.aeneas.zookeeper.ZkFutures;
+import com.google.common.base.Splitter;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.OpResult;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+/**
+ * Adapts the ZooKeeper client's asynchronous callbacks to {@link CompletableFuture}s. Failed operations complete with
+ * the corresponding {@link KeeperException}. Futures are completed on the client's event thread.
+ */
+final class ZooKeeperFutures
+{
+	private ZooKeeperFutures()
+	{
+
+	}
+
+	/**
+	 * Data read from a znode, along with its stat.
+	 */
+	public static final class Data
+	{
+		public final byte[] data;
+		public final Stat stat;
+
+		Data(byte[] data, Stat stat)
+		{
+			this.data = data;
+			this.stat = stat;
+		}
+	}
+
+	public static CompletableFuture<String> create(ZooKeeper zk, String path, byte[] data, CreateMode mode)
+	{
+		CompletableFuture<String> future = new CompletableFuture<>();
+		zk.create(path, data, ZooDefs.Ids.OPEN_ACL_UNSAFE, mode, (rc, p, ctx, name) -> {
+			if(rc == KeeperException.Code.OK.intValue())
+			{
+				future.complete(name);
+			}
+			else
+			{
+				future.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), p));
+			}
+		}, null);
+		return future;
+	}
+
+	/**
+	 * Create a znode, creating any missing parents first.
+	 */
+	public static CompletableFuture<String> createWithParents(ZooKeeper zk, String path, byte[] data, CreateMode mode)
+	{
+		return create(zk, path, data, mode).handle((name, error) -> {
+			if(error == null)
+			{
+				return CompletableFuture.completedFuture(name);
+			}
+			if(isCode(error, KeeperException.Code.NONODE))
+			{
+				return createPath(zk, path.substring(0, path.lastIndexOf('/'))).thenCompose(v -> create(zk, path, data, mode));
+			}
+			return ZkFutures.<String>failed(ZkFutures.unwrap(error));
+		}).thenCompose(Function.identity());
+	}
+
+	/**
+	 * Create every persistent znode on a path that does not already exist.
+	 */
+	public static CompletableFuture<Void> createPath(ZooKeeper zk, String path)
+	{
+		CompletableFuture<Void> result = CompletableFuture.completedFuture(null);
+		StringBuilder current = new StringBuilder();
+		for(String part : Splitter.on('/').omitEmptyStrings().split(path))
+		{
+			String node = current.append('/').append(part).toString();
+			result = result.thenCompose(v -> create(zk, node, new byte[0], CreateMode.PERSISTENT).handle((name, error) -> {
+				if(error != null && !isCode(error, KeeperException.Code.NODEEXISTS))
+				{
+					throw new CompletionException(ZkFutures.unwrap(error));
+				}
+				return null;
+			}));
+		}
+		return result;
+	}
+
+	public static CompletableFuture<Void> delete(ZooKeeper zk, String path, int version)
+	{
+		CompletableFuture<Void> future = new CompletableFuture<>();
+		zk.delete(path, version, (rc, p, ctx) -> {
+			if(rc == KeeperException.Code.OK.intValue())
+			{
+				future.complete(null);
+			}
+			else
+			{
+				future.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), p));
+			}
+		}, null);
+		return future;
+	}
+
+	public static CompletableFuture<Stat> setData(ZooKeeper zk, String path, byte[] data, int version)
+	{
+		CompletableFuture<Stat> future = new CompletableFuture<>();
+		zk.setData(path, data, version, (rc, p, ctx, stat) -> {
+			if(rc == KeeperException.Code.OK.intValue())
+			{
+				future.complete(stat);
+			}
+			else
+			{
+				future.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), p));
+			}
+		}, null);
+		return future;
+	}
+
+	public static CompletableFuture<Data> getData(ZooKeeper zk, String path)
+	{
+		CompletableFuture<Data> future = new CompletableFuture<>();
+		zk.getData(path, false, (rc, p, ctx, data, stat) -> {
+			if(rc == KeeperException.Code.OK.intValue())
+			{
+				future.complete(new Data(data, stat));
+			}
+			else
+			{
+				future.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), p));
+			}
+		}, null);
+		return future;
+	}
+
+	public static CompletableFuture<List<String>> getChildren(ZooKeeper zk, String path)
+	{
+		CompletableFuture<List<String>> future = new CompletableFuture<>();
+		zk.getChildren(path, false, (rc, p, ctx, children) -> {
+			if(rc == KeeperException.Code.OK.intValue())
+			{
+				future.complete(children);
+			}
+			else
+			{
+				future.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), p));
+			}
+		}, null);
+		return future;
+	}
+
+	/**
+	 * Run several operations as one transaction.
+	 */
+	public static CompletableFuture<List<OpResult>> multi(ZooKeeper zk, Iterable<Op> ops)
+	{
+		CompletableFuture<List<OpResult>> future = new CompletableFuture<>();
+		zk.multi(ops, (rc, p, ctx, results) -> {
+			if(rc == KeeperException.Code.OK.intValue())
+			{
+				future.complete(results);
+			}
+			else
+			{
+				// Report the operation that failed, rather than the ones rolled back because of it
+				KeeperException.Code code = KeeperException.Code.get(rc);
+				if(results != null)
+				{
+					for(OpResult result : results)
+					{
+						if(result instanceof OpResult.ErrorResult
+								&& ((OpResult.ErrorResult) result).getErr() != KeeperException.Code.RUNTIMEINCONSISTENCY.intValue()
+								&& ((OpResult.ErrorResult) result).getErr() != KeeperException.Code.OK.intValue())
+						{
+							code = KeeperException.Code.get(((OpResult.ErrorResult) result).getErr());
+							break;
+						}
+					}
+				}
+				future.completeExceptionally(KeeperException.create(code, p));
+			}
+		}, null);
+		return future;
+	}
+
+	/**
+	 * Returns {@code true} if the error is a ZooKeeper error with the given code.
+	 */
+	public static boolean isCode(Throwable error, KeeperException.Code code)
+	{
+		Throwable cause = ZkFutures.unwrap(error);
+		return cause instanceof KeeperException && ((KeeperException) cause).code() == code;
+	}
+
+	/**
+	 * Translate the failure of a ZooKeeper operation into the exceptions used by the registry interfaces. ZooKeeper
+	 * errors are passed to the given translator.
+	 * @param future the ZooKeeper operation
+	 * @param keeperError translates ZooKeeper error responses
+	 * @param <T> the result type
+	 * @return a future with the same result, but translated failures
+	 */
+	public static <T> CompletableFuture<T> translateErrors(CompletableFuture<T> future,
+	                                                      Function<KeeperException, Throwable> keeperError)
+	{
+		CompletableFuture<T> translated = new CompletableFuture<>();
+		future.whenComplete((result, error) -> {
+			if(error == null)
+			{
+				translated.complete(result);
+				return;
+			}
+
+			Throwable cause = ZkFutures.unwrap(error);
+			if(cause instanceof KeeperException)
+			{
+				translated.completeExceptionally(keeperError.apply((KeeperException) cause));
+			}
+			else if(cause instanceof ZkException || cause instanceof RuntimeException)
+			{
+				translated.completeExceptionally(cause);
+			}
+			else
+			{
+				translated.completeExceptionally(new ZkException("Unable to communicate with ZooKeeper", cause));
+			}
+		});
+		return translated;
+	}
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright 2015 Benjamin Navetta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.aeneas.zookeeper.impl.zk;
+
+import com.bennavetta.aeneas.zookeeper.IdGenerator;
+import com.bennavetta.aeneas.zookeeper.ZkException;
+import com.bennavetta.aeneas.zookeeper.ZkFutures;
+import com.google.common.base.Preconditions;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.ZooKeeper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * ZooKeeper-based implementation of the {@link IdGenerator} interface. Ids come from the counter ZooKeeper keeps for
+ * sequential znodes, which is the parent's child version. Deleting a child also increments it, so the znodes are
+ * persistent and never deleted, leaving one empty znode per allocated id but no gaps between ids.
+ */
+public class ZooKeeperIdGenerator implements IdGenerator
+{
+	public static final String IDGEN_PATH = "/aeneas/zookeeper/idgen";
+
+	private static final Logger LOG = LoggerFactory.getLogger(ZooKeeperIdGenerator.class);
+
+	private final ZooKeeperConnection connection;
+
+	public ZooKeeperIdGenerator(ZooKeeperConnection connection)
+	{
+		this.connection = Preconditions.checkNotNull(connection);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CompletableFuture<Integer> generateIdAsync()
+	{
+		ZooKeeper zk;
+		try
+		{
+			zk = connection.get();
+		}
+		catch (ZkException e)
+		{
+			return ZkFutures.failed(e);
+		}
+
+		CompletableFuture<String> created = ZooKeeperFutures.createWithParents(zk, IDGEN_PATH + "/id-", new byte[0],
+		                                                                      CreateMode.PERSISTENT_SEQUENTIAL);
+		CompletableFuture<Integer> id = created.thenApply(path -> {
+			// Sequence numbers start at 0, but ZooKeeper ids must be positive
+			int generated = Integer.parseInt(path.substring(path.lastIndexOf('-') + 1)) + 1;
+			LOG.debug("Allocated id {} from ZooKeeper", generated);
+			return generated;
+		});
+		return ZooKeeperFutures.translateErrors(id, e -> new ZkException("ZooKeeper error generating id", e));
+	}
+}
@@ -0,0 +1,292 @@
+/**
+ * Copyright 2015 Benjamin Navetta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.aeneas.zookeeper.impl.zk;
+
+import com.bennavetta.aeneas.zookeeper.ServerRegistry;
+import com.bennavetta.aeneas.zookeeper.ServerRegistryWatcher;
+import com.bennavetta.aeneas.zookeeper.ServerRegistryWatcher.Listener;
+import com.bennavetta.aeneas.zookeeper.WatchCheckpoint;
+import com.bennavetta.aeneas.zookeeper.ZkException;
+import com.bennavetta.aeneas.zookeeper.ZkFutures;
+import com.bennavetta.aeneas.zookeeper.ZkServer;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import org.apache.zookeeper.CreateMode;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.Op;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Server registry implementation based on a seed ZooKeeper ensemble, separate from the one being managed. Each server
+ * is a znode holding its JSON representation. Registrations can be ephemeral, in which case a server's entry lives
+ * exactly as long as the ZooKeeper session that registered it, and no TTL is needed.
+ * <p>
+ * Batch registrations are written in a single transaction, so they are atomic and watchers see them together.
+ */
+public class ZooKeeperServerRegistry implements ServerRegistry
+{
+	public static final String REGISTRY_PATH = "/aeneas/zookeeper/servers";
+
+	private static final Logger LOG = LoggerFactory.getLogger(ZooKeeperServerRegistry.class);
+
+	private final ZooKeeperConnection connection;
+	private final ObjectMapper objectMapper;
+	private final CreateMode createMode;
+
+	/**
+	 * Create a registry with persistent registrations.
+	 * @param connection the seed ensemble
+	 */
+	public ZooKeeperServerRegistry(ZooKeeperConnection connection)
+	{
+		this(connection, new ObjectMapper(), false);
+	}
+
+	/**
+	 * Create a registry.
+	 * @param connection the seed ensemble
+	 * @param objectMapper the object mapper used to serialize servers
+	 * @param ephemeral {@code true} to remove registrations when the session that created them ends
+	 */
+	public ZooKeeperServerRegistry(ZooKeeperConnection connection, ObjectMapper objectMapper, boolean ephemeral)
+	{
+		this.connection = Preconditions.checkNotNull(connection);
+		this.objectMapper = Preconditions.checkNotNull(objectMapper);
+		this.createMode = ephemeral ? CreateMode.EPHEMERAL : CreateMode.PERSISTENT;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CompletableFuture<Void> registerAsync(ZkServer server)
+	{
+		LOG.debug("Registering server {}", server);
+		CompletableFuture<String> created = withConnection(zk -> ZooKeeperFutures.createWithParents(
+				zk, path(server.getId()), serialize(server), createMode));
+		return ZooKeeperFutures.translateErrors(created, e -> {
+			if(e.code() == KeeperException.Code.NODEEXISTS)
+			{
+				return new IllegalStateException("Server already registered", e);
+			}
+			return new ZkException("ZooKeeper error registering server", e);
+		}).thenApply(r -> null);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CompletableFuture<Void> deregisterAsync(ZkServer server)
+	{
+		LOG.debug("Deregistering server {}", server);
+		CompletableFuture<Void> deleted = withConnection(zk -> ZooKeeperFutures.delete(zk, path(server.getId()), -1));
+		return ZooKeeperFutures.translateErrors(deleted, e -> {
+			if(e.code() == KeeperException.Code.NONODE)
+			{
+				return new IllegalStateException("Server not registered", e);
+			}
+			return new ZkException("ZooKeeper error deregistering server", e);
+		});
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * Ephemeral registrations do not expire while the session is alive, so this only needs to be called to update the
+	 * server information. An ephemeral registration is only rewritten if the server information changed, so periodic
+	 * refreshes do not notify every registry watcher.
+	 */
+	@Override
+	public CompletableFuture<Void> updateAsync(ZkServer server)
+	{
+		LOG.trace("Refreshing server {}", server);
+		CompletableFuture<Stat> updated = withConnection(zk -> createMode == CreateMode.EPHEMERAL
+		                                                       ? updateIfChanged(zk, path(server.getId()), serialize(server))
+		                                                       : ZooKeeperFutures.setData(zk, path(server.getId()),
+		                                                                                  serialize(server), -1));
+		return ZooKeeperFutures.translateErrors(updated, e -> {
+			if(e.code() == KeeperException.Code.NONODE)
+			{
+				return new IllegalStateException("Server not registered", e);
+			}
+			return new ZkException("ZooKeeper error refreshing server", e);
+		}).thenApply(stat -> null);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The registrations are created in a single transaction, so the batch is atomic.
+	 */
+	@Override
+	public CompletableFuture<Void> registerAllAsync(Collection<ZkServer> servers)
+	{
+		LOG.debug("Registering servers {}", servers);
+		CompletableFuture<Void> created = withConnection(zk -> {
+			List<Op> ops = servers.stream()
+			                      .map(server -> Op.create(path(server.getId()), serialize(server),
+			                                               ZooDefs.Ids.OPEN_ACL_UNSAFE, createMode))
+			                      .collect(Collectors.toList());
+			// Make sure the registry exists first, since creating it cannot be part of the transaction
+			return ZooKeeperFutures.createPath(zk, REGISTRY_PATH).thenCompose(v -> ZooKeeperFutures.multi(zk, ops));
+		}).thenApply(results -> null);
+		return ZooKeeperFutures.translateErrors(created, e -> {
+			if(e.code() == KeeperException.Code.NODEEXISTS)
+			{
+				return new IllegalStateException("Server already registered", e);
+			}
+			return new ZkException("ZooKeeper error registering servers", e);
+		});
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CompletableFuture<Void> deregisterAllAsync(Collection<ZkServer> servers)
+	{
+		LOG.debug("Deregistering servers {}", servers);
+		List<CompletableFuture<Void>> deletes = servers.stream().map(this::deregisterAsync).collect(Collectors.toList());
+		return CompletableFuture.allOf(deletes.toArray(new CompletableFuture<?>[deletes.size()]));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CompletableFuture<ImmutableList<ZkServer>> getServersAsync()
+	{
+		LOG.debug("Retrieving server listing");
+		CompletableFuture<ImmutableList<ZkServer>> listing = withConnection(zk -> {
+			return ZooKeeperFutures.getChildren(zk, REGISTRY_PATH).handle((children, error) -> {
+				if(error != null)
+				{
+					if(ZooKeeperFutures.isCode(error, KeeperException.Code.NONODE)) // no servers registered
+					{
+						return CompletableFuture.completedFuture(ImmutableList.<ZkServer>of());
+					}
+					return ZkFutures.<ImmutableList<ZkServer>>failed(ZkFutures.unwrap(error));
+				}
+				return readServers(zk, children);
+			}).thenCompose(Function.identity());
+		});
+		return ZooKeeperFutures.translateErrors(listing, e -> new ZkException("ZooKeeper error obtaining server listing", e));
+	}
+
+	private CompletableFuture<ImmutableList<ZkServer>> readServers(ZooKeeper zk, List<String> children)
+	{
+		List<CompletableFuture<Optional<ZkServer>>> reads = children.stream().map(child -> {
+			return ZooKeeperFutures.getData(zk, REGISTRY_PATH + "/" + child).handle((data, error) -> {
+				if(error != null)
+				{
+					if(ZooKeeperFutures.isCode(error, KeeperException.Code.NONODE)) // deregistered since listing
+					{
+						return Optional.<ZkServer>empty();
+					}
+					throw new CompletionException(ZkFutures.unwrap(error));
+				}
+				try
+				{
+					return Optional.of(objectMapper.readValue(data.data, ZkServer.class));
+				}
+				catch (IOException e)
+				{
+					throw new CompletionException(new ZkException("Unable to deserialize server", e));
+				}
+			});
+		}).collect(Collectors.toList());
+
+		return CompletableFuture.allOf(reads.toArray(new CompletableFuture<?>[reads.size()])).thenApply(v -> {
+			return ImmutableList.copyOf(reads.stream()
+			                                 .map(CompletableFuture::join)
+			                                 .filter(Optional::isPresent)
+			                                 .map(Optional::get)
+			                                 .sorted(Comparator.comparingInt(ZkServer::getId))
+			                                 .collect(Collectors.toList()));
+		});
+	}
+
+	@Override
+	public ServerRegistryWatcher watch(Listener listener, WatchCheckpoint checkpoint)
+	{
+		return new ZooKeeperServerRegistryWatcher(connection, listener, objectMapper, checkpoint);
+	}
+
+	static String path(int id)
+	{
+		return REGISTRY_PATH + "/" + id;
+	}
+
+	private static CompletableFuture<Stat> updateIfChanged(ZooKeeper zk, String path, byte[] data)
+	{
+		return ZooKeeperFutures.getData(zk, path).thenCompose(current -> {
+			if(Arrays.equals(current.data, data))
+			{
+				return CompletableFuture.completedFuture(current.stat);
+			}
+			return ZooKeeperFutures.setData(zk, path, data, -1);
+		});
+	}
+
+	private byte[] serialize(ZkServer server)
+	{
+		try
+		{
+			return objectMapper.writeValueAsBytes(server);
+		}
+		catch (JsonProcessingException e)
+		{
+			throw new CompletionException(new ZkException("Unable to serialize server", e));
+		}
+	}
+
+	/**
+	 * Run an operation with the current session, failing if there is no session.
+	 */
+	private <T> CompletableFuture<T> withConnection(Function<ZooKeeper, CompletableFuture<T>> operation)
+	{
+		try
+		{
+			return operation.apply(connection.get());
+		}
+		catch (ZkException e)
+		{
+			return ZkFutures.failed(e);
+		}
+		catch (CompletionException e)
+		{
+			return ZkFutures.failed(ZkFutures.unwrap(e));
+		}
+	}
+}
@@ -0,0 +1,276 @@
+/**
+ * Copyright 2015 Benjamin Navetta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.aeneas.zookeeper.impl.zk;
+
+import com.bennavetta.aeneas.zookeeper.ServerRegistryWatcher;
+import com.bennavetta.aeneas.zookeeper.WatchCheckpoint;
+import com.bennavetta.aeneas.zookeeper.ZkException;
+import com.bennavetta.aeneas.zookeeper.ZkServer;
+import com.bennavetta.aeneas.zookeeper.impl.ListingDifference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Watches a {@link ZooKeeperServerRegistry} for changes. ZooKeeper watches fire once and do not say what changed, so
+ * every notification re-lists the registry children, and the difference from the previous listing is delivered.
+ * Entries are cached, and only new entries and those whose data watch fired are read again, so a server refreshing
+ * its registration costs one read rather than a read of every entry. Notifications that arrive while listing are
+ * coalesced into one more listing.
+ * <p>
+ * ZooKeeper does not keep a change history, so resuming from a checkpoint always delivers the difference between the
+ * checkpointed servers and the current ones.
+ */
+public class ZooKeeperServerRegistryWatcher implements ServerRegistryWatcher
+{
+	private static final Logger LOG = LoggerFactory.getLogger(ZooKeeperServerRegistryWatcher.class);
+
+	private static final long RETRY_DELAY_MS = 1000;
+
+	private final ZooKeeperConnection connection;
+	private final ObjectMapper objectMapper;
+	private final Listener listener;
+	private final WatchCheckpoint checkpoint;
+
+	private final AtomicBoolean running = new AtomicBoolean(false);
+	private final Semaphore changed = new Semaphore(0);
+	private final Watcher notifier = this::notified;
+
+	/**
+	 * Registry entries read so far, by child name. Only used by the watching thread.
+	 */
+	private final Map<String, Entry> entries = Maps.newHashMap();
+
+	/**
+	 * Paths of entries whose data changed since they were last read.
+	 */
+	private final Set<String> modified = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * The session the cached entries were read with. Watches do not survive session expiration, so the cache is
+	 * discarded when the session changes.
+	 */
+	private ZooKeeper session;
+
+	public ZooKeeperServerRegistryWatcher(ZooKeeperConnection connection, Listener listener, ObjectMapper objectMapper,
+	                                      WatchCheckpoint checkpoint)
+	{
+		this.connection = Preconditions.checkNotNull(connection);
+		this.listener = Preconditions.checkNotNull(listener);
+		this.objectMapper = Preconditions.checkNotNull(objectMapper);
+		this.checkpoint = Preconditions.checkNotNull(checkpoint);
+	}
+
+	@Override
+	public void watch() throws ZkException
+	{
+		Preconditions.checkState(running.compareAndSet(false, true), "Already watching");
+
+		Optional<WatchCheckpoint.Position> resumed = checkpoint.load();
+		Map<Integer, ZkServer> known = null;
+		if(resumed.isPresent())
+		{
+			known = ListingDifference.byId(resumed.get().getServers());
+			LOG.debug("Resuming from checkpoint at {}", Long.toHexString(resumed.get().getIndex()));
+		}
+
+		try
+		{
+			while(running.get())
+			{
+				// Permits released before the listing are covered by it
+				changed.drainPermits();
+
+				Optional<Listing> listing = list();
+				if(!listing.isPresent())
+				{
+					changed.tryAcquire(RETRY_DELAY_MS, TimeUnit.MILLISECONDS);
+					continue;
+				}
+
+				if(known != null)
+				{
+					ListingDifference.deliver(known, listing.get().servers, listener);
+				}
+				else
+				{
+					listener.serversListed(listing.get().servers.values());
+				}
+				known = listing.get().servers;
+				checkpoint.save(new WatchCheckpoint.Position(listing.get().index, known.values()));
+
+				changed.acquire();
+			}
+		}
+		catch (InterruptedException e)
+		{
+			if(running.get())
+			{
+				Thread.currentThread().interrupt();
+				throw new ZkException("Interrupted while watching registry", e);
+			}
+		}
+		finally
+		{
+			running.set(false);
+		}
+	}
+
+	@Override
+	public void stopWatching()
+	{
+		running.set(false);
+		changed.release();
+	}
+
+	@Override
+	public boolean isWatching()
+	{
+		return running.get();
+	}
+
+	private void notified(WatchedEvent event)
+	{
+		if(event.getType() == Watcher.Event.EventType.NodeDataChanged)
+		{
+			modified.add(event.getPath());
+		}
+		changed.release();
+	}
+
+	/**
+	 * List the registry, watching it for changes, and read the entries that are new or have changed since they were
+	 * last read, watching each of them.
+	 * @return the listing, or an empty value if the connection was lost and listing should be retried
+	 */
+	private Optional<Listing> list() throws ZkException, InterruptedException
+	{
+		ZooKeeper zk = connection.get();
+		if(zk != session)
+		{
+			entries.clear();
+			modified.clear();
+			session = zk;
+		}
+
+		try
+		{
+			Stat registryStat = new Stat();
+			List<String> children;
+			try
+			{
+				children = zk.getChildren(ZooKeeperServerRegistry.REGISTRY_PATH, notifier, registryStat);
+			}
+			catch (KeeperException.NoNodeException e)
+			{
+				// Notified once the first server registers
+				if(zk.exists(ZooKeeperServerRegistry.REGISTRY_PATH, notifier) == null)
+				{
+					entries.clear();
+					return Optional.of(new Listing(Maps.newHashMap(), 0));
+				}
+				changed.release();
+				return Optional.empty();
+			}
+
+			entries.keySet().retainAll(children);
+			for(String child : children)
+			{
+				String path = ZooKeeperServerRegistry.REGISTRY_PATH + "/" + child;
+				if(entries.containsKey(child) && !modified.remove(path))
+				{
+					continue;
+				}
+
+				// Read again on the next listing if this read fails
+				entries.remove(child);
+				Stat stat = new Stat();
+				try
+				{
+					byte[] data = zk.getData(path, notifier, stat);
+					entries.put(child, new Entry(objectMapper.readValue(data, ZkServer.class), stat.getMzxid()));
+				}
+				catch (KeeperException.NoNodeException e)
+				{
+					// Deregistered since listing, and the child watch has already fired
+				}
+			}
+
+			Map<Integer, ZkServer> servers = Maps.newHashMap();
+			long index = registryStat.getPzxid();
+			for(Entry entry : entries.values())
+			{
+				servers.put(entry.server.getId(), entry.server);
+				index = Math.max(index, entry.mzxid);
+			}
+			return Optional.of(new Listing(servers, index));
+		}
+		catch (KeeperException.ConnectionLossException | KeeperException.SessionExpiredException e)
+		{
+			LOG.warn("Lost connection to ZooKeeper while listing registry, retrying");
+			return Optional.empty();
+		}
+		catch (KeeperException e)
+		{
+			throw new ZkException("ZooKeeper error listing registry", e);
+		}
+		catch (IOException e)
+		{
+			throw new ZkException("Unable to deserialize server", e);
+		}
+	}
+
+	private static final class Entry
+	{
+		private final ZkServer server;
+		private final long mzxid;
+
+		private Entry(ZkServer server, long mzxid)
+		{
+			this.server = server;
+			this.mzxid = mzxid;
+		}
+	}
+
+	private static final class Listing
+	{
+		private final Map<Integer, ZkServer> servers;
+		private final long index;
+
+		private Listing(Map<Integer, ZkServer> servers, long index)
+		{
+			this.servers = servers;
+			this.index = index;
+		}
+	}
+}
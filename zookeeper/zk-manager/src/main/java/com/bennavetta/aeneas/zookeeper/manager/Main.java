@@ -16,16 +16,17 @@
 package com.bennavetta.aeneas.zookeeper.manager;
 
 import java.io.IOException;
-
-import mousio.etcd4j.EtcdClient;
+import java.nio.file.Paths;
+import java.time.Duration;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.bennavetta.aeneas.Etcd;
-import com.bennavetta.aeneas.zookeeper.ServerRegistry;
+import com.bennavetta.aeneas.zookeeper.Backend;
+import com.bennavetta.aeneas.zookeeper.CachingServerRegistry;
+import com.bennavetta.aeneas.zookeeper.FileWatchCheckpoint;
+import com.bennavetta.aeneas.zookeeper.WatchCheckpoint;
 import com.bennavetta.aeneas.zookeeper.ZkException;
-import com.bennavetta.aeneas.zookeeper.impl.etcd.EtcdServerRegistry;
 
 public class Main
 {
@@ -33,27 +34,46 @@ public class Main
 	
 	public static void main(String[] args)
 	{
-		EtcdClient etcd = Etcd.createClient();
-
-		LOG.info("Connected to etcd - {}", etcd.getVersion());
-
-		ServerRegistry registry = new EtcdServerRegistry(etcd);
+		Backend backend = Backend.fromEnvironment(0);
+		CachingServerRegistry registry = new CachingServerRegistry(backend.getRegistry());
 
 		try
 		{
-			ZooKeeperManager manager = new ZooKeeperManager(registry);
+			registry.start();
+
+			// Without a checkpoint file, a restarted manager starts from the current registry contents
+			String checkpointFile = System.getenv("WATCH_CHECKPOINT");
+			WatchCheckpoint checkpoint = checkpointFile == null
+			                             ? WatchCheckpoint.inMemory()
+			                             : new FileWatchCheckpoint(Paths.get(checkpointFile));
+
+			ZooKeeperManager manager = new ZooKeeperManager(registry, checkpoint);
+			manager.setCoalescingWindow(Duration.ofMillis(
+					Long.parseLong(System.getenv().getOrDefault("RECONFIG_WINDOW_MS", "1000"))));
+			String participantTarget = System.getenv("PARTICIPANT_TARGET");
+			if(participantTarget != null)
+			{
+				manager.enableRoleBalancing(Integer.parseInt(participantTarget));
+			}
+			if(Boolean.parseBoolean(System.getenv().getOrDefault("STAGED_JOIN", "false")))
+			{
+				manager.enableStagedJoins(Long.parseLong(System.getenv().getOrDefault("PROMOTION_MAX_LAG", "1000")),
+				                          Duration.ofMillis(Long.parseLong(
+						                          System.getenv().getOrDefault("PROMOTION_CHECK_MS", "2000"))));
+			}
 			manager.synchronizeMembers();
 			manager.startMonitoring();
 
 			Runtime.getRuntime().addShutdownHook(new Thread(() -> {
 				manager.stopMonitoring();
+				registry.stop();
 				try
 				{
-					etcd.close();
+					backend.close();
 				}
 				catch (IOException e)
 				{
-					LOG.error("Error closing etcd client", e);
+					LOG.error("Error closing registry connection", e);
 				}
 			}));
 		}
@@ -0,0 +1,207 @@
+/**
+ * Copyright 2015 Benjamin Navetta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.aeneas.zookeeper.manager;
+
+import com.bennavetta.aeneas.zookeeper.QuorumConfig;
+import com.bennavetta.aeneas.zookeeper.ZkException;
+import com.bennavetta.aeneas.zookeeper.ZkServer;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.UnaryOperator;
+
+/**
+ * Brings the quorum configuration in line with a list of servers using the smallest possible reconfiguration. The
+ * current configuration is read along with its version, and the reconfiguration only applies if the configuration has
+ * not changed since, so concurrent managers cannot overwrite each other's changes. If it has changed, the difference is
+ * computed again.
+ */
+public class MembershipReconciler
+{
+	private static final Logger LOG = LoggerFactory.getLogger(MembershipReconciler.class);
+
+	private static final int MAX_ATTEMPTS = 5;
+	private static final Duration INITIAL_RETRY_BACKOFF = Duration.ofMillis(100);
+
+	private final ZooKeeper zk;
+	private boolean preserveRoles;
+	private UnaryOperator<ZkServer> newMemberPolicy = UnaryOperator.identity();
+
+	public MembershipReconciler(ZooKeeper zk)
+	{
+		this.zk = Preconditions.checkNotNull(zk);
+	}
+
+	/**
+	 * Keep the current role of servers that are already members instead of applying their registered role. This is
+	 * needed when the manager assigns roles itself.
+	 * @param preserveRoles {@code true} to ignore role differences
+	 */
+	public void setPreserveRoles(boolean preserveRoles)
+	{
+		this.preserveRoles = preserveRoles;
+	}
+
+	/**
+	 * Set how servers that are not yet members join the quorum. By default, they join as registered.
+	 * @param newMemberPolicy a function from the registered server to the server to add
+	 */
+	public void setNewMemberPolicy(UnaryOperator<ZkServer> newMemberPolicy)
+	{
+		this.newMemberPolicy = Preconditions.checkNotNull(newMemberPolicy);
+	}
+
+	/**
+	 * Reconfigure the quorum to contain exactly the given servers.
+	 * @param servers the desired members
+	 * @return the resulting quorum configuration
+	 * @throws ZkException if unable to read or update the configuration
+	 */
+	public QuorumConfig reconcile(Collection<ZkServer> servers) throws ZkException
+	{
+		for(int attempt = 1; ; attempt++)
+		{
+			QuorumConfig current = readConfig();
+
+			List<String> joining = Lists.newArrayList();
+			List<String> leaving = Lists.newArrayList();
+			for(ZkServer server : servers)
+			{
+				ZkServer member = current.getServers().get(server.getId());
+				ZkServer desired;
+				if(member == null)
+				{
+					desired = newMemberPolicy.apply(server);
+				}
+				else
+				{
+					desired = preserveRoles ? server.withRole(member.getRole()) : server;
+				}
+				// Attributes are not part of the quorum configuration, so only the specification is compared
+				if(member == null || !desired.toServerSpec().equals(member.toServerSpec()))
+				{
+					joining.add(desired.toServerSpec());
+				}
+			}
+			for(Integer id : current.getServers().keySet())
+			{
+				if(servers.stream().noneMatch(server -> server.getId() == id))
+				{
+					leaving.add(String.valueOf(id));
+				}
+			}
+
+			if(joining.isEmpty() && leaving.isEmpty())
+			{
+				LOG.debug("Quorum configuration {} already matches registry", Long.toHexString(current.getVersion()));
+				return current;
+			}
+
+			LOG.info("Reconciling quorum configuration {}: adding {} and removing {}",
+			         Long.toHexString(current.getVersion()), joining, leaving);
+			try
+			{
+				byte[] newConfig = zk.reconfig(joining.isEmpty() ? null : joining,
+				                               leaving.isEmpty() ? null : leaving,
+				                               null, current.getVersion(), null);
+				return QuorumConfig.parse(newConfig);
+			}
+			catch (KeeperException.BadVersionException e)
+			{
+				if(attempt >= MAX_ATTEMPTS)
+				{
+					throw new ZkException("Quorum configuration kept changing during reconciliation", e);
+				}
+				LOG.debug("Quorum configuration changed concurrently, retrying");
+			}
+			catch (KeeperException e)
+			{
+				throw new ZkException("Unable to reconfigure quorum", e);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new ZkException("Interrupted reconfiguring quorum", e);
+			}
+
+			// Give the competing change time to commit before reading the configuration again
+			try
+			{
+				Thread.sleep(INITIAL_RETRY_BACKOFF.toMillis() << (attempt - 1));
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new ZkException("Interrupted reconfiguring quorum", e);
+			}
+		}
+	}
+
+	/**
+	 * Read the current quorum configuration. The connected server is synced with the leader first, since a lagging
+	 * follower would return a configuration that is already out of date.
+	 * @return the configuration and its version
+	 * @throws ZkException if unable to read the configuration
+	 */
+	public QuorumConfig readConfig() throws ZkException
+	{
+		try
+		{
+			sync().get();
+			return QuorumConfig.parse(zk.getConfig(false, new Stat()));
+		}
+		catch (ExecutionException e)
+		{
+			throw new ZkException("Unable to sync quorum configuration", e.getCause());
+		}
+		catch (KeeperException e)
+		{
+			throw new ZkException("Unable to read quorum configuration", e);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new ZkException("Interrupted reading quorum configuration", e);
+		}
+	}
+
+	private CompletableFuture<Void> sync()
+	{
+		CompletableFuture<Void> synced = new CompletableFuture<>();
+		zk.sync(ZooDefs.CONFIG_NODE, (rc, path, ctx) -> {
+			if(rc == KeeperException.Code.OK.intValue())
+			{
+				synced.complete(null);
+			}
+			else
+			{
+				synced.completeExceptionally(KeeperException.create(KeeperException.Code.get(rc), path));
+			}
+		}, null);
+		return synced;
+	}
+}
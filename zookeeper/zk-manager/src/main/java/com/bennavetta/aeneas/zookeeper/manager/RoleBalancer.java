@@ -0,0 +1,88 @@
+/**
+ * Copyright 2015 Benjamin Navetta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.aeneas.zookeeper.manager;
+
+import com.bennavetta.aeneas.zookeeper.QuorumConfig;
+import com.bennavetta.aeneas.zookeeper.ZkServer;
+import com.bennavetta.aeneas.zookeeper.ZkServer.Role;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Decides which quorum members vote. A fixed number of servers are participants and the rest are observers, so that
+ * adding servers adds read capacity without making the write quorum larger. Servers registered as observers are never
+ * promoted.
+ */
+public class RoleBalancer
+{
+	private final int targetParticipants;
+
+	/**
+	 * @param targetParticipants the number of participants to keep, which must be odd
+	 */
+	public RoleBalancer(int targetParticipants)
+	{
+		Preconditions.checkArgument(targetParticipants > 0 && targetParticipants % 2 == 1,
+		                            "Participant target must be a positive odd number: %s", targetParticipants);
+		this.targetParticipants = targetParticipants;
+	}
+
+	public int getTargetParticipants()
+	{
+		return targetParticipants;
+	}
+
+	/**
+	 * Compute the role changes needed to reach the target number of participants. The longest-standing servers (those
+	 * with the lowest ids) are preferred as participants.
+	 * @param current the current quorum configuration
+	 * @param registered the registered servers, keyed by id
+	 * @param ineligible ids of servers that may not be promoted yet
+	 * @return the servers whose role should change, with their new role
+	 */
+	public ImmutableList<ZkServer> rebalance(QuorumConfig current, Map<Integer, ZkServer> registered,
+	                                         Set<Integer> ineligible)
+	{
+		List<ZkServer> participants = current.getServers().values().stream()
+		                                     .filter(server -> server.getRole() == Role.PARTICIPANT)
+		                                     .sorted(Comparator.comparingInt(ZkServer::getId))
+		                                     .collect(Collectors.toList());
+
+		if(participants.size() > targetParticipants)
+		{
+			return ImmutableList.copyOf(participants.stream()
+			                                        .skip(targetParticipants)
+			                                        .map(server -> server.withRole(Role.OBSERVER))
+			                                        .collect(Collectors.toList()));
+		}
+
+		return ImmutableList.copyOf(current.getServers().values().stream()
+		                                   .filter(server -> server.getRole() == Role.OBSERVER)
+		                                   .filter(server -> !ineligible.contains(server.getId()))
+		                                   .filter(server -> registered.containsKey(server.getId())
+				                                   && registered.get(server.getId()).getRole() == Role.PARTICIPANT)
+		                                   .sorted(Comparator.comparingInt(ZkServer::getId))
+		                                   .limit(targetParticipants - participants.size())
+		                                   .map(server -> server.withRole(Role.PARTICIPANT))
+		                                   .collect(Collectors.toList()));
+	}
+}
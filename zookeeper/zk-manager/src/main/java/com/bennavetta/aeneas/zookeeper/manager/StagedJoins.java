@@ -0,0 +1,174 @@
+/**
+ * Copyright 2015 Benjamin Navetta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.aeneas.zookeeper.manager;
+
+import com.bennavetta.aeneas.zookeeper.FourLetterWords;
+import com.bennavetta.aeneas.zookeeper.ZkServer;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Tracks servers that joined the quorum as observers and are waiting to be promoted to participants. A server is
+ * ready for promotion once its zxid is within a given distance of the leader's, so that it is not in the commit path
+ * while it is still catching up.
+ */
+public class StagedJoins
+{
+	private static final Logger LOG = LoggerFactory.getLogger(StagedJoins.class);
+
+	private static final Duration STATUS_TIMEOUT = Duration.ofSeconds(5);
+
+	private final long maxLag;
+
+	/**
+	 * Staged servers, with the role they should be promoted to.
+	 */
+	private final Map<Integer, ZkServer> staged = Maps.newLinkedHashMap();
+
+	/**
+	 * @param maxLag how many transactions a server may be behind the leader and still be promoted
+	 */
+	public StagedJoins(long maxLag)
+	{
+		Preconditions.checkArgument(maxLag >= 0, "Maximum lag must not be negative");
+		this.maxLag = maxLag;
+	}
+
+	/**
+	 * Stage a server that is joining the quorum.
+	 * @param server the server, as registered
+	 * @return the server to add to the quorum in its place, which is an observer
+	 */
+	public synchronized ZkServer stage(ZkServer server)
+	{
+		if(staged.put(server.getId(), server) == null)
+		{
+			LOG.info("Adding server {} as an observer until it catches up", server.getId());
+		}
+		return server.withRole(ZkServer.Role.OBSERVER);
+	}
+
+	public synchronized boolean isStaged(int serverId)
+	{
+		return staged.containsKey(serverId);
+	}
+
+	/**
+	 * Stop tracking a server, because it left or no longer needs promotion.
+	 * @param serverId the server id
+	 */
+	public synchronized void cancel(int serverId)
+	{
+		staged.remove(serverId);
+	}
+
+	/**
+	 * Returns the ids of the servers that have not caught up yet.
+	 */
+	public synchronized ImmutableSet<Integer> stagedIds()
+	{
+		return ImmutableSet.copyOf(staged.keySet());
+	}
+
+	public synchronized boolean isEmpty()
+	{
+		return staged.isEmpty();
+	}
+
+	/**
+	 * Find the staged servers that have caught up with the leader and stop tracking them.
+	 * @param members the current quorum members, used to find the leader
+	 * @return the servers to promote, with their registered role
+	 */
+	public ImmutableList<ZkServer> caughtUp(Collection<ZkServer> members)
+	{
+		Map<Integer, ZkServer> candidates;
+		synchronized (this)
+		{
+			if(staged.isEmpty())
+			{
+				return ImmutableList.of();
+			}
+			candidates = Maps.newLinkedHashMap(staged);
+		}
+
+		Optional<Long> leaderZxid = leaderZxid(members);
+		if(!leaderZxid.isPresent())
+		{
+			LOG.warn("Unable to find the quorum leader, not promoting observers");
+			return ImmutableList.of();
+		}
+
+		ImmutableList.Builder<ZkServer> ready = ImmutableList.builder();
+		candidates.forEach((id, server) -> {
+			try
+			{
+				long lag = leaderZxid.get() - FourLetterWords.zxid(server.toClientConnection(), STATUS_TIMEOUT);
+				if(lag <= maxLag)
+				{
+					LOG.info("Server {} is {} transactions behind the leader, promoting", id, lag);
+					ready.add(server);
+				}
+				else
+				{
+					LOG.debug("Server {} is {} transactions behind the leader", id, lag);
+				}
+			}
+			catch (IOException e)
+			{
+				LOG.debug("Unable to get status of staged server {}", id, e);
+			}
+		});
+
+		ImmutableList<ZkServer> promoted = ready.build();
+		synchronized (this)
+		{
+			// Only forget servers that were not replaced while their status was checked
+			promoted.forEach(server -> staged.remove(server.getId(), server));
+		}
+		return promoted;
+	}
+
+	private Optional<Long> leaderZxid(Collection<ZkServer> members)
+	{
+		for(ZkServer member : members)
+		{
+			try
+			{
+				Map<String, String> status = FourLetterWords.status(member.toClientConnection(), STATUS_TIMEOUT);
+				if("leader".equals(status.get("Mode")) && status.containsKey("Zxid"))
+				{
+					return Optional.of(Long.decode(status.get("Zxid")));
+				}
+			}
+			catch (IOException | NumberFormatException e)
+			{
+				LOG.debug("Unable to get status of server {}", member.getId(), e);
+			}
+		}
+		return Optional.empty();
+	}
+}
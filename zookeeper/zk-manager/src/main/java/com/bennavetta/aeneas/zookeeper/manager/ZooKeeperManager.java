@@ -17,8 +17,13 @@ package com.bennavetta.aeneas.zookeeper.manager;
 
 import com.bennavetta.aeneas.zookeeper.*;
 import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.WatchedEvent;
 import org.apache.zookeeper.Watcher;
@@ -27,26 +32,146 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.time.Duration;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 /**
  * Manages ZooKeeper configuration.
+ * <p>
+ * Registry changes are queued and applied on a separate thread, so the registry watch keeps draining events while a
+ * reconfiguration runs. Changes that arrive within the coalescing window of each other are applied as one
+ * reconfiguration, since every reconfiguration stalls writes across the quorum.
  */
 public class ZooKeeperManager implements Watcher, ServerRegistryWatcher.Listener
 {
 	private static final Logger LOG = LoggerFactory.getLogger(ZooKeeperManager.class);
 	private final int CONNECTION_TIMEOUT = 5000;
 
+	private static final Duration INITIAL_RETRY_BACKOFF = Duration.ofSeconds(1);
+	private static final Duration MAX_RETRY_BACKOFF = Duration.ofMinutes(1);
+
 	private final ServerRegistry registry;
 	private final ZooKeeper zk;
+	private final MembershipReconciler reconciler;
 
+	private final WatchCheckpoint checkpoint;
 	private ServerRegistryWatcher watcher;
 
+	private final ScheduledExecutorService reconfigExecutor;
+	private Duration coalescingWindow = Duration.ZERO;
+
+	/**
+	 * Changes waiting to be applied, with an empty value for removed servers. Guarded by {@code this}.
+	 */
+	private final Map<Integer, Optional<ZkServer>> pending = Maps.newLinkedHashMap();
+	private boolean flushScheduled;
+
+	/**
+	 * Consecutive failed attempts to apply queued changes. Only used on the reconfiguration thread.
+	 */
+	private int failedFlushes;
+
+	/**
+	 * The quorum configuration as of the last reconfiguration, or {@code null} if not known.
+	 */
+	private volatile QuorumConfig quorum;
+
+	/**
+	 * New participants waiting to be promoted from observers, or {@code null} if they join as participants directly.
+	 */
+	private StagedJoins stagedJoins;
+
+	/**
+	 * Assigns participant and observer roles, or {@code null} if servers keep their registered role.
+	 */
+	private RoleBalancer roleBalancer;
+
 	public ZooKeeperManager(ServerRegistry registry) throws ZkException, IOException
+	{
+		this(registry, WatchCheckpoint.inMemory());
+	}
+
+	/**
+	 * Create a manager that resumes monitoring the registry from a checkpoint.
+	 * @param registry the server registry
+	 * @param checkpoint where the position in the registry's change history is saved
+	 */
+	public ZooKeeperManager(ServerRegistry registry, WatchCheckpoint checkpoint) throws ZkException, IOException
 	{
 		this.registry = registry;
+		this.checkpoint = checkpoint;
+		this.reconfigExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+				                                                                   .setNameFormat("reconfig-%d")
+				                                                                   .setDaemon(true)
+				                                                                   .build());
 		this.zk = initialCluster();
+		this.reconciler = new MembershipReconciler(zk);
+	}
+
+	/**
+	 * Set how long to wait for further registry changes before reconfiguring the quorum. Changes received in that time
+	 * are applied together.
+	 * @param coalescingWindow the time to wait after the first queued change
+	 */
+	public void setCoalescingWindow(Duration coalescingWindow)
+	{
+		Preconditions.checkArgument(!coalescingWindow.isNegative(), "Coalescing window must not be negative");
+		this.coalescingWindow = coalescingWindow;
+	}
+
+	/**
+	 * Add new participants to the quorum as observers first, and promote them once they have caught up with the
+	 * leader. This keeps servers that are still syncing out of the commit path. Must be called before monitoring
+	 * starts.
+	 * @param maxLag how many transactions a server may be behind the leader and still be promoted
+	 * @param checkInterval how often to check whether observers have caught up
+	 */
+	public void enableStagedJoins(long maxLag, Duration checkInterval)
+	{
+		Preconditions.checkState(stagedJoins == null, "Staged joins already enabled");
+		stagedJoins = new StagedJoins(maxLag);
+		reconciler.setPreserveRoles(true);
+		reconciler.setNewMemberPolicy(this::newMember);
+		reconfigExecutor.scheduleWithFixedDelay(this::promoteCaughtUp, checkInterval.toMillis(),
+		                                        checkInterval.toMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Keep a fixed number of participants, and run every other server as an observer. New servers join as observers
+	 * and are promoted when a participant leaves. Must be called before monitoring starts.
+	 * @param targetParticipants the number of participants, which must be odd
+	 */
+	public void enableRoleBalancing(int targetParticipants)
+	{
+		Preconditions.checkState(roleBalancer == null, "Role balancing already enabled");
+		roleBalancer = new RoleBalancer(targetParticipants);
+		reconciler.setPreserveRoles(true);
+		reconciler.setNewMemberPolicy(this::newMember);
+	}
+
+	/**
+	 * Returns the server to add to the quorum for a server that is not a member yet, the same way the incremental path
+	 * adds it.
+	 */
+	private ZkServer newMember(ZkServer server)
+	{
+		if(stagedJoins != null && server.getRole() == ZkServer.Role.PARTICIPANT)
+		{
+			server = stagedJoins.stage(server);
+		}
+		if(roleBalancer != null)
+		{
+			// New servers start out observing, and are promoted by rebalancing
+			return server.withRole(ZkServer.Role.OBSERVER);
+		}
+		return server;
 	}
 
 	private ZooKeeper initialCluster() throws ZkException, IOException
@@ -65,27 +190,50 @@ public class ZooKeeperManager implements Watcher, ServerRegistryWatcher.Listener
 
 	public void startMonitoring() throws ZkException
 	{
-		watcher = registry.watch(this);
+		watcher = registry.watch(this, checkpoint);
 		watcher.watch();
 	}
 
 	public void stopMonitoring()
 	{
 		watcher.stopWatching();
+
+		// Queued changes are still applied, since delayed tasks run after shutdown by default
+		reconfigExecutor.shutdown();
+		try
+		{
+			reconfigExecutor.awaitTermination(coalescingWindow.toMillis() + CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+		}
 	}
 
+	/**
+	 * Reconfigure the quorum to match the registry, changing only the servers that differ.
+	 * @throws ZkException if unable to obtain the server listing or reconfigure the quorum
+	 */
 	public void synchronizeMembers() throws ZkException
 	{
 		LOG.debug("Synchronizing ZooKeeper membership with registry");
-		List<String> members = registry.getServers().stream().map(ZkServer::toServerSpec).collect(Collectors.toList());
-
+		ImmutableSet<Integer> previouslyStaged = stagedJoins != null ? stagedJoins.stagedIds() : ImmutableSet.of();
 		try
 		{
-			zk.reconfig(null, null, members, -1, null);
+			this.quorum = reconciler.reconcile(registry.getServers());
 		}
-		catch (KeeperException | InterruptedException e)
+		catch (ZkException e)
 		{
-			throw new ZkException("Unable to reconfigure quorum", e);
+			if(stagedJoins != null)
+			{
+				// Servers staged for a reconfiguration that did not happen never joined
+				Sets.difference(stagedJoins.stagedIds(), previouslyStaged).forEach(stagedJoins::cancel);
+			}
+			throw e;
+		}
+		if(roleBalancer != null)
+		{
+			rebalance();
 		}
 	}
 
@@ -98,32 +246,306 @@ public class ZooKeeperManager implements Watcher, ServerRegistryWatcher.Listener
 	@Override
 	public void serverAdded(ZkServer server)
 	{
-		LOG.info("Adding server {}", server);
+		serversChanged(ImmutableList.of(server), ImmutableList.of());
+	}
+
+	@Override
+	public void serverRemoved(int serverId)
+	{
+		serversChanged(ImmutableList.of(), ImmutableList.of(serverId));
+	}
+
+	/**
+	 * Queue a change set to be applied after the coalescing window. Later changes to a server replace earlier ones.
+	 */
+	@Override
+	public synchronized void serversChanged(Collection<ZkServer> added, Collection<Integer> removed)
+	{
+		LOG.debug("Queueing addition of servers {} and removal of servers {}", added, removed);
+
+		removed.forEach(id -> pending.put(id, Optional.empty()));
+		added.forEach(server -> pending.put(server.getId(), Optional.of(server)));
+
+		if(!flushScheduled)
+		{
+			flushScheduled = true;
+			reconfigExecutor.schedule(this::applyPending, coalescingWindow.toMillis(), TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Apply all queued changes with a single incremental reconfiguration. If it fails, the changes are queued again
+	 * and retried with a backoff, so that they are not lost.
+	 */
+	private void applyPending()
+	{
+		Map<Integer, Optional<ZkServer>> changes;
+		synchronized (this)
+		{
+			changes = Maps.newLinkedHashMap(pending);
+			pending.clear();
+			flushScheduled = false;
+		}
+
+		QuorumConfig current = quorum;
+		if(current == null)
+		{
+			try
+			{
+				current = quorum = reconciler.readConfig();
+			}
+			catch (ZkException e)
+			{
+				LOG.warn("Unable to read quorum configuration", e);
+				retry(changes);
+				return;
+			}
+		}
+
+		QuorumConfig from = current;
+		List<String> joining = Lists.newArrayList();
+		List<String> leaving = Lists.newArrayList();
+		List<Integer> newlyStaged = Lists.newArrayList();
+		changes.forEach((id, server) -> {
+			if(server.isPresent())
+			{
+				ZkServer joiningServer = server.get();
+				ZkServer member = from.getServers().get(id);
+				if(stagedJoins != null && joiningServer.getRole() == ZkServer.Role.PARTICIPANT
+						&& (member == null || stagedJoins.isStaged(id)))
+				{
+					// Updates to a server that has not caught up yet keep it observing
+					if(member == null)
+					{
+						newlyStaged.add(id);
+					}
+					joiningServer = stagedJoins.stage(joiningServer);
+				}
+				else if(stagedJoins != null)
+				{
+					stagedJoins.cancel(id);
+				}
+
+				if(roleBalancer != null)
+				{
+					// New servers start out observing, and existing members keep their assigned role
+					joiningServer = joiningServer.withRole(member == null ? ZkServer.Role.OBSERVER : member.getRole());
+				}
 
+				if(member != null && member.toServerSpec().equals(joiningServer.toServerSpec()))
+				{
+					// Only registry attributes changed
+					LOG.trace("Server {} is already configured, skipping", id);
+					return;
+				}
+				joining.add(joiningServer.toServerSpec());
+			}
+			else if(from.getServers().containsKey(id))
+			{
+				if(stagedJoins != null)
+				{
+					stagedJoins.cancel(id);
+				}
+				leaving.add(String.valueOf(id));
+			}
+			else
+			{
+				// Added and removed again before it was applied, so there is nothing to undo
+				LOG.debug("Server {} is not in the quorum, skipping removal", id);
+			}
+		});
+
+		if(joining.isEmpty() && leaving.isEmpty())
+		{
+			failedFlushes = 0;
+			return;
+		}
+
+		LOG.info("Adding servers {} and removing servers {}", joining, leaving);
+		if(reconfigure(from, joining, leaving))
+		{
+			failedFlushes = 0;
+			if(roleBalancer != null)
+			{
+				rebalance();
+			}
+		}
+		else
+		{
+			// Servers that never joined must not be promoted, and are staged again when the changes are retried
+			if(stagedJoins != null)
+			{
+				newlyStaged.forEach(stagedJoins::cancel);
+			}
+			retry(changes);
+		}
+	}
+
+	/**
+	 * Queue changes that could not be applied again, unless newer changes to the same servers have arrived since, and
+	 * schedule another attempt after a backoff.
+	 */
+	private void retry(Map<Integer, Optional<ZkServer>> changes)
+	{
+		failedFlushes++;
+		// Cap the shift so the multiplication cannot overflow
+		Duration backoff = INITIAL_RETRY_BACKOFF.multipliedBy(1L << Math.min(failedFlushes - 1, 20));
+		if(backoff.compareTo(MAX_RETRY_BACKOFF) > 0)
+		{
+			backoff = MAX_RETRY_BACKOFF;
+		}
+
+		synchronized (this)
+		{
+			changes.forEach(pending::putIfAbsent);
+			if(reconfigExecutor.isShutdown())
+			{
+				LOG.error("Stopped monitoring, discarding changes to servers {}", pending.keySet());
+				return;
+			}
+			LOG.warn("Retrying changes to servers {} in {}", pending.keySet(), backoff);
+			if(!flushScheduled)
+			{
+				flushScheduled = true;
+				reconfigExecutor.schedule(this::applyPending, backoff.toMillis(), TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	/**
+	 * Promote or demote servers to reach the target number of participants.
+	 * @return {@code true} if the roles were changed or did not need to be
+	 */
+	private boolean rebalance()
+	{
+		QuorumConfig current = quorum;
+		if(current == null)
+		{
+			return false;
+		}
+
+		Map<Integer, ZkServer> registered = Maps.newHashMap();
 		try
 		{
-			byte[] newConfig = zk.reconfig(Lists.newArrayList(server.toServerSpec()), null, null, -1, null);
-			LOG.debug("New ZooKeeper configuration: '{}'", new String(newConfig, Charsets.US_ASCII));
+			registry.getServers().forEach(server -> registered.put(server.getId(), server));
 		}
-		catch (KeeperException | InterruptedException e)
+		catch (ZkException e)
 		{
-			LOG.error("Error reconfiguring ZooKeeper", e);
+			LOG.warn("Unable to obtain server listing, not rebalancing roles", e);
+			return false;
+		}
+
+		ImmutableSet<Integer> ineligible = stagedJoins != null ? stagedJoins.stagedIds() : ImmutableSet.of();
+		ImmutableList<ZkServer> changes = roleBalancer.rebalance(current, registered, ineligible);
+		if(!changes.isEmpty())
+		{
+			LOG.info("Changing roles of servers {} to keep {} participants", changes,
+			         roleBalancer.getTargetParticipants());
+			return reconfigure(current, changes.stream().map(ZkServer::toServerSpec).collect(Collectors.toList()),
+			                   ImmutableList.of());
 		}
+		return true;
 	}
 
-	@Override
-	public void serverRemoved(int serverId)
+	/**
+	 * Promote staged observers that have caught up with the leader with a single reconfiguration.
+	 */
+	private void promoteCaughtUp()
 	{
-		LOG.info("Removing server {}", serverId);
+		// An exception escaping a periodic task cancels it, and staged servers would never be promoted
+		try
+		{
+			promoteCaughtUpOnce();
+		}
+		catch (RuntimeException e)
+		{
+			LOG.error("Unable to promote staged servers", e);
+		}
+	}
+
+	private void promoteCaughtUpOnce()
+	{
+		if(stagedJoins.isEmpty())
+		{
+			return;
+		}
+
+		QuorumConfig current = quorum;
+		if(current == null)
+		{
+			try
+			{
+				current = quorum = reconciler.readConfig();
+			}
+			catch (ZkException e)
+			{
+				LOG.warn("Unable to read quorum configuration", e);
+				return;
+			}
+		}
 
+		ImmutableList<ZkServer> promoted = stagedJoins.caughtUp(current.getServers().values());
+		if(promoted.isEmpty())
+		{
+			return;
+		}
+
+		if(roleBalancer != null)
+		{
+			// Caught-up servers are now eligible, and the balancer decides whether they are needed as participants
+			if(!rebalance())
+			{
+				// Try again on the next check
+				promoted.forEach(stagedJoins::stage);
+			}
+			return;
+		}
+
+		LOG.info("Promoting servers {} to participants", promoted);
+		if(!reconfigure(current, promoted.stream().map(ZkServer::toServerSpec).collect(Collectors.toList()),
+		                ImmutableList.of()))
+		{
+			// Try again on the next check
+			promoted.forEach(stagedJoins::stage);
+		}
+	}
+
+	/**
+	 * Apply an incremental reconfiguration, as long as the quorum configuration has not changed since it was computed.
+	 * If it has, the new configuration is loaded so that the next attempt starts from it.
+	 * @param from the configuration the changes were computed from
+	 * @return {@code true} if the reconfiguration succeeded
+	 */
+	private boolean reconfigure(QuorumConfig from, List<String> joining, List<String> leaving)
+	{
 		try
 		{
-			byte[] newConfig = zk.reconfig(null, Lists.newArrayList(String.valueOf(serverId)), null, -1, null);
+			byte[] newConfig = zk.reconfig(joining.isEmpty() ? null : joining,
+			                               leaving.isEmpty() ? null : leaving,
+			                               null, from.getVersion(), null);
 			LOG.debug("New ZooKeeper configuration: '{}'", new String(newConfig, Charsets.US_ASCII));
+			quorum = QuorumConfig.parse(newConfig);
+			return true;
 		}
-		catch (InterruptedException | KeeperException e)
+		catch (KeeperException.BadVersionException e)
+		{
+			LOG.info("Quorum configuration {} changed concurrently, reloading", Long.toHexString(from.getVersion()));
+			try
+			{
+				quorum = reconciler.readConfig();
+			}
+			catch (ZkException readError)
+			{
+				LOG.warn("Unable to read quorum configuration", readError);
+				quorum = null;
+			}
+			return false;
+		}
+		catch (KeeperException | InterruptedException e)
 		{
 			LOG.error("Error reconfiguring ZooKeeper", e);
+			quorum = null;
+			return false;
 		}
 	}
 }
@@ -16,17 +16,27 @@
 package com.bennavetta.aeneas.zookeeper.node;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.StringWriter;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Optional;
 import java.util.Properties;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.bennavetta.aeneas.zookeeper.ServerRegistry;
 import com.bennavetta.aeneas.zookeeper.ZkException;
+import com.bennavetta.aeneas.zookeeper.ZkServer;
 import com.google.common.base.Charsets;
 
 /**
@@ -36,9 +46,15 @@ public class Configuration
 {
 	private static final Logger LOG = LoggerFactory.getLogger(Configuration.class);
 
+	/**
+	 * ZooKeeper names its copies of the dynamic configuration after the version of the configuration they contain.
+	 */
+	private static final Pattern VERSIONED_DYNAMIC_FILE = Pattern.compile(".*\\.dynamic\\.[0-9a-fA-F]+");
+
 	private Properties staticConfiguration = new Properties();
 	private Properties dynamicConfiguration = new Properties();
 	private int myId;
+	private String jvmFlags;
 
 	public void setStatic(String key, String value)
 	{
@@ -62,6 +78,22 @@ public class Configuration
 		return dynamicConfiguration.getProperty(key);
 	}
 
+	public String getJvmFlags()
+	{
+		return jvmFlags;
+	}
+
+	/**
+	 * Set the flags for the JVM that runs ZooKeeper. These are written to {@code java.env}, so they only apply when
+	 * ZooKeeper is started with its scripts.
+	 * @param jvmFlags the flags, or {@code null} to leave the scripts' defaults
+	 */
+	public void setJvmFlags(String jvmFlags)
+	{
+		LOG.trace("Setting JVM flags to '{}'", jvmFlags);
+		this.jvmFlags = jvmFlags;
+	}
+
 	public int getMyId()
 	{
 		return myId;
@@ -74,13 +106,38 @@ public class Configuration
 
 	public void addServers(ServerRegistry registry) throws ZkException
 	{
-		registry.getServers().forEach(server -> {
+		addServers(registry.getServers());
+	}
+
+	public void addServers(Collection<ZkServer> servers)
+	{
+		servers.forEach(server -> {
 			setDynamic("server." + server.getId(), server.toConnectionSpec());
 		});
 	}
 
+	/**
+	 * Replace the servers in the dynamic configuration. This server's own entry is kept if it is not in the listing.
+	 * @param servers the current servers
+	 */
+	public void setServers(Collection<ZkServer> servers)
+	{
+		Set<String> keys = servers.stream().map(server -> "server." + server.getId()).collect(Collectors.toSet());
+		keys.add("server." + myId);
+		dynamicConfiguration.stringPropertyNames().stream()
+		                    .filter(key -> key.startsWith("server.") && !keys.contains(key))
+		                    .forEach(dynamicConfiguration::remove);
+		addServers(servers);
+	}
+
 	public void addFromEnvironment()
 	{
+		if(System.getenv("JVMFLAGS") != null)
+		{
+			// The ZooKeeper scripts already use it, so java.env must not replace it
+			setJvmFlags(null);
+		}
+
 		System.getenv().forEach((key, value) -> {
 			if(key.startsWith("ZK_"))
 			{
@@ -137,7 +194,37 @@ public class Configuration
 		writeId(dataDir.resolve("myid"));
 	}
 
+	/**
+	 * Write the JVM flags to a {@code java.env} file, which the ZooKeeper scripts read from the configuration
+	 * directory. Nothing is written if no flags are set.
+	 * @param javaEnvPath the location of {@code java.env}
+	 * @throws IOException if unable to write the file
+	 */
+	public void writeJavaEnv(Path javaEnvPath) throws IOException
+	{
+		if(jvmFlags == null)
+		{
+			return;
+		}
+
+		LOG.debug("Writing JVM flags to {}: {}", javaEnvPath, jvmFlags);
+		Files.write(javaEnvPath, ("export JVMFLAGS=\"" + jvmFlags + "\"\n").getBytes(Charsets.US_ASCII));
+	}
+
 	public void writeConfiguration(Path staticPath, Path dynamicPath) throws IOException
+	{
+		writeStatic(staticPath, dynamicPath);
+		writeDynamic(dynamicPath);
+	}
+
+	/**
+	 * Write the static configuration. ZooKeeper rewrites this file to point to its own copy of the dynamic
+	 * configuration after a reconfiguration, so this also points it back to {@code dynamicPath}.
+	 * @param staticPath the location of the static configuration
+	 * @param dynamicPath the location of the dynamic configuration
+	 * @throws IOException if unable to write the file
+	 */
+	public void writeStatic(Path staticPath, Path dynamicPath) throws IOException
 	{
 		Properties staticToWrite = new Properties();
 		staticToWrite.putAll(staticConfiguration);
@@ -149,12 +236,73 @@ public class Configuration
 		{
 			staticToWrite.store(out, "Static ZooKeeper configuration");
 		}
+	}
 
-		LOG.debug("Writing dynamic configuration to {}: {}", dynamicPath, dynamicConfiguration);
+	/**
+	 * Find the dynamic configuration ZooKeeper committed most recently. After a reconfiguration, ZooKeeper writes the
+	 * new membership to a versioned copy of the dynamic configuration file and points the static configuration at it.
+	 * @param staticPath the location of the static configuration
+	 * @return the versioned dynamic configuration file, or an empty value if ZooKeeper has not written one
+	 * @throws IOException if unable to read the static configuration
+	 */
+	public static Optional<Path> committedDynamic(Path staticPath) throws IOException
+	{
+		if(!Files.exists(staticPath))
+		{
+			return Optional.empty();
+		}
+
+		Properties written = new Properties();
+		try (InputStream in = Files.newInputStream(staticPath))
+		{
+			written.load(in);
+		}
+		String dynamicFile = written.getProperty("dynamicConfigFile");
+		if(dynamicFile == null || !VERSIONED_DYNAMIC_FILE.matcher(dynamicFile).matches())
+		{
+			return Optional.empty();
+		}
+
+		Path dynamicPath = staticPath.resolveSibling(dynamicFile);
+		return Files.exists(dynamicPath) ? Optional.of(dynamicPath) : Optional.empty();
+	}
 
-		try (OutputStream out = Files.newOutputStream(dynamicPath))
+	/**
+	 * Write the dynamic configuration, unless the file already has the same contents. The file is replaced
+	 * atomically, so a server starting at the same time never reads a partial configuration.
+	 * @param dynamicPath the location of the dynamic configuration
+	 * @return {@code true} if the file was written
+	 * @throws IOException if unable to write the file
+	 */
+	public boolean writeDynamic(Path dynamicPath) throws IOException
+	{
+		byte[] contents = renderDynamic();
+		if(Files.exists(dynamicPath) && Arrays.equals(Files.readAllBytes(dynamicPath), contents))
 		{
-			dynamicConfiguration.store(out, "Dynamic ZooKeeper configuration");
+			LOG.trace("Dynamic configuration in {} is unchanged", dynamicPath);
+			return false;
 		}
+
+		LOG.debug("Writing dynamic configuration to {}: {}", dynamicPath, dynamicConfiguration);
+
+		Path temp = dynamicPath.resolveSibling(dynamicPath.getFileName() + ".tmp");
+		Files.write(temp, contents);
+		Files.move(temp, dynamicPath, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		return true;
+	}
+
+	/**
+	 * Returns the dynamic configuration in properties format, without the timestamp {@link Properties#store} adds and
+	 * in a stable order, so that unchanged configurations have identical contents.
+	 */
+	private byte[] renderDynamic() throws IOException
+	{
+		StringWriter out = new StringWriter();
+		dynamicConfiguration.store(out, null);
+		String lines = Arrays.stream(out.toString().split("\\R"))
+		                     .filter(line -> !line.isEmpty() && !line.startsWith("#"))
+		                     .sorted()
+		                     .collect(Collectors.joining("\n"));
+		return (lines + "\n").getBytes(Charsets.ISO_8859_1);
 	}
 }
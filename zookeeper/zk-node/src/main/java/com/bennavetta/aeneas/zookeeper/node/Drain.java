@@ -0,0 +1,133 @@
+/**
+ * Copyright 2015 Benjamin Navetta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.aeneas.zookeeper.node;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.KeeperException;
+import org.apache.zookeeper.ZooDefs;
+import org.apache.zookeeper.ZooKeeper;
+import org.apache.zookeeper.data.Stat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bennavetta.aeneas.zookeeper.QuorumConfig;
+import com.bennavetta.aeneas.zookeeper.Servers;
+import com.bennavetta.aeneas.zookeeper.ZkServer;
+
+/**
+ * Waits for a deregistered server to be reconfigured out of the quorum, so that it can be stopped without the
+ * ensemble losing a voter it still counts on. The quorum configuration is read from the other servers, since a server
+ * that has been removed may stop serving clients. Followers can lag behind the leader, so each read is preceded by a
+ * {@code sync}.
+ * <p>
+ * If the server is the leader, removing it also hands off leadership: the leader designates a successor as part of
+ * the reconfiguration, so no election is needed.
+ */
+public final class Drain
+{
+	private static final Logger LOG = LoggerFactory.getLogger(Drain.class);
+
+	private static final Duration POLL_INTERVAL = Duration.ofMillis(500);
+	private static final int SESSION_TIMEOUT = 5000;
+
+	private Drain()
+	{
+
+	}
+
+	/**
+	 * Wait until a server is no longer in the quorum configuration.
+	 * @param server the server being removed
+	 * @param others the remaining servers, used to read the configuration
+	 * @param deadline when to give up
+	 * @return {@code true} if the server was removed, or {@code false} if the deadline passed first
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public static boolean awaitRemoval(ZkServer server, Collection<ZkServer> others, Instant deadline)
+			throws InterruptedException
+	{
+		if(others.isEmpty())
+		{
+			LOG.debug("No other servers, so server {} cannot be removed", server.getId());
+			return false;
+		}
+
+		ZooKeeper zk;
+		try
+		{
+			zk = new ZooKeeper(Servers.toConnectionString(others), SESSION_TIMEOUT, event -> {});
+		}
+		catch (IOException e)
+		{
+			LOG.warn("Unable to connect to the other servers", e);
+			return false;
+		}
+
+		try
+		{
+			while(Instant.now().isBefore(deadline))
+			{
+				try
+				{
+					sync(zk);
+					QuorumConfig config = QuorumConfig.parse(zk.getConfig(false, new Stat()));
+					if(!config.getServers().containsKey(server.getId()))
+					{
+						LOG.debug("Server {} removed in configuration {}", server.getId(),
+						          Long.toHexString(config.getVersion()));
+						return true;
+					}
+				}
+				catch (KeeperException e)
+				{
+					LOG.debug("Unable to read quorum configuration", e);
+				}
+				Thread.sleep(POLL_INTERVAL.toMillis());
+			}
+			return false;
+		}
+		finally
+		{
+			zk.close();
+		}
+	}
+
+	/**
+	 * Bring the connected server up to date with the leader's view of the configuration. A failed sync is only
+	 * logged, since the next poll tries again.
+	 */
+	private static void sync(ZooKeeper zk) throws InterruptedException
+	{
+		CountDownLatch synced = new CountDownLatch(1);
+		zk.sync(ZooDefs.CONFIG_NODE, (rc, path, ctx) -> {
+			if(rc != KeeperException.Code.OK.intValue())
+			{
+				LOG.debug("Unable to sync {}: {}", path, KeeperException.Code.get(rc));
+			}
+			synced.countDown();
+		}, null);
+		if(!synced.await(SESSION_TIMEOUT, TimeUnit.MILLISECONDS))
+		{
+			LOG.debug("Timed out syncing {}", ZooDefs.CONFIG_NODE);
+		}
+	}
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright 2015 Benjamin Navetta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.aeneas.zookeeper.node;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bennavetta.aeneas.zookeeper.ServerRegistry;
+import com.bennavetta.aeneas.zookeeper.ServerRegistryWatcher;
+import com.bennavetta.aeneas.zookeeper.ZkException;
+import com.bennavetta.aeneas.zookeeper.ZkServer;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Keeps a node's dynamic configuration file in line with the server registry while it runs. The running server gets
+ * membership changes from reconfigurations, so the file only matters when the server restarts before any
+ * reconfiguration has been committed, but it then starts with the current membership instead of the one from when the
+ * node was configured. Once ZooKeeper has committed a configuration, restarts use ZooKeeper's versioned copy instead,
+ * since registered roles can differ from the ones the ensemble agreed on.
+ * <p>
+ * The watcher starts from the registry listing it takes itself, and then applies each change it delivers to that
+ * listing, so updates do not read the registry again.
+ */
+public class DynamicConfigWatcher implements ServerRegistryWatcher.Listener
+{
+	private static final Logger LOG = LoggerFactory.getLogger(DynamicConfigWatcher.class);
+
+	private final ServerRegistry registry;
+	private final Configuration configuration;
+	private final Path dynamicPath;
+
+	private final ExecutorService watchExecutor;
+	private ServerRegistryWatcher watcher;
+
+	/**
+	 * The registered servers, or {@code null} until the watcher has listed the registry.
+	 */
+	private Map<Integer, ZkServer> servers;
+
+	/**
+	 * Create a new watcher.
+	 * @param registry the registry to watch
+	 * @param configuration the node's configuration, which is updated with the current servers
+	 * @param dynamicPath the dynamic configuration file to rewrite
+	 */
+	public DynamicConfigWatcher(ServerRegistry registry, Configuration configuration, Path dynamicPath)
+	{
+		this.registry = Preconditions.checkNotNull(registry);
+		this.configuration = Preconditions.checkNotNull(configuration);
+		this.dynamicPath = Preconditions.checkNotNull(dynamicPath);
+		this.watchExecutor = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+				                                                       .setNameFormat("config-watcher-%d")
+				                                                       .setDaemon(true)
+				                                                       .build());
+	}
+
+	public synchronized void start()
+	{
+		Preconditions.checkState(watcher == null, "Watcher already started");
+
+		watcher = registry.watch(this);
+		watchExecutor.execute(() -> {
+			try
+			{
+				watcher.watch();
+			}
+			catch (ZkException e)
+			{
+				LOG.error("Registry watch failed, no longer updating the dynamic configuration", e);
+			}
+		});
+	}
+
+	public synchronized void stop()
+	{
+		if(watcher != null)
+		{
+			watcher.stopWatching();
+		}
+		watchExecutor.shutdownNow();
+	}
+
+	@Override
+	public void serverAdded(ZkServer server)
+	{
+		serversChanged(ImmutableList.of(server), ImmutableList.of());
+	}
+
+	@Override
+	public void serverRemoved(int serverId)
+	{
+		serversChanged(ImmutableList.of(), ImmutableList.of(serverId));
+	}
+
+	@Override
+	public synchronized void serversListed(Collection<ZkServer> listed)
+	{
+		// Catches up on anything that changed since the node was configured
+		servers = Maps.newHashMap();
+		listed.forEach(server -> servers.put(server.getId(), server));
+		update();
+	}
+
+	@Override
+	public synchronized void serversChanged(Collection<ZkServer> added, Collection<Integer> removed)
+	{
+		if(servers == null)
+		{
+			return;
+		}
+		removed.forEach(servers::remove);
+		added.forEach(server -> servers.put(server.getId(), server));
+		update();
+	}
+
+	private void update()
+	{
+		configuration.setServers(servers.values());
+		try
+		{
+			if(configuration.writeDynamic(dynamicPath))
+			{
+				LOG.info("Updated dynamic configuration in {}", dynamicPath);
+			}
+		}
+		catch (IOException e)
+		{
+			LOG.warn("Unable to update dynamic configuration", e);
+		}
+	}
+}
@@ -0,0 +1,206 @@
+/**
+ * Copyright 2015 Benjamin Navetta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.aeneas.zookeeper.node;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.server.admin.AdminServer.AdminServerException;
+import org.apache.zookeeper.server.quorum.QuorumPeer;
+import org.apache.zookeeper.server.quorum.QuorumPeer.ServerState;
+import org.apache.zookeeper.server.quorum.QuorumPeerConfig;
+import org.apache.zookeeper.server.quorum.QuorumPeerConfig.ConfigException;
+import org.apache.zookeeper.server.quorum.QuorumPeerMain;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bennavetta.aeneas.zookeeper.ZkServer;
+import com.google.common.base.Preconditions;
+
+/**
+ * Runs ZooKeeper in this JVM. This avoids a second JVM per node, and the server's state is read directly from the
+ * quorum peer.
+ */
+public class EmbeddedServerProcess implements ServerProcess
+{
+	private static final Logger LOG = LoggerFactory.getLogger(EmbeddedServerProcess.class);
+
+	private static final Duration PENDING_STOP_POLL = Duration.ofMillis(100);
+
+	static
+	{
+		// The log4j MBeans need log4j, which is not on the classpath
+		System.setProperty("zookeeper.jmx.log4j.disable", "true");
+	}
+
+	private volatile PeerMain main;
+	private volatile CountDownLatch exited;
+	private volatile int exitCode;
+	private Thread thread;
+
+	@Override
+	public void start(Path configFile, ZkServer server) throws IOException
+	{
+		Preconditions.checkState(!isRunning(), "Already running");
+
+		QuorumPeerConfig config = new QuorumPeerConfig();
+		try
+		{
+			config.parse(configFile.toAbsolutePath().toString());
+		}
+		catch (ConfigException e)
+		{
+			throw new IOException("Invalid ZooKeeper configuration", e);
+		}
+
+		// A quorum peer cannot be restarted, so every run gets a new one
+		PeerMain main = new PeerMain();
+		CountDownLatch exited = new CountDownLatch(1);
+		this.main = main;
+		this.exited = exited;
+
+		thread = new Thread(() -> {
+			try
+			{
+				main.runFromConfig(config);
+				exitCode = 0;
+			}
+			catch (IOException | AdminServerException | RuntimeException e)
+			{
+				LOG.error("ZooKeeper server failed", e);
+				exitCode = 1;
+			}
+			finally
+			{
+				exited.countDown();
+			}
+		}, "zookeeper-server");
+		thread.start();
+	}
+
+	@Override
+	public void stop()
+	{
+		Preconditions.checkState(thread != null, "ZooKeeper not started");
+		PeerMain main = this.main;
+		CountDownLatch exited = this.exited;
+		QuorumPeer peer = main.peer();
+		if(peer != null)
+		{
+			peer.shutdown();
+			return;
+		}
+		if(exited.getCount() == 0)
+		{
+			return;
+		}
+
+		// The peer is still being set up, so it is shut down as soon as it starts
+		LOG.info("ZooKeeper server has not started yet, stopping it once it does");
+		Thread pendingStop = new Thread(() -> {
+			try
+			{
+				while(!exited.await(PENDING_STOP_POLL.toMillis(), TimeUnit.MILLISECONDS))
+				{
+					QuorumPeer started = main.peer();
+					if(started != null)
+					{
+						LOG.info("Stopping ZooKeeper server now that it has started");
+						started.shutdown();
+						return;
+					}
+				}
+			}
+			catch (InterruptedException e)
+			{
+				LOG.warn("Interrupted waiting for ZooKeeper server to start, it was not stopped");
+			}
+		}, "zookeeper-pending-stop");
+		pendingStop.setDaemon(true);
+		pendingStop.start();
+	}
+
+	@Override
+	public int waitFor() throws InterruptedException
+	{
+		Preconditions.checkState(thread != null, "ZooKeeper not started");
+		exited.await();
+		return exitCode;
+	}
+
+	@Override
+	public boolean isRunning()
+	{
+		return thread != null && exited.getCount() > 0;
+	}
+
+	@Override
+	public Optional<ServerState> getState()
+	{
+		QuorumPeer peer = main == null ? null : main.peer();
+		return isRunning() && peer != null ? Optional.of(peer.getPeerState()) : Optional.empty();
+	}
+
+	@Override
+	public OptionalLong getZxid()
+	{
+		QuorumPeer peer = main == null ? null : main.peer();
+		return isRunning() && peer != null ? OptionalLong.of(peer.getLastLoggedZxid()) : OptionalLong.empty();
+	}
+
+	/**
+	 * Exposes the quorum peer, which is only available to subclasses.
+	 */
+	private static class PeerMain extends QuorumPeerMain
+	{
+		private volatile QuorumPeer published;
+
+		/**
+		 * Returns the quorum peer once it has started, or {@code null}. {@link QuorumPeerMain#runFromConfig} assigns
+		 * the peer without synchronization, but {@link QuorumPeer#start()} holds the peer's lock, so a started peer
+		 * seen while holding that lock was fully set up. It is then published through a volatile field.
+		 */
+		private QuorumPeer peer()
+		{
+			QuorumPeer peer = published;
+			if(peer != null)
+			{
+				return peer;
+			}
+
+			QuorumPeer candidate = quorumPeer;
+			if(candidate == null)
+			{
+				return null;
+			}
+			synchronized (candidate)
+			{
+				if(!candidate.isAlive())
+				{
+					// Not started yet, or already stopped
+					return null;
+				}
+			}
+			published = candidate;
+			return candidate;
+		}
+	}
+}
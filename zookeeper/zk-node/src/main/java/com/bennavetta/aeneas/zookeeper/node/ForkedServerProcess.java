@@ -0,0 +1,172 @@
+/**
+ * Copyright 2015 Benjamin Navetta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.aeneas.zookeeper.node;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.function.Consumer;
+
+import org.apache.zookeeper.server.quorum.QuorumPeer.ServerState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bennavetta.aeneas.process.SupervisedProcess;
+import com.bennavetta.aeneas.zookeeper.FourLetterWords;
+import com.bennavetta.aeneas.zookeeper.ZkServer;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.net.HostAndPort;
+
+/**
+ * Runs ZooKeeper in a separate JVM with the {@code zkServer.sh} script from a ZooKeeper installation. The script
+ * always reads {@code conf/zoo.cfg} in the installation, so the configuration must be written there. The server's
+ * state is obtained with the {@code srvr} command. Restarts are left to {@link ZooKeeper#supervise()}, which keeps the
+ * server's registration in place and waits for it to become ready again.
+ */
+public class ForkedServerProcess implements ServerProcess
+{
+	private static final Logger LOG = LoggerFactory.getLogger(ForkedServerProcess.class);
+
+	private static final Duration STATUS_TIMEOUT = Duration.ofSeconds(2);
+
+	private final Path installDir;
+	private final SupervisedProcess process;
+
+	private boolean started;
+	private HostAndPort clientAddress;
+
+	public ForkedServerProcess(Path installDir)
+	{
+		this.installDir = Preconditions.checkNotNull(installDir);
+		Preconditions.checkArgument(isValidLocation(), "Must specify a valid ZooKeeper installation");
+		this.process = new SupervisedProcess("zookeeper.server", ImmutableList.of(
+				installDir.resolve("bin/zkServer.sh").toAbsolutePath().toString(), "start-foreground"));
+	}
+
+	public boolean isValidLocation()
+	{
+		Path serverBin = installDir.resolve("bin/zkServer.sh");
+		return Files.isExecutable(serverBin);
+	}
+
+	@Override
+	public void setOutputListener(Consumer<String> listener)
+	{
+		process.setOutputListener(listener);
+	}
+
+	@Override
+	public boolean reportsOutput()
+	{
+		return true;
+	}
+
+	@Override
+	public void start(Path configFile, ZkServer server) throws IOException
+	{
+		Preconditions.checkState(!isRunning(), "Already running");
+
+		clientAddress = HostAndPort.fromParts("localhost", server.getClientPort());
+		process.start();
+		started = true;
+	}
+
+	@Override
+	public boolean acceptsJvmOptions()
+	{
+		return true;
+	}
+
+	@Override
+	public void stop()
+	{
+		Preconditions.checkState(started, "ZooKeeper not started");
+		process.stop();
+	}
+
+	@Override
+	public int waitFor() throws InterruptedException
+	{
+		Preconditions.checkState(started, "ZooKeeper not started");
+		return process.waitFor();
+	}
+
+	@Override
+	public boolean isRunning()
+	{
+		return started && process.isRunning();
+	}
+
+	@Override
+	public Optional<ServerState> getState()
+	{
+		if(!isRunning())
+		{
+			return Optional.empty();
+		}
+
+		try
+		{
+			Map<String, String> status = FourLetterWords.status(clientAddress, STATUS_TIMEOUT);
+			String mode = status.get("Mode");
+			if(mode == null)
+			{
+				// Servers that are not serving requests only say so
+				return Optional.of(ServerState.LOOKING);
+			}
+			switch(mode)
+			{
+				case "leader":
+					return Optional.of(ServerState.LEADING);
+				case "follower":
+					return Optional.of(ServerState.FOLLOWING);
+				case "observer":
+					return Optional.of(ServerState.OBSERVING);
+				default:
+					return Optional.empty();
+			}
+		}
+		catch (IOException e)
+		{
+			LOG.trace("Unable to get ZooKeeper status", e);
+			return Optional.empty();
+		}
+	}
+
+	@Override
+	public OptionalLong getZxid()
+	{
+		if(!isRunning())
+		{
+			return OptionalLong.empty();
+		}
+
+		try
+		{
+			return OptionalLong.of(FourLetterWords.zxid(clientAddress, STATUS_TIMEOUT));
+		}
+		catch (IOException | NumberFormatException e)
+		{
+			LOG.trace("Unable to get ZooKeeper zxid", e);
+			return OptionalLong.empty();
+		}
+	}
+}
@@ -0,0 +1,200 @@
+/**
+ * Copyright 2015 Benjamin Navetta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.aeneas.zookeeper.node;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bennavetta.aeneas.Metrics;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Watches the fsync latency of the transaction log device. At startup, candidate log directories are probed and the
+ * fastest is chosen. While ZooKeeper runs, its own slow fsync warnings are counted when its output is available, and
+ * otherwise the chosen directory is sampled periodically with a few small appends. Results are published as metrics
+ * and as registry attributes.
+ */
+public class FsyncMonitor
+{
+	private static final Logger LOG = LoggerFactory.getLogger(FsyncMonitor.class);
+
+	/**
+	 * Logged by ZooKeeper when an fsync takes longer than {@code fsync.warningthresholdms}.
+	 */
+	private static final Pattern SLOW_FSYNC = Pattern.compile("fsync-ing the write ahead log in .* took (\\d+)ms");
+
+	private static final int STARTUP_SAMPLES = 100;
+	private static final int PERIODIC_SAMPLES = 3;
+
+	private final Duration warningThreshold;
+
+	private volatile Path logDir;
+	private final AtomicLong p99Micros = new AtomicLong(-1);
+	private final AtomicLong slowFsyncs = new AtomicLong();
+
+	private ScheduledExecutorService scheduler;
+
+	/**
+	 * @param warningThreshold fsync latency above which a warning is logged
+	 */
+	public FsyncMonitor(Duration warningThreshold)
+	{
+		this.warningThreshold = Preconditions.checkNotNull(warningThreshold);
+	}
+
+	public Duration getWarningThreshold()
+	{
+		return warningThreshold;
+	}
+
+	/**
+	 * Probe the candidate log directories and choose the one with the lowest 99th percentile fsync latency.
+	 * @param candidates the directories to probe
+	 * @return the chosen directory
+	 * @throws IOException if none of the candidates could be probed
+	 */
+	public Path chooseLogDir(Collection<Path> candidates) throws IOException
+	{
+		Preconditions.checkArgument(!candidates.isEmpty(), "No candidate log directories");
+
+		FsyncProbe probe = new FsyncProbe(STARTUP_SAMPLES);
+		List<FsyncProbe.Result> results = Lists.newArrayList();
+		IOException failure = null;
+		for(Path candidate : candidates)
+		{
+			try
+			{
+				FsyncProbe.Result result = probe.probe(candidate);
+				LOG.info("Log directory probe: {}", result);
+				results.add(result);
+			}
+			catch (IOException e)
+			{
+				LOG.warn("Unable to probe log directory {}", candidate, e);
+				failure = e;
+			}
+		}
+
+		if(results.isEmpty())
+		{
+			throw failure;
+		}
+
+		FsyncProbe.Result best = results.stream().min(Comparator.comparingLong(FsyncProbe.Result::getP99Micros)).get();
+		record(best);
+		Metrics.record("zookeeper.node.logDirPreallocationMicros", best.getPreallocationMicros());
+		logDir = best.getDir();
+		LOG.info("Using transaction log directory {}", logDir);
+		return logDir;
+	}
+
+	/**
+	 * Start sampling the chosen log directory periodically. The samples share the device with the live transaction
+	 * log, so they skip preallocation and only time a few appends.
+	 * @param interval the time between probes
+	 */
+	public synchronized void start(Duration interval)
+	{
+		Preconditions.checkState(logDir != null, "No log directory chosen");
+		Preconditions.checkState(scheduler == null, "Already started");
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+				                                                       .setNameFormat("fsync-monitor-%d")
+				                                                       .setDaemon(true)
+				                                                       .build());
+		FsyncProbe probe = new FsyncProbe(PERIODIC_SAMPLES, false);
+		scheduler.scheduleWithFixedDelay(() -> {
+			try
+			{
+				record(probe.probe(logDir));
+			}
+			catch (IOException e)
+			{
+				LOG.warn("Unable to probe log directory {}", logDir, e);
+			}
+		}, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stop()
+	{
+		if(scheduler != null)
+		{
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * Check a line of ZooKeeper output for a slow fsync warning.
+	 * @param line a line of output
+	 */
+	public void processOutput(String line)
+	{
+		Matcher matcher = SLOW_FSYNC.matcher(line);
+		if(matcher.find())
+		{
+			long count = slowFsyncs.incrementAndGet();
+			Metrics.record("zookeeper.node.slowFsyncs", count);
+			Metrics.record("zookeeper.node.lastSlowFsyncMillis", Long.parseLong(matcher.group(1)));
+		}
+	}
+
+	/**
+	 * Returns the measurements to publish in the registry.
+	 */
+	public ImmutableMap<String, String> getAttributes()
+	{
+		ImmutableMap.Builder<String, String> attributes = ImmutableMap.builder();
+		if(logDir != null)
+		{
+			attributes.put("logDir", logDir.toString());
+		}
+		if(p99Micros.get() >= 0)
+		{
+			// Rounded to milliseconds so that small variations do not rewrite the registry entry
+			attributes.put("fsyncP99Millis", String.valueOf(Math.round(p99Micros.get() / 1000.0)));
+		}
+		attributes.put("slowFsyncs", String.valueOf(slowFsyncs.get()));
+		return attributes.build();
+	}
+
+	private void record(FsyncProbe.Result result)
+	{
+		p99Micros.set(result.getP99Micros());
+		Metrics.record("zookeeper.node.fsyncP99Micros", result.getP99Micros());
+		if(result.getP99Micros() > warningThreshold.toMillis() * 1000)
+		{
+			LOG.warn("99th percentile fsync latency of {} is {}us, above the {}ms threshold",
+			         result.getDir(), result.getP99Micros(), warningThreshold.toMillis());
+		}
+	}
+}
@@ -0,0 +1,175 @@
+/**
+ * Copyright 2015 Benjamin Navetta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.aeneas.zookeeper.node;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+
+/**
+ * Measures how long a directory's device takes to make small appends durable, which is what bounds ZooKeeper's write
+ * latency when the directory holds the transaction log. The probe preallocates a file the way ZooKeeper does and then
+ * times a series of small appends, each followed by an fsync. Probes of a directory that is already in use can skip
+ * the preallocation, so that they add as little load as possible to the device they are measuring.
+ */
+public class FsyncProbe
+{
+	private static final int PREALLOCATION_SIZE = 8 * 1024 * 1024;
+	private static final int WRITE_SIZE = 1024;
+
+	private final int samples;
+	private final boolean preallocate;
+
+	/**
+	 * @param samples the number of fsyncs to time
+	 */
+	public FsyncProbe(int samples)
+	{
+		this(samples, true);
+	}
+
+	/**
+	 * @param samples the number of fsyncs to time
+	 * @param preallocate whether to preallocate the file first, and time that too
+	 */
+	public FsyncProbe(int samples, boolean preallocate)
+	{
+		Preconditions.checkArgument(samples > 0, "Must take at least one sample");
+		this.samples = samples;
+		this.preallocate = preallocate;
+	}
+
+	/**
+	 * Probe a directory. A temporary file is created in the directory and removed afterwards.
+	 * @param dir the directory to probe, which is created if needed
+	 * @return the measured latencies
+	 * @throws IOException if unable to write to the directory
+	 */
+	public Result probe(Path dir) throws IOException
+	{
+		Files.createDirectories(dir);
+		Path file = Files.createTempFile(dir, ".fsync-probe", ".tmp");
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE))
+		{
+			long preallocationMicros = -1;
+			if(preallocate)
+			{
+				long start = System.nanoTime();
+				ByteBuffer zeros = ByteBuffer.allocate(1024 * 1024);
+				for(long position = 0; position < PREALLOCATION_SIZE; position += zeros.capacity())
+				{
+					zeros.clear();
+					channel.write(zeros, position);
+				}
+				channel.force(false);
+				preallocationMicros = (System.nanoTime() - start) / 1000;
+			}
+
+			long[] latencies = new long[samples];
+			ByteBuffer entry = ByteBuffer.allocate(WRITE_SIZE);
+			for(int i = 0; i < samples; i++)
+			{
+				entry.clear();
+				long writeStart = System.nanoTime();
+				channel.write(entry, (long) i * WRITE_SIZE);
+				channel.force(false);
+				latencies[i] = (System.nanoTime() - writeStart) / 1000;
+			}
+
+			Arrays.sort(latencies);
+			return new Result(dir, percentile(latencies, 0.5), percentile(latencies, 0.99),
+			                  latencies[latencies.length - 1], preallocationMicros);
+		}
+		finally
+		{
+			Files.deleteIfExists(file);
+		}
+	}
+
+	private static long percentile(long[] sorted, double percentile)
+	{
+		int index = (int) Math.ceil(percentile * sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	}
+
+	/**
+	 * Latencies measured by a probe, in microseconds.
+	 */
+	public static final class Result
+	{
+		private final Path dir;
+		private final long p50Micros;
+		private final long p99Micros;
+		private final long maxMicros;
+		private final long preallocationMicros;
+
+		private Result(Path dir, long p50Micros, long p99Micros, long maxMicros, long preallocationMicros)
+		{
+			this.dir = dir;
+			this.p50Micros = p50Micros;
+			this.p99Micros = p99Micros;
+			this.maxMicros = maxMicros;
+			this.preallocationMicros = preallocationMicros;
+		}
+
+		public Path getDir()
+		{
+			return dir;
+		}
+
+		public long getP50Micros()
+		{
+			return p50Micros;
+		}
+
+		public long getP99Micros()
+		{
+			return p99Micros;
+		}
+
+		public long getMaxMicros()
+		{
+			return maxMicros;
+		}
+
+		/**
+		 * Returns how long preallocating the file took, or {@code -1} if it was not preallocated.
+		 */
+		public long getPreallocationMicros()
+		{
+			return preallocationMicros;
+		}
+
+		@Override
+		public String toString()
+		{
+			return MoreObjects.toStringHelper(this)
+					.add("dir", dir)
+					.add("p50Micros", p50Micros)
+					.add("p99Micros", p99Micros)
+					.add("maxMicros", maxMicros)
+					.add("preallocationMicros", preallocationMicros)
+					.toString();
+		}
+	}
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright 2015 Benjamin Navetta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.aeneas.zookeeper.node;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bennavetta.aeneas.zookeeper.ServerRegistry;
+import com.bennavetta.aeneas.zookeeper.ZkFutures;
+import com.bennavetta.aeneas.zookeeper.ZkServer;
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Periodically refreshes a server's registration so that it does not expire. Refreshes are asynchronous, so a single
+ * timer thread is enough, and a refresh is skipped if the previous one has not completed yet.
+ * <p>
+ * A registration that has expired is registered again, but only while the heartbeat runs. Stopping the heartbeat waits
+ * for the refresh in progress, so a deregistration made afterwards is not undone.
+ */
+public class Heartbeat
+{
+	private static final Logger LOG = LoggerFactory.getLogger(Heartbeat.class);
+
+	/**
+	 * How long {@link #stop()} waits for the refresh in progress.
+	 */
+	private static final Duration STOP_TIMEOUT = Duration.ofSeconds(10);
+
+	private final ServerRegistry registry;
+	private final Supplier<ZkServer> server;
+	private final Duration interval;
+
+	private final ScheduledExecutorService scheduler;
+	private ScheduledFuture<?> task;
+	private CompletableFuture<Void> refresh;
+	private boolean stopped;
+
+	/**
+	 * Create a new heartbeat.
+	 * @param registry the registry to refresh the registration in
+	 * @param server supplies the current server information
+	 * @param interval the time between refreshes, which should be well under the registration TTL
+	 */
+	public Heartbeat(ServerRegistry registry, Supplier<ZkServer> server, Duration interval)
+	{
+		this.registry = Preconditions.checkNotNull(registry);
+		this.server = Preconditions.checkNotNull(server);
+		this.interval = Preconditions.checkNotNull(interval);
+		Preconditions.checkArgument(!interval.isNegative() && !interval.isZero(), "Interval must be positive");
+
+		this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+				                                                            .setNameFormat("heartbeat-%d")
+				                                                            .setDaemon(true)
+				                                                            .build());
+	}
+
+	public synchronized void start()
+	{
+		Preconditions.checkState(task == null && !stopped, "Heartbeat already started");
+		LOG.debug("Refreshing registration every {}", interval);
+		task = scheduler.scheduleAtFixedRate(this::beat, interval.toMillis(), interval.toMillis(), TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop refreshing, and wait for the refresh in progress to complete.
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public void stop() throws InterruptedException
+	{
+		CompletableFuture<Void> inProgress;
+		synchronized (this)
+		{
+			stopped = true;
+			if(task != null)
+			{
+				task.cancel(false);
+				task = null;
+			}
+			scheduler.shutdown();
+			inProgress = refresh;
+		}
+
+		if(inProgress != null)
+		{
+			try
+			{
+				inProgress.get(STOP_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+			}
+			catch (ExecutionException e)
+			{
+				// Already logged
+			}
+			catch (TimeoutException e)
+			{
+				LOG.warn("Registration refresh still in progress after {}", STOP_TIMEOUT);
+			}
+		}
+	}
+
+	private synchronized boolean isStopped()
+	{
+		return stopped;
+	}
+
+	private synchronized void beat()
+	{
+		if(stopped)
+		{
+			return;
+		}
+		if(refresh != null && !refresh.isDone())
+		{
+			LOG.warn("Previous registration refresh still in progress, skipping heartbeat");
+			return;
+		}
+
+		ZkServer current = server.get();
+		refresh = registry.updateAsync(current).<CompletableFuture<Void>>handle((result, error) -> {
+			if(error == null)
+			{
+				return CompletableFuture.completedFuture(null);
+			}
+			Throwable cause = ZkFutures.unwrap(error);
+			// Expired, unless it was deregistered because the heartbeat is stopping
+			if(cause instanceof IllegalStateException && !isStopped())
+			{
+				LOG.warn("Registration for server {} expired, registering again", current.getId());
+				return registry.registerAsync(current);
+			}
+			return ZkFutures.failed(cause);
+		}).thenCompose(Function.identity()).whenComplete((result, error) -> {
+			if(error != null)
+			{
+				LOG.warn("Unable to refresh registration", error);
+			}
+		});
+	}
+}
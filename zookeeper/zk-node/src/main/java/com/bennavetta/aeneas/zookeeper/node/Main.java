@@ -16,19 +16,20 @@
 package com.bennavetta.aeneas.zookeeper.node;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-
-import mousio.etcd4j.EtcdClient;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.bennavetta.aeneas.Etcd;
+import com.bennavetta.aeneas.zookeeper.Backend;
 import com.bennavetta.aeneas.zookeeper.IdGenerator;
 import com.bennavetta.aeneas.zookeeper.ServerRegistry;
 import com.bennavetta.aeneas.zookeeper.ZkException;
-import com.bennavetta.aeneas.zookeeper.impl.etcd.EtcdIdGenerator;
-import com.bennavetta.aeneas.zookeeper.impl.etcd.EtcdServerRegistry;
+import com.google.common.base.Splitter;
 
 /**
  * Launch and register a ZooKeeper node
@@ -39,29 +40,64 @@ public class Main
 
 	public static void main(String[] args)
 	{
-		EtcdClient etcd = Etcd.createClient();
-
-		LOG.info("Connected to etcd - {}", etcd.getVersion());
+		// Registrations expire unless refreshed, so the entries of killed nodes do not stay in the quorum
+		int registrationTtl = Integer.parseInt(System.getenv().getOrDefault("REGISTRATION_TTL", "30"));
 
-		ServerRegistry registry = new EtcdServerRegistry(etcd);
-		IdGenerator idGenerator = new EtcdIdGenerator(etcd);
-		ZooKeeper zookeeper = new ZooKeeper(Paths.get(System.getenv().getOrDefault("ZOO_DIR", "/opt/zookeeper")),
-		                                    registry, idGenerator);
+		Backend backend = Backend.fromEnvironment(registrationTtl);
+		ServerRegistry registry = backend.getRegistry();
+		IdGenerator idGenerator = backend.getIdGenerator();
+		Path installDir = Paths.get(System.getenv().getOrDefault("ZOO_DIR", "/opt/zookeeper"));
+		// Embedded mode runs the server in this JVM instead of starting a second one with zkServer.sh
+		ServerProcess process = "embedded".equals(System.getenv().getOrDefault("LAUNCH_MODE", "forked"))
+		                        ? new EmbeddedServerProcess()
+		                        : new ForkedServerProcess(installDir);
+		ZooKeeper zookeeper = new ZooKeeper(installDir, registry, idGenerator, process);
+		zookeeper.setAutoTune(Boolean.parseBoolean(System.getenv().getOrDefault("AUTO_TUNE", "true")));
+		zookeeper.setReadyTimeout(Duration.ofSeconds(Long.parseLong(System.getenv().getOrDefault("READY_TIMEOUT", "300"))));
+		if(Boolean.parseBoolean(System.getenv().getOrDefault("FSYNC_PROBE", "true")))
+		{
+			List<Path> logDirCandidates = Splitter.on(',').omitEmptyStrings().trimResults()
+			                                      .splitToList(System.getenv().getOrDefault("LOG_DIR_CANDIDATES", ""))
+			                                      .stream().map(Paths::get).collect(Collectors.toList());
+			FsyncMonitor fsyncMonitor = new FsyncMonitor(Duration.ofMillis(
+					Long.parseLong(System.getenv().getOrDefault("FSYNC_WARN_MS", "100"))));
+			zookeeper.setFsyncMonitor(fsyncMonitor, logDirCandidates, Duration.ofSeconds(
+					Long.parseLong(System.getenv().getOrDefault("FSYNC_PROBE_INTERVAL", "60"))));
+		}
+		String snapshotSeedDir = System.getenv("SNAPSHOT_SEED_DIR");
+		if(snapshotSeedDir != null)
+		{
+			zookeeper.setSnapshotSeeds(new SnapshotSeeds(Paths.get(snapshotSeedDir)), Duration.ofSeconds(
+					Long.parseLong(System.getenv().getOrDefault("SNAPSHOT_PUBLISH_INTERVAL", "600"))));
+		}
+		zookeeper.setReleaseIdOnDrain(Boolean.parseBoolean(System.getenv().getOrDefault("RELEASE_ID_ON_DRAIN", "false")));
+		zookeeper.setWatchConfig(Boolean.parseBoolean(System.getenv().getOrDefault("WATCH_CONFIG", "false")));
+		zookeeper.setRestartPolicy(Integer.parseInt(System.getenv().getOrDefault("MAX_RESTARTS", "5")),
+		                           Duration.ofSeconds(Long.parseLong(System.getenv().getOrDefault("RESTART_BACKOFF_MAX", "60"))));
+		if(registrationTtl > 0 && registry.expiresRegistrations())
+		{
+			zookeeper.setHeartbeatInterval(Duration.ofSeconds(Math.max(1, registrationTtl / 3)));
+		}
 
+		// Container runtimes only wait so long after asking to stop, so this should fit within their grace period
+		Duration drainTimeout = Duration.ofSeconds(Long.parseLong(System.getenv().getOrDefault("DRAIN_TIMEOUT", "25")));
 		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
 			try
 			{
-				zookeeper.deregister();
-				zookeeper.kill();
-				etcd.close();
+				zookeeper.drain(drainTimeout);
+				backend.close();
 			}
 			catch (ZkException e)
 			{
 				LOG.error("Error deregistering ZooKeeper node", e);
 			}
+			catch (InterruptedException e)
+			{
+				LOG.error("Interrupted while draining ZooKeeper node", e);
+			}
 			catch (IOException e)
 			{
-				LOG.error("Error closing etcd connection", e);
+				LOG.error("Error closing registry connection", e);
 			}
 		}));
 
@@ -89,12 +125,13 @@ public class Main
 
 		try
 		{
-			int exit = zookeeper.waitFor();
+			// Crashes are restarted in place, so this only returns once the node is stopped or has given up
+			int exit = zookeeper.supervise();
 			LOG.info("ZooKeeper exited with code {}", exit);
 		}
-		catch (InterruptedException e)
+		catch (InterruptedException | ZkException e)
 		{
-			LOG.error("Error waiting for ZooKeeper to complete", e);
+			LOG.error("Error supervising ZooKeeper", e);
 			System.exit(1);
 		}
 	}
@@ -0,0 +1,130 @@
+/**
+ * Copyright 2015 Benjamin Navetta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.aeneas.zookeeper.node;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.EnumSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.zookeeper.server.quorum.QuorumPeer.ServerState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bennavetta.aeneas.zookeeper.FourLetterWords;
+import com.bennavetta.aeneas.zookeeper.ZkException;
+import com.bennavetta.aeneas.zookeeper.ZkServer;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+import com.google.common.net.HostAndPort;
+
+/**
+ * Waits for a ZooKeeper server to be ready to join the quorum. A server is ready once it answers {@code ruok} on its
+ * client port and has synchronized with the leader (or is the leader). New servers connect to the leader as
+ * non-voting followers before they are added to the configuration, so this happens before registration.
+ */
+public class ReadinessGate
+{
+	private static final Logger LOG = LoggerFactory.getLogger(ReadinessGate.class);
+
+	private static final Set<ServerState> READY_STATES = EnumSet.of(ServerState.LEADING,
+	                                                                 ServerState.FOLLOWING,
+	                                                                 ServerState.OBSERVING);
+
+	private static final Duration INITIAL_DELAY = Duration.ofMillis(100);
+	private static final Duration MAX_DELAY = Duration.ofSeconds(5);
+	private static final Duration CHECK_TIMEOUT = Duration.ofSeconds(2);
+
+	private final ServerProcess process;
+	private final Duration timeout;
+
+	/**
+	 * @param process the server process to check
+	 * @param timeout how long to wait for the server to become ready
+	 */
+	public ReadinessGate(ServerProcess process, Duration timeout)
+	{
+		this.process = Preconditions.checkNotNull(process);
+		this.timeout = Preconditions.checkNotNull(timeout);
+	}
+
+	/**
+	 * Block until the server is ready, checking with exponential backoff.
+	 * @param server the server's registry information
+	 * @return how long the server took to become ready
+	 * @throws ZkException if the server exits or is not ready within the timeout
+	 */
+	public Duration await(ZkServer server) throws ZkException
+	{
+		HostAndPort clientAddress = HostAndPort.fromParts("localhost", server.getClientPort());
+		Stopwatch stopwatch = Stopwatch.createStarted();
+		Duration delay = INITIAL_DELAY;
+
+		while(true)
+		{
+			if(!process.isRunning())
+			{
+				throw new ZkException("ZooKeeper exited before becoming ready");
+			}
+
+			if(isReady(clientAddress))
+			{
+				Duration elapsed = Duration.ofMillis(stopwatch.elapsed(TimeUnit.MILLISECONDS));
+				LOG.info("ZooKeeper ready after {}", elapsed);
+				return elapsed;
+			}
+
+			if(stopwatch.elapsed(TimeUnit.MILLISECONDS) + delay.toMillis() > timeout.toMillis())
+			{
+				throw new ZkException("ZooKeeper not ready after " + timeout);
+			}
+
+			try
+			{
+				Thread.sleep(delay.toMillis());
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+				throw new ZkException("Interrupted waiting for ZooKeeper to become ready", e);
+			}
+
+			delay = delay.multipliedBy(2).compareTo(MAX_DELAY) > 0 ? MAX_DELAY : delay.multipliedBy(2);
+		}
+	}
+
+	private boolean isReady(HostAndPort clientAddress)
+	{
+		try
+		{
+			if(!"imok".equals(FourLetterWords.send(clientAddress, "ruok", CHECK_TIMEOUT).trim()))
+			{
+				return false;
+			}
+		}
+		catch (IOException e)
+		{
+			LOG.trace("Client port not accepting connections yet", e);
+			return false;
+		}
+
+		Optional<ServerState> state = process.getState();
+		LOG.debug("ZooKeeper state: {}", state);
+		return state.isPresent() && READY_STATES.contains(state.get());
+	}
+}
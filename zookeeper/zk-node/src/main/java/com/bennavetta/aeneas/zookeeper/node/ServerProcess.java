@@ -0,0 +1,95 @@
+/**
+ * Copyright 2015 Benjamin Navetta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.aeneas.zookeeper.node;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.function.Consumer;
+
+import org.apache.zookeeper.server.quorum.QuorumPeer.ServerState;
+
+import com.bennavetta.aeneas.zookeeper.ZkServer;
+
+/**
+ * Runs a configured ZooKeeper server.
+ */
+public interface ServerProcess
+{
+	/**
+	 * Start the server. A server that has exited can be started again.
+	 * @param configFile the static configuration file
+	 * @param server this server's registry information
+	 * @throws IOException if unable to start the server
+	 */
+	public void start(Path configFile, ZkServer server) throws IOException;
+
+	/**
+	 * Receive each line of the server's output. This must be called before the server is started. Servers that log
+	 * through this JVM's logging do not report their output, so the default implementation does nothing.
+	 * @param listener called with each line of output
+	 */
+	public default void setOutputListener(Consumer<String> listener)
+	{
+
+	}
+
+	/**
+	 * Returns {@code true} if the server's output is passed to the {@linkplain #setOutputListener(Consumer) output
+	 * listener}.
+	 */
+	public default boolean reportsOutput()
+	{
+		return false;
+	}
+
+	/**
+	 * Returns {@code true} if the server runs in its own JVM, which takes the JVM options from the configuration and
+	 * shares the container's memory with this one. The default implementation returns {@code false}.
+	 */
+	public default boolean acceptsJvmOptions()
+	{
+		return false;
+	}
+
+	/**
+	 * Stop the server. This does not wait for it to exit.
+	 */
+	public void stop();
+
+	/**
+	 * Wait for the server to exit.
+	 * @return the exit code, which is {@code 0} if the server stopped normally
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	public int waitFor() throws InterruptedException;
+
+	/**
+	 * Returns {@code true} if the server has been started and has not exited.
+	 */
+	public boolean isRunning();
+
+	/**
+	 * Returns the server's role in the quorum, or an empty value if it cannot be determined.
+	 */
+	public Optional<ServerState> getState();
+
+	/**
+	 * Returns the last zxid the server has seen, or an empty value if it cannot be determined.
+	 */
+	public OptionalLong getZxid();
+}
@@ -0,0 +1,271 @@
+/**
+ * Copyright 2015 Benjamin Navetta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.aeneas.zookeeper.node;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+/**
+ * Shares ZooKeeper snapshots between nodes through a common directory, such as a shared volume. Running nodes publish
+ * their newest snapshot along with the transaction logs written since, and new nodes copy the newest published seed
+ * into their data directories before starting. A seeded node is only missing the changes made since the seed was
+ * published, so the leader can usually bring it up to date with a DIFF instead of sending the whole data tree.
+ * <p>
+ * Each seed is a {@code seed.<zxid>} directory, which is created under a temporary name and renamed once complete.
+ * Only transaction logs that ZooKeeper has rolled over are published, since the current log is still being appended
+ * to. Superseded seeds are kept for a grace period so that nodes copying them can finish.
+ */
+public class SnapshotSeeds
+{
+	private static final Logger LOG = LoggerFactory.getLogger(SnapshotSeeds.class);
+
+	private static final String SEED_PREFIX = "seed.";
+	private static final String SNAPSHOT_PREFIX = "snapshot.";
+	private static final String LOG_PREFIX = "log.";
+
+	/**
+	 * ZooKeeper keeps its files in a subdirectory named for the storage format version.
+	 */
+	private static final String VERSION_DIR = "version-2";
+
+	private static final int SEEDS_TO_KEEP = 2;
+
+	/**
+	 * How long a seed is kept after a newer one replaces it, which should be more than long enough to copy it.
+	 */
+	private static final Duration SEED_GRACE_PERIOD = Duration.ofMinutes(10);
+
+	private final Path seedDir;
+
+	public SnapshotSeeds(Path seedDir)
+	{
+		this.seedDir = Preconditions.checkNotNull(seedDir);
+	}
+
+	/**
+	 * Copy the newest published seed into a node's data directories, if the node does not have any snapshots yet.
+	 * @param dataDir the node's snapshot directory ({@code dataDir})
+	 * @param dataLogDir the node's transaction log directory ({@code dataLogDir})
+	 * @return {@code true} if a seed was copied
+	 * @throws IOException if unable to copy the seed
+	 */
+	public boolean seed(Path dataDir, Path dataLogDir) throws IOException
+	{
+		Path snapshotDir = dataDir.resolve(VERSION_DIR);
+		if(!list(snapshotDir, SNAPSHOT_PREFIX).isEmpty())
+		{
+			LOG.debug("Data directory already has snapshots, not seeding");
+			return false;
+		}
+
+		Optional<Path> newest = list(seedDir, SEED_PREFIX).stream().max(Comparator.comparingLong(SnapshotSeeds::zxid));
+		if(!newest.isPresent())
+		{
+			LOG.info("No snapshot seeds in {}", seedDir);
+			return false;
+		}
+
+		LOG.info("Seeding data directory from {}", newest.get());
+		Path logDir = dataLogDir.resolve(VERSION_DIR);
+		Files.createDirectories(snapshotDir);
+		Files.createDirectories(logDir);
+
+		// Logs first, so that an interrupted copy never leaves a snapshot without its logs
+		List<Path> copied = Lists.newArrayList();
+		try
+		{
+			for(Path log : list(newest.get(), LOG_PREFIX))
+			{
+				copied.add(copyAtomically(log, logDir.resolve(log.getFileName())));
+			}
+			for(Path snapshot : list(newest.get(), SNAPSHOT_PREFIX))
+			{
+				copyAtomically(snapshot, snapshotDir.resolve(snapshot.getFileName()));
+			}
+		}
+		catch (IOException e)
+		{
+			// Logs without their snapshot would be replayed onto an empty tree, so start from nothing instead
+			for(Path log : copied)
+			{
+				Files.deleteIfExists(log);
+			}
+			throw e;
+		}
+		return true;
+	}
+
+	/**
+	 * Publish a node's newest snapshot and the transaction logs needed to replay from it, unless it has already been
+	 * published. Seeds replaced long enough ago are removed.
+	 * @param dataDir the node's snapshot directory ({@code dataDir})
+	 * @param dataLogDir the node's transaction log directory ({@code dataLogDir})
+	 * @throws IOException if unable to publish the snapshot
+	 */
+	public void publish(Path dataDir, Path dataLogDir) throws IOException
+	{
+		List<Path> snapshots = list(dataDir.resolve(VERSION_DIR), SNAPSHOT_PREFIX);
+		Optional<Path> snapshot = snapshots.stream().max(Comparator.comparingLong(SnapshotSeeds::zxid));
+		if(!snapshot.isPresent())
+		{
+			return;
+		}
+
+		long snapshotZxid = zxid(snapshot.get());
+		Path target = seedDir.resolve(SEED_PREFIX + Long.toHexString(snapshotZxid));
+		if(Files.exists(target))
+		{
+			return;
+		}
+
+		// The newest log is still being appended to, so copying it could capture a partly written transaction
+		List<Path> logs = list(dataLogDir.resolve(VERSION_DIR), LOG_PREFIX);
+		long currentLog = logs.stream().mapToLong(SnapshotSeeds::zxid).max().orElse(-1);
+		logs.removeIf(log -> zxid(log) == currentLog);
+
+		// Snapshots are fuzzy, so replaying needs the log containing the snapshot zxid and everything after it
+		long firstLog = logs.stream().mapToLong(SnapshotSeeds::zxid).filter(zxid -> zxid <= snapshotZxid).max().orElse(-1);
+		if(firstLog < 0)
+		{
+			LOG.debug("Log containing snapshot {} has not been rolled over yet, not publishing",
+			          Long.toHexString(snapshotZxid));
+			return;
+		}
+
+		Files.createDirectories(seedDir);
+		Path temp = Files.createTempDirectory(seedDir, ".seed");
+		try
+		{
+			Files.copy(snapshot.get(), temp.resolve(snapshot.get().getFileName()));
+			for(Path log : logs)
+			{
+				if(zxid(log) >= firstLog)
+				{
+					Files.copy(log, temp.resolve(log.getFileName()));
+				}
+			}
+			Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+			LOG.info("Published snapshot {} to {}", Long.toHexString(snapshotZxid), target);
+		}
+		catch (IOException e)
+		{
+			deleteRecursively(temp);
+			throw e;
+		}
+
+		removeOldSeeds();
+	}
+
+	/**
+	 * Remove seeds beyond the newest few, once the seed that replaced each of them has existed for the grace period.
+	 * A node that started copying a seed just before it was replaced can then still finish.
+	 */
+	private void removeOldSeeds() throws IOException
+	{
+		List<Path> seeds = list(seedDir, SEED_PREFIX).stream()
+		                                             .sorted(Comparator.comparingLong(SnapshotSeeds::zxid).reversed())
+		                                             .collect(Collectors.toList());
+		Instant cutoff = Instant.now().minus(SEED_GRACE_PERIOD);
+		for(int i = SEEDS_TO_KEEP; i < seeds.size(); i++)
+		{
+			Path old = seeds.get(i);
+			Instant replaced = Files.getLastModifiedTime(seeds.get(i - 1)).toInstant();
+			if(replaced.isBefore(cutoff))
+			{
+				LOG.debug("Removing old snapshot seed {}", old);
+				deleteRecursively(old);
+			}
+		}
+	}
+
+	private static Path copyAtomically(Path source, Path target) throws IOException
+	{
+		Path temp = target.resolveSibling("." + target.getFileName() + ".tmp");
+		Files.copy(source, temp, StandardCopyOption.REPLACE_EXISTING);
+		return Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static void deleteRecursively(Path path) throws IOException
+	{
+		if(!Files.exists(path))
+		{
+			return;
+		}
+		try(Stream<Path> files = Files.walk(path))
+		{
+			for(Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+			{
+				Files.deleteIfExists(file);
+			}
+		}
+	}
+
+	/**
+	 * Returns the files in a directory whose names start with a prefix and end with a hexadecimal zxid.
+	 */
+	private static List<Path> list(Path dir, String prefix) throws IOException
+	{
+		List<Path> files = Lists.newArrayList();
+		if(!Files.isDirectory(dir))
+		{
+			return files;
+		}
+
+		try(DirectoryStream<Path> stream = Files.newDirectoryStream(dir, prefix + "*"))
+		{
+			for(Path file : stream)
+			{
+				if(zxid(file) >= 0)
+				{
+					files.add(file);
+				}
+			}
+		}
+		return files;
+	}
+
+	/**
+	 * Returns the zxid in a ZooKeeper data file name, or {@code -1} if the name does not contain one.
+	 */
+	private static long zxid(Path file)
+	{
+		String name = file.getFileName().toString();
+		try
+		{
+			return Long.parseLong(name.substring(name.indexOf('.') + 1), 16);
+		}
+		catch (NumberFormatException e)
+		{
+			return -1;
+		}
+	}
+}
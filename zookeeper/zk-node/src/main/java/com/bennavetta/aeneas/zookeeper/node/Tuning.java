@@ -0,0 +1,149 @@
+/**
+ * Copyright 2015 Benjamin Navetta
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.bennavetta.aeneas.zookeeper.node;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.bennavetta.aeneas.Resources;
+import com.google.common.base.MoreObjects;
+
+/**
+ * Derives ZooKeeper and JVM settings from the resources available to the container, so that small containers do not
+ * run out of memory and large ones are put to use.
+ */
+public class Tuning
+{
+	private static final Logger LOG = LoggerFactory.getLogger(Tuning.class);
+
+	private static final long MB = 1024 * 1024;
+	private static final long GB = 1024 * MB;
+
+	/**
+	 * The share of the container's memory limit given to the heap. The rest is left for the JVM's own overhead and the
+	 * page cache, which ZooKeeper relies on for snapshot and log reads.
+	 */
+	private static final double HEAP_FRACTION = 0.6;
+
+	/**
+	 * Memory a JVM uses beyond its heap, such as metaspace, thread stacks, and buffers.
+	 */
+	private static final long JVM_OVERHEAD = 64 * MB;
+
+	private final long memory;
+	private final double cpus;
+	private final long diskSpace;
+
+	/**
+	 * @param memory the memory available to the container, in bytes
+	 * @param cpus the number of CPUs available to the container
+	 * @param diskSpace the size of the data volume, in bytes
+	 */
+	public Tuning(long memory, double cpus, long diskSpace)
+	{
+		this.memory = memory;
+		this.cpus = cpus;
+		this.diskSpace = diskSpace;
+	}
+
+	/**
+	 * Detect the resources available to this container.
+	 * @param dataDir the ZooKeeper data directory
+	 * @param reservedMemory memory in the container used by other processes, in bytes
+	 * @return tuning for the detected resources
+	 * @throws IOException if unable to determine the size of the data volume
+	 */
+	public static Tuning detect(Path dataDir, long reservedMemory) throws IOException
+	{
+		long memory = Math.max(Resources.memoryLimit() - reservedMemory, 0);
+		Tuning tuning = new Tuning(memory, Resources.cpuLimit(), Resources.totalSpace(dataDir));
+		LOG.info("Detected resources: {}", tuning);
+		return tuning;
+	}
+
+	/**
+	 * Returns the memory used by this JVM, which runs alongside a forked ZooKeeper server, in bytes.
+	 */
+	public static long wrapperMemory()
+	{
+		return Runtime.getRuntime().maxMemory() + JVM_OVERHEAD;
+	}
+
+	/**
+	 * Returns the maximum heap size, in megabytes.
+	 */
+	public long heapSizeMb()
+	{
+		return Math.max(64, (long) (memory * HEAP_FRACTION) / MB);
+	}
+
+	/**
+	 * Apply the derived settings. Explicit settings from the environment should be added afterwards so that they win.
+	 * @param configuration the configuration to tune
+	 */
+	public void apply(Configuration configuration)
+	{
+		long heapMb = heapSizeMb();
+		configuration.setJvmFlags(String.format("-Xms%dm -Xmx%dm", heapMb, heapMb));
+
+		// Followers need longer to load larger snapshots when they join
+		if(heapMb > 2048)
+		{
+			configuration.setStatic("initLimit", "20");
+		}
+
+		// Outstanding requests are held in memory, so allow more of them with a larger heap
+		configuration.setStatic("globalOutstandingLimit", String.valueOf(clamp(heapMb * 2, 500, 10000)));
+
+		// More CPUs can serve more client connections
+		configuration.setStatic("maxClientCnxns", String.valueOf(clamp(Math.round(cpus * 30), 60, 1000)));
+
+		// Keep the transaction log preallocation and the log written between snapshots small on small volumes
+		if(diskSpace < 4 * GB)
+		{
+			configuration.setStatic("preAllocSize", String.valueOf(16 * 1024));
+			configuration.setStatic("snapCount", "20000");
+		}
+		else if(diskSpace < 32 * GB)
+		{
+			configuration.setStatic("preAllocSize", String.valueOf(32 * 1024));
+			configuration.setStatic("snapCount", "50000");
+		}
+		else
+		{
+			configuration.setStatic("preAllocSize", String.valueOf(64 * 1024));
+			configuration.setStatic("snapCount", "100000");
+		}
+	}
+
+	private static long clamp(long value, long min, long max)
+	{
+		return Math.max(min, Math.min(max, value));
+	}
+
+	@Override
+	public String toString()
+	{
+		return MoreObjects.toStringHelper(this)
+				.add("memory", memory / MB + "MB")
+				.add("cpus", cpus)
+				.add("diskSpace", diskSpace / MB + "MB")
+				.toString();
+	}
+}
@@ -18,19 +18,35 @@ package com.bennavetta.aeneas.zookeeper.node;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
+import org.apache.zookeeper.server.quorum.QuorumPeer.ServerState;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.zeroturnaround.exec.ProcessExecutor;
 
+import com.bennavetta.aeneas.Metrics;
 import com.bennavetta.aeneas.Networking;
+import com.bennavetta.aeneas.process.RestartPolicy;
 import com.bennavetta.aeneas.zookeeper.IdGenerator;
 import com.bennavetta.aeneas.zookeeper.ServerRegistry;
 import com.bennavetta.aeneas.zookeeper.ZkException;
+import com.bennavetta.aeneas.zookeeper.ZkFutures;
 import com.bennavetta.aeneas.zookeeper.ZkServer;
 import com.bennavetta.aeneas.zookeeper.ZkServer.Role;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 import com.google.common.net.HostSpecifier;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 /**
  * Runs and watches a ZooKeeper instance
@@ -39,6 +55,8 @@ public class ZooKeeper
 {
 	private static final Logger LOG = LoggerFactory.getLogger(ZooKeeper.class);
 
+	private static final Duration INITIAL_RESTART_BACKOFF = Duration.ofSeconds(1);
+
 	private final Path installDir;
 
 	private final ServerRegistry registry;
@@ -46,21 +64,138 @@ public class ZooKeeper
 	private Configuration configuration;
 	private ZkServer server;
 
-	private Process process;
+	private final ServerProcess process;
+
+	private Duration heartbeatInterval;
+	private Heartbeat heartbeat;
+	private boolean registered;
+
+	private RestartPolicy restartPolicy = RestartPolicy.always(5, INITIAL_RESTART_BACKOFF, Duration.ofMinutes(1));
+	private volatile boolean stopping;
+
+	private Duration readyTimeout = Duration.ofMinutes(5);
+	private boolean autoTune;
+
+	private FsyncMonitor fsyncMonitor;
+	private List<Path> logDirCandidates;
+	private Duration fsyncProbeInterval;
+
+	private boolean releaseIdOnDrain;
+
+	private boolean watchConfig;
+	private DynamicConfigWatcher configWatcher;
+
+	private SnapshotSeeds snapshotSeeds;
+	private Duration snapshotPublishInterval;
+	private ScheduledExecutorService snapshotPublisher;
 
 	public ZooKeeper(Path installDir, ServerRegistry registry, IdGenerator idGenerator)
+	{
+		this(installDir, registry, idGenerator, new ForkedServerProcess(installDir));
+	}
+
+	/**
+	 * Create a ZooKeeper node.
+	 * @param installDir the directory to write configuration to, which is the ZooKeeper installation when forking
+	 * @param registry the server registry
+	 * @param idGenerator used to allocate an id if the node does not already have one
+	 * @param process runs the server once configured
+	 */
+	public ZooKeeper(Path installDir, ServerRegistry registry, IdGenerator idGenerator, ServerProcess process)
 	{
 		this.installDir = Preconditions.checkNotNull(installDir);
 		this.registry = Preconditions.checkNotNull(registry);
 		this.idGenerator = Preconditions.checkNotNull(idGenerator);
+		this.process = Preconditions.checkNotNull(process);
+	}
+
+	/**
+	 * Refresh the server's registration periodically while it runs. This is needed if the registry expires entries.
+	 * @param heartbeatInterval the time between refreshes, or {@code null} to disable them
+	 */
+	public void setHeartbeatInterval(Duration heartbeatInterval)
+	{
+		this.heartbeatInterval = heartbeatInterval;
+	}
+
+	/**
+	 * Set how {@link #supervise()} restarts the server. Restarts are delayed by an exponential backoff starting at one
+	 * second. A run that stays up for at least the maximum backoff resets the failure count.
+	 * @param maxRestarts the number of consecutive failures to restart after before giving up
+	 * @param maxBackoff the maximum delay before a restart
+	 */
+	public void setRestartPolicy(int maxRestarts, Duration maxBackoff)
+	{
+		this.restartPolicy = RestartPolicy.always(maxRestarts, INITIAL_RESTART_BACKOFF, maxBackoff);
+	}
 
-		Preconditions.checkArgument(isValidLocation(), "Must specify a valid ZooKeeper installation");
+	/**
+	 * Set how long to wait for the server to become ready before giving up. The server is only registered once it is
+	 * ready.
+	 * @param readyTimeout the maximum time to wait
+	 */
+	public void setReadyTimeout(Duration readyTimeout)
+	{
+		this.readyTimeout = Preconditions.checkNotNull(readyTimeout);
 	}
 
-	public boolean isValidLocation()
+	/**
+	 * Derive the heap size and resource-dependent ZooKeeper settings from the container's limits. Settings given in
+	 * the environment still take precedence.
+	 * @param autoTune {@code true} to tune the configuration
+	 */
+	public void setAutoTune(boolean autoTune)
 	{
-		Path serverBin = installDir.resolve("bin/zkServer.sh");
-		return Files.isExecutable(serverBin);
+		this.autoTune = autoTune;
+	}
+
+	/**
+	 * Probe the candidate transaction log directories at startup and use the one with the lowest fsync latency, then
+	 * keep measuring it while the server runs. A server whose output is available is measured by counting its slow
+	 * fsync warnings; otherwise the directory is sampled with a few small appends. The measurements are published in
+	 * the server's registry entry. If the log directory is set explicitly in the environment, it is the only candidate.
+	 * @param fsyncMonitor the monitor to use
+	 * @param logDirCandidates the directories to choose from, or an empty list for just the default
+	 * @param probeInterval how often to sample the chosen directory while running, if the server's output is not
+	 * available
+	 */
+	public void setFsyncMonitor(FsyncMonitor fsyncMonitor, List<Path> logDirCandidates, Duration probeInterval)
+	{
+		this.fsyncMonitor = Preconditions.checkNotNull(fsyncMonitor);
+		this.logDirCandidates = ImmutableList.copyOf(logDirCandidates);
+		this.fsyncProbeInterval = Preconditions.checkNotNull(probeInterval);
+	}
+
+	/**
+	 * Release the server's id once it has been drained from the quorum, and remove its {@code myid} file so that the
+	 * id is not reused by this node. This is only useful if the data directory does not outlive the node anyway.
+	 * @param releaseIdOnDrain {@code true} to release the id
+	 */
+	public void setReleaseIdOnDrain(boolean releaseIdOnDrain)
+	{
+		this.releaseIdOnDrain = releaseIdOnDrain;
+	}
+
+	/**
+	 * Keep the dynamic configuration file current with the registry while the server runs, so that a restarted server
+	 * starts with the current membership. This only affects restarts before ZooKeeper has committed a configuration of
+	 * its own, since later restarts use ZooKeeper's copy, so it is off by default.
+	 * @param watchConfig {@code true} to rewrite the dynamic configuration on registry changes
+	 */
+	public void setWatchConfig(boolean watchConfig)
+	{
+		this.watchConfig = watchConfig;
+	}
+
+	/**
+	 * Seed new nodes with a snapshot published by other nodes, and publish this node's snapshots while it runs.
+	 * @param snapshotSeeds the shared snapshot location
+	 * @param publishInterval how often to publish a new snapshot
+	 */
+	public void setSnapshotSeeds(SnapshotSeeds snapshotSeeds, Duration publishInterval)
+	{
+		this.snapshotSeeds = Preconditions.checkNotNull(snapshotSeeds);
+		this.snapshotPublishInterval = Preconditions.checkNotNull(publishInterval);
 	}
 
 	public void configure() throws IOException, ZkException
@@ -69,10 +204,24 @@ public class ZooKeeper
 
 		configuration = new Configuration();
 		configuration.addDefaults();
+		// Read first so that tuning measures the configured data directory, and again at the end so that it wins
+		configuration.addFromEnvironment();
+		if(autoTune)
+		{
+			// A server in its own JVM shares the container's memory with this one
+			long reserved = process.acceptsJvmOptions() ? Tuning.wrapperMemory() : 0;
+			Tuning.detect(Paths.get(configuration.getStatic("dataDir")), reserved).apply(configuration);
+		}
+		if(fsyncMonitor != null)
+		{
+			chooseLogDir();
+		}
 		configuration.addFromEnvironment();
 
-		configuration.addServers(registry);
+		// Fetch the server listing while an id is obtained
+		CompletableFuture<ImmutableList<ZkServer>> servers = registry.getServersAsync();
 		configuration.setMyId(Util.obtainId(idGenerator, configuration));
+		configuration.addServers(ZkFutures.await(servers));
 
 		String serverAddress = Networking.getLocalAddress().getHostAddress();
 
@@ -93,40 +242,352 @@ public class ZooKeeper
 		Files.createDirectories(configRoot);
 
 		configuration.writeId();
-		configuration.writeConfiguration(configRoot.resolve("zoo.cfg"), configRoot.resolve("zoo.cfg.dynamic"));
+		if(snapshotSeeds != null)
+		{
+			snapshotSeeds.seed(dataDir(), dataLogDir());
+		}
+		configuration.writeConfiguration(configFile(), dynamicConfigFile());
+		configuration.writeJavaEnv(configRoot.resolve("java.env"));
 
 	}
 
 	public void launch() throws ZkException, IOException
 	{
-		Preconditions.checkState(process == null, "Already running");
+		Preconditions.checkState(!process.isRunning(), "Already running");
 		Preconditions.checkState(configuration != null, "ZooKeeper not configured");
 
 		LOG.info("Starting ZooKeeper with server specification {}", server.toServerSpec());
-		process = new ProcessExecutor()
-				.command(installDir.resolve("bin/zkServer.sh").toAbsolutePath().toString(), "start-foreground")
-				.redirectError(System.err)
-				.redirectOutput(System.out)
-				.destroyOnExit()
-				.start().getProcess();
+		if(fsyncMonitor != null)
+		{
+			process.setOutputListener(fsyncMonitor::processOutput);
+		}
+		process.start(configFile(), server);
+
+		// Registering triggers a reconfiguration, which needs the server to be able to acknowledge proposals
+		Duration timeToReady = new ReadinessGate(process, readyTimeout).await(server);
+		Metrics.record("zookeeper.node.timeToReadyMillis", timeToReady.toMillis());
+
+		try
+		{
+			registry.register(currentServer());
+		}
+		catch (IllegalStateException e)
+		{
+			// The entry outlived a previous run of this server, such as one that was killed
+			LOG.warn("Server {} is already registered, replacing the existing registration", server.getId());
+			registry.refresh(currentServer());
+		}
+		registered = true;
+
+		if(watchConfig)
+		{
+			configWatcher = new DynamicConfigWatcher(registry, configuration, dynamicConfigFile());
+			configWatcher.start();
+		}
+
+		if(heartbeatInterval != null)
+		{
+			heartbeat = new Heartbeat(registry, this::currentServer, heartbeatInterval);
+			heartbeat.start();
+		}
+
+		if(fsyncMonitor != null && !process.reportsOutput())
+		{
+			// Otherwise ZooKeeper's own slow fsync warnings are counted, which costs the device nothing
+			fsyncMonitor.start(fsyncProbeInterval);
+		}
+
+		if(snapshotSeeds != null)
+		{
+			snapshotPublisher = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+					                                                               .setNameFormat("snapshot-publisher-%d")
+					                                                               .setDaemon(true)
+					                                                               .build());
+			snapshotPublisher.scheduleWithFixedDelay(this::publishSnapshot, snapshotPublishInterval.toMillis(),
+			                                         snapshotPublishInterval.toMillis(), TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void chooseLogDir() throws IOException
+	{
+		List<Path> candidates = logDirCandidates;
+		if(System.getenv("ZK_dataLogDir") != null)
+		{
+			candidates = ImmutableList.of(Paths.get(System.getenv("ZK_dataLogDir")));
+		}
+		else if(candidates.isEmpty())
+		{
+			candidates = ImmutableList.of(dataLogDir());
+		}
 
-		registry.register(server);
+		configuration.setStatic("dataLogDir", fsyncMonitor.chooseLogDir(candidates).toString());
+		configuration.setStatic("fsync.warningthresholdms", String.valueOf(fsyncMonitor.getWarningThreshold().toMillis()));
 	}
 
-	public void kill()
+	/**
+	 * Returns the server information to publish, including current measurements.
+	 */
+	private ZkServer currentServer()
 	{
-		Preconditions.checkState(process != null, "ZooKeeper not started");
-		process.destroy();
+		return fsyncMonitor == null ? server : server.withAttributes(fsyncMonitor.getAttributes());
+	}
+
+	private void publishSnapshot()
+	{
+		try
+		{
+			snapshotSeeds.publish(dataDir(), dataLogDir());
+		}
+		catch (IOException e)
+		{
+			LOG.warn("Unable to publish snapshot", e);
+		}
+	}
+
+	private Path configFile()
+	{
+		return installDir.resolve("conf/zoo.cfg");
+	}
+
+	private Path dynamicConfigFile()
+	{
+		return installDir.resolve("conf/zoo.cfg.dynamic");
+	}
+
+	private Path dataDir()
+	{
+		return Paths.get(configuration.getStatic("dataDir"));
+	}
+
+	private Path dataLogDir()
+	{
+		String dataLogDir = configuration.getStatic("dataLogDir");
+		return dataLogDir != null ? Paths.get(dataLogDir) : dataDir();
+	}
+
+	public synchronized void kill()
+	{
+		stopping = true;
+		if(configWatcher != null)
+		{
+			configWatcher.stop();
+		}
+		if(snapshotPublisher != null)
+		{
+			snapshotPublisher.shutdownNow();
+		}
+		if(fsyncMonitor != null)
+		{
+			fsyncMonitor.stop();
+		}
+		process.stop();
+	}
+
+	/**
+	 * Leave the quorum before stopping. The server is deregistered, and is only stopped once the manager has removed
+	 * it from the quorum configuration, or once the timeout has passed. Stopping a voter or the leader before then
+	 * would force the remaining servers through an election.
+	 * @param timeout the maximum time the whole sequence may take
+	 * @throws ZkException if unable to deregister the server
+	 * @throws InterruptedException if interrupted while waiting for the server to be removed
+	 */
+	public void drain(Duration timeout) throws ZkException, InterruptedException
+	{
+		Instant deadline = Instant.now().plus(timeout);
+		boolean removed = false;
+		try
+		{
+			if(registered && process.isRunning())
+			{
+				// Deregister before anything else can fail, so the manager always learns that this node is leaving
+				deregister();
+				List<ZkServer> others;
+				try
+				{
+					others = registry.getServers().stream()
+					                 .filter(other -> other.getId() != server.getId())
+					                 .collect(Collectors.toList());
+				}
+				catch (ZkException e)
+				{
+					LOG.warn("Unable to list the other servers, not waiting to leave the quorum", e);
+					others = ImmutableList.of();
+				}
+
+				LOG.info("Waiting up to {} for server {} to leave the quorum", timeout, server.getId());
+				removed = Drain.awaitRemoval(server, others, deadline);
+				if(removed)
+				{
+					LOG.info("Server {} left the quorum", server.getId());
+				}
+				else
+				{
+					LOG.warn("Server {} still in the quorum, stopping anyway", server.getId());
+				}
+			}
+			else
+			{
+				deregister();
+			}
+		}
+		finally
+		{
+			kill();
+		}
+
+		// An id still in the quorum configuration cannot be handed to another server
+		if(removed && releaseIdOnDrain)
+		{
+			releaseId();
+		}
+	}
+
+	private void releaseId() throws ZkException
+	{
+		try
+		{
+			// Remove the file first, so a failure cannot leave this node with an id that was handed out again
+			Files.deleteIfExists(dataDir().resolve("myid"));
+		}
+		catch (IOException e)
+		{
+			throw new ZkException("Unable to remove id file", e);
+		}
+		idGenerator.releaseId(server.getId());
+		LOG.info("Released id {}", server.getId());
 	}
 
 	public int waitFor() throws InterruptedException
 	{
-		Preconditions.checkState(process != null, "ZooKeeper not started");
 		return process.waitFor();
 	}
 
-	public void deregister() throws ZkException
+	/**
+	 * Wait for the server to exit, restarting it whenever it exits without being stopped. A restarted server keeps its
+	 * id, configuration, and registration, so a transient crash does not change the quorum membership. After too many
+	 * consecutive failures, the server is deregistered and left stopped.
+	 * @return the last exit code, once the server has been stopped or has failed too many times
+	 * @throws InterruptedException if interrupted while waiting
+	 * @throws ZkException if unable to deregister the server after giving up on it
+	 * @see #setRestartPolicy(int, Duration)
+	 */
+	public int supervise() throws InterruptedException, ZkException
+	{
+		int failures = 0;
+		long started = System.nanoTime();
+		boolean ready = true;
+
+		while(true)
+		{
+			int exit = process.waitFor();
+			if(stopping)
+			{
+				return exit;
+			}
+
+			Duration uptime = Duration.ofNanos(System.nanoTime() - started);
+			if(ready && restartPolicy.isStable(uptime))
+			{
+				failures = 0;
+			}
+			failures++;
+
+			Optional<Duration> backoff = restartPolicy.restartDelay(exit, failures);
+			if(!backoff.isPresent())
+			{
+				LOG.error("ZooKeeper exited with code {} after {} consecutive failures, giving up", exit, failures);
+				deregister();
+				return exit;
+			}
+
+			LOG.warn("ZooKeeper exited with code {} after {}, restarting in {}", exit, uptime, backoff.get());
+			Thread.sleep(backoff.get().toMillis());
+
+			synchronized (this)
+			{
+				if(stopping)
+				{
+					return exit;
+				}
+				started = System.nanoTime();
+				ready = false;
+				try
+				{
+					if(configWatcher != null)
+					{
+						// The committed configuration has the roles the ensemble agreed on, which can differ from the
+						// registered ones, so the registry is only used if ZooKeeper has not committed one
+						Optional<Path> committed = Configuration.committedDynamic(configFile());
+						if(committed.isPresent())
+						{
+							LOG.info("Restarting with committed configuration {}", committed.get());
+						}
+						else
+						{
+							configuration.writeStatic(configFile(), dynamicConfigFile());
+						}
+					}
+					process.start(configFile(), server);
+				}
+				catch (IOException e)
+				{
+					LOG.error("Unable to restart ZooKeeper", e);
+					continue;
+				}
+			}
+
+			try
+			{
+				new ReadinessGate(process, readyTimeout).await(server);
+				ready = true;
+				LOG.info("Restarted ZooKeeper");
+			}
+			catch (ZkException e)
+			{
+				LOG.error("Restarted ZooKeeper did not become ready", e);
+				if(process.isRunning())
+				{
+					process.stop();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the server's role in the quorum, or an empty value if it is not running or cannot be reached.
+	 */
+	public Optional<ServerState> getServerState()
+	{
+		return process.getState();
+	}
+
+	/**
+	 * Returns the last zxid the server has seen, or an empty value if it is not running or cannot be reached.
+	 */
+	public OptionalLong getZxid()
+	{
+		return process.getZxid();
+	}
+
+	public synchronized void deregister() throws ZkException
 	{
-		registry.deregister(server);
+		if(heartbeat != null)
+		{
+			try
+			{
+				// A refresh still in progress could register the server again after it is removed
+				heartbeat.stop();
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			heartbeat = null;
+		}
+		if(registered)
+		{
+			registry.deregister(server);
+			registered = false;
+		}
 	}
 }